@@ -122,6 +122,10 @@ public class ExportActivity extends Activity implements OnClickListener, OnItemS
 			if(selectedFormat.equals("Serval Maps Binary File") == true) {
 				binaryTask = new BinaryAsyncTask(this, progressBar, progressLabel);
 				binaryTask.execute(selectedData);
+			} else if(selectedFormat.equals("Serval Maps Archive File") == true) {
+				// export locations in the compressed archive format
+				binaryTask = new BinaryAsyncTask(this, progressBar, progressLabel, true);
+				binaryTask.execute(selectedData);
 			} else {
 				// export in csv format
 				csvTask = new CsvAsyncTask(this, progressBar, progressLabel);
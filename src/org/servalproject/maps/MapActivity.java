@@ -21,17 +21,22 @@ package org.servalproject.maps;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.mapsforge.android.maps.overlay.ArrayWayOverlay;
+import org.mapsforge.core.BoundingBox;
 import org.mapsforge.core.GeoPoint;
 import org.mapsforge.android.maps.overlay.ItemizedOverlay;
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.servalproject.maps.location.LocationCollector;
+import org.servalproject.maps.mapsforge.MarkerClusters;
+import org.servalproject.maps.mapsforge.MarkerLoader;
 import org.servalproject.maps.mapsforge.NewPoiOverlay;
 import org.servalproject.maps.mapsforge.OverlayItem;
 import org.servalproject.maps.mapsforge.OverlayItems;
 import org.servalproject.maps.mapsforge.OverlayList;
+import org.servalproject.maps.mapsforge.ViewportOverlay;
 import org.servalproject.maps.provider.LocationsContract;
 import org.servalproject.maps.provider.PointsOfInterestContract;
 import org.servalproject.maps.utils.FileUtils;
@@ -39,13 +44,15 @@ import org.servalproject.maps.utils.FileUtils;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
+import android.database.ContentObserver;
 import android.graphics.Paint;
 import android.graphics.drawable.Drawable;
 import android.location.Location;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Menu;
@@ -68,6 +75,12 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 	private final boolean V_LOG = false;
 	private final String  TAG = "MapActivity";
 	
+	// quiet period to wait for after a change before refreshing the map
+	private final int REFRESH_DELAY = 500;
+	
+	// minimum delay before refreshing the map to remove expired markers
+	private final int MIN_EXPIRY_DELAY = 1000;
+	
 	/*
 	 * private class level variables
 	 */
@@ -76,7 +89,7 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 	
 	private Handler updateHandler = new Handler();
 	
-	// number of seconds to delay between map updates
+	// maximum number of milliseconds a refresh is delayed while changes keep arriving
 	private int defaultUpdateDelay = 10 * 1000;
 	private volatile int updateDelay = defaultUpdateDelay;
 	private volatile boolean keepCentered = false;
@@ -105,6 +118,25 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 	// check to know if a map update is running
 	private volatile boolean updateRunning = false;
 	
+	// changes that arrived while an update was running
+	private boolean refreshPending = false;
+	
+	// time of the first change not yet shown on the map
+	private long firstChangeTime = -1;
+	
+	// markers currently on the map, keyed by the marker loader key
+	private HashMap<String, OverlayItem> overlayItems = new HashMap<String, OverlayItem>();
+	private MarkerLoader markerLoader;
+	private ViewportOverlay viewportOverlay;
+	private MarkerClusters markerClusters;
+	
+	// gps track of the user
+	private volatile boolean showTrack = false;
+	private OverlayWay trackOverlayWay = null;
+	
+	// zoom level of the map when the last update started
+	private byte loadedZoomLevel = -1;
+	
 	
 	/*
 	 * (non-Javadoc)
@@ -157,10 +189,15 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
         
         overlayList = new OverlayList(poiLocationMarker, this);
         mapView.getOverlays().add(overlayList);
+        markerClusters = new MarkerClusters(overlayList, getResources().getDisplayMetrics().density);
         
         // add the long press detecting overlay for adding new POIs
         mapView.getOverlays().add(new NewPoiOverlay(this));
         
+        // load new markers when the map is moved outside of the area already loaded
+        viewportOverlay = new ViewportOverlay(updateHandler, viewportChangedTask);
+        mapView.getOverlays().add(viewportOverlay);
+        
         // get the preferences
      	preferences = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
      	
@@ -204,6 +241,8 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
      	// listen for changes in the preferences
      	preferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
      	
+     	markerLoader = new MarkerLoader(getApplicationContext().getContentResolver());
+     	
      	// get the phone number and sid
      	ServalMaps mApplication = (ServalMaps) getApplication();
      	meshPhoneNumber = mApplication.getPhoneNumber();
@@ -289,14 +328,27 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 		 			
 		 			arrayWayOverlay = new ArrayWayOverlay(mDefaultFill, mDefaultLine);
 		 			mapView.getOverlays().add(arrayWayOverlay);
-		 		} else {
+		 			
+		 			// load the whole track on the next update
+		 			trackOverlayWay = null;
+		 			markerLoader.resetTrack();
+		 			showTrack = true;
+		 		} else if(arrayWayOverlay != null) {
+		 			showTrack = false;
 		 			mapView.getOverlays().remove(arrayWayOverlay);
 		 			arrayWayOverlay.clear();
 		 			arrayWayOverlay = null;
+		 			trackOverlayWay = null;
 		 		}
 				
 			}
 			
+			// show the effect of the new preferences
+			if(key.equals("preferences_map_max_poi_age") || key.equals("preferences_map_max_location_age")
+					|| key.equals("preferences_map_show_track")) {
+				requestRefresh();
+			}
+			
 			
 		}
 	};
@@ -395,6 +447,7 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 	public void onPause() {
 		
 		// stop the updating of the map
+		getContentResolver().unregisterContentObserver(mapItemsObserver);
 		updateHandler.removeCallbacks(updateMapTask);
 		
 		super.onPause();
@@ -407,6 +460,10 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 	public void onResume() {
 		
 		// restart the updating of the map
+		ContentResolver mContentResolver = getContentResolver();
+		mContentResolver.registerContentObserver(LocationsContract.CONTENT_URI, true, mapItemsObserver);
+		mContentResolver.registerContentObserver(PointsOfInterestContract.CONTENT_URI, true, mapItemsObserver);
+		
 		updateHandler.post(updateMapTask);
 		
 		super.onResume();
@@ -425,7 +482,55 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 	 *  methods and variables used to update the map
 	 */
 	
-	// task used to update the map ui with new markers
+	// observer used to refresh the map when the map items change
+	private ContentObserver mapItemsObserver = new ContentObserver(updateHandler) {
+		
+		/*
+		 * (non-Javadoc)
+		 * @see android.database.ContentObserver#onChange(boolean)
+		 */
+		@Override
+		public void onChange(boolean selfChange) {
+			
+			if(V_LOG) {
+				Log.v(TAG, "map items have changed");
+			}
+			
+			requestRefresh();
+		}
+	};
+	
+	/*
+	 * refresh the map, or refresh it again once the running update finishes
+	 */
+	private void requestRefresh() {
+		if(updateRunning) {
+			refreshPending = true;
+		} else {
+			scheduleRefresh();
+		}
+	}
+	
+	/*
+	 * schedule a refresh of the map once changes stop arriving,
+	 * a burst of changes is coalesced into one refresh but is never
+	 * delayed for longer than the update delay
+	 */
+	private void scheduleRefresh() {
+		
+		long mNow = SystemClock.uptimeMillis();
+		
+		if(firstChangeTime == -1) {
+			firstChangeTime = mNow;
+		}
+		
+		long mDelay = Math.min(REFRESH_DELAY, firstChangeTime + updateDelay - mNow);
+		
+		updateHandler.removeCallbacks(updateMapTask);
+		updateHandler.postDelayed(updateMapTask, Math.max(mDelay, 0));
+	}
+	
+	// task used to start an update of the map ui
 	private Runnable updateMapTask = new Runnable() {
 		
 		public void run() {
@@ -440,213 +545,188 @@ public class MapActivity extends org.mapsforge.android.maps.MapActivity {
 			
 			// indicate the map update is underway
 			updateRunning = true;
+			refreshPending = false;
+			firstChangeTime = -1;
 			
-			// resolve the content uri
-			ContentResolver mContentResolver = getApplicationContext().getContentResolver();
-			
-			// get the location marker content
-			Cursor mCursor = mContentResolver.query(LocationsContract.LATEST_CONTENT_URI, null, null, null, null);
-			
-			// store the list of items
-			ArrayList<OverlayItem> mItems = new ArrayList<OverlayItem>();
-			
-			if(mCursor == null) {
-				Log.i(TAG, "a null cursor was returned when looking up location info");
-				return;
-			}
+			// load the markers for the visible part of the map on a background thread
+			loadedZoomLevel = mapView.getMapPosition().getZoomLevel();
+			new UpdateMapAsyncTask(viewportOverlay.getAreaToLoad(), loadedZoomLevel).execute();
+		}
+	};
+	
+	// task used to refresh the map when it is moved or zoomed
+	private Runnable viewportChangedTask = new Runnable() {
+		
+		public void run() {
 			
-			if(V_LOG) {
-				Log.v(TAG, "rows in location info cursor: " + mCursor.getCount());
+			// regroup the markers for the new zoom level
+			if(markerClusters.setZoomLevel(viewportOverlay.getZoomLevel())) {
+				overlayList.requestRedraw();
 			}
 			
-			if(mCursor.getCount() > 0) {
-				// process the location records
-				GeoPoint mGeoPoint;
-				String mPhoneNumber;
-				OverlayItem mOverlayItem;
-				long mLocationAge;
-				long mCompareTime = System.currentTimeMillis() - locationMaxAge;
-				
-				while(mCursor.moveToNext()) {
-					
-					// check on the age of the info if required
-					if(locationMaxAge != -1000) {
-						mLocationAge = mCursor.getLong(mCursor.getColumnIndex(LocationsContract.Table.TIMESTAMP));
-						
-						if(mLocationAge < mCompareTime) {
-							// skip this record
-							continue;
-						}
-					}
-
-					// get the basic information
-					mPhoneNumber = mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.PHONE_NUMBER));
-					
-					// get the geographic coordinates
-					mGeoPoint = new GeoPoint(mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LATITUDE)), mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LONGITUDE)));
-					
-					// determine what type of marker to create
-					if(mPhoneNumber.equals(meshPhoneNumber) == true) {
-						// this is a self marker
-						mOverlayItem = new OverlayItem(mGeoPoint, null, null, selfLocationMarker);
-						mOverlayItem.setType(OverlayItems.SELF_LOCATION_ITEM);
-						mOverlayItem.setRecordId(mCursor.getInt(mCursor.getColumnIndex(LocationsContract.Table._ID)));
-						
-						// recenter the map if required
-						if(keepCentered) {
-							mapView.getController().setCenter(mGeoPoint);
-							if(V_LOG) {
-								Log.v(TAG, "map was recentered");
-							}
-						}
-					} else {
-						// this is a peer marker
-						mOverlayItem = new OverlayItem(mGeoPoint, null, null, peerLocationMarker);
-						mOverlayItem.setType(OverlayItems.PEER_LOCATION_ITEM);
-						mOverlayItem.setRecordId(mCursor.getInt(mCursor.getColumnIndex(LocationsContract.Table._ID)));
-
-					}
-					
-					mItems.add(mOverlayItem);
-					
+			if(viewportOverlay.isLoadRequired()) {
+				if(V_LOG){
+					Log.v(TAG, "map has moved outside of the loaded area");
 				}
 				
+				requestRefresh();
+			} else if(showTrack && viewportOverlay.getZoomLevel() != loadedZoomLevel) {
+				// the track needs to be simplified for the new zoom level
+				requestRefresh();
 			}
+		}
+	};
+	
+	/*
+	 * load the markers in the background and apply the changes to the overlays
+	 */
+	private class UpdateMapAsyncTask extends AsyncTask<Void, Void, MarkerLoader.Changes> {
+		
+		// the area of the map to load markers for
+		private BoundingBox area;
+		private byte zoomLevel;
+		
+		public UpdateMapAsyncTask(BoundingBox area, byte zoomLevel) {
+			this.area = area;
+			this.zoomLevel = zoomLevel;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see android.os.AsyncTask#doInBackground(Params[])
+		 */
+		@Override
+		protected MarkerLoader.Changes doInBackground(Void... params) {
 			
-			// play nice and tidy up
-			mCursor.close();
-			
-			// get the POI content
-			String[] mProjection = new String[3];
-			mProjection[0] = PointsOfInterestContract.Table._ID;
-			mProjection[1] = PointsOfInterestContract.Table.LATITUDE;
-			mProjection[2] = PointsOfInterestContract.Table.LONGITUDE;
-			
-			// determine if we need to restrict the list of POIs
-			String mSelection = null;
-			String[] mSelectionArgs = null;
+			try {
+				return markerLoader.load(meshPhoneNumber, locationMaxAge, poiMaxAge, showTrack, area, zoomLevel);
+			} catch (Exception e) {
+				Log.e(TAG, "unable to load the map markers", e);
+				return null;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see android.os.AsyncTask#onPostExecute(java.lang.Object)
+		 */
+		@Override
+		protected void onPostExecute(MarkerLoader.Changes changes) {
 			
-			// restrict the poi content returned if required
-			if(poiMaxAge != -1000) {
-				mSelection = PointsOfInterestContract.Table.TIMESTAMP + " > ? ";
-				mSelectionArgs = new String[1];
-				mSelectionArgs[0] = Long.toString(System.currentTimeMillis() - poiMaxAge);
+			if(changes != null) {
+				viewportOverlay.setLoadedArea(area);
+				
+				if(changes.isEmpty() == false) {
+					applyChanges(changes);
+				}
 			}
 			
-			mCursor = mContentResolver.query(
-					PointsOfInterestContract.CONTENT_URI, 
-					mProjection, 
-					mSelection, 
-					mSelectionArgs,
-					null);
+			// indicate that a map update is finished
+			updateRunning = false;
 			
-			if(mCursor == null) {
-				Log.i(TAG, "a null cursor was returned when looking up POI info");
-				return;
+			if(refreshPending) {
+				// the data changed while this update was running
+				scheduleRefresh();
+			} else if(changes != null && changes.nextExpiry != -1) {
+				// refresh when the oldest marker needs to be removed
+				updateHandler.removeCallbacks(updateMapTask);
+				updateHandler.postDelayed(updateMapTask, Math.max(changes.nextExpiry - System.currentTimeMillis(), MIN_EXPIRY_DELAY));
 			}
+		}
+	}
+	
+	/*
+	 * apply the changes found by the marker loader to the overlays
+	 */
+	private void applyChanges(MarkerLoader.Changes changes) {
+		
+		boolean mRedraw = false;
+		OverlayItem mOverlayItem;
+		
+		// remove markers that are no longer required
+		for(String mKey : changes.removed) {
+			mOverlayItem = overlayItems.remove(mKey);
 			
-			if(V_LOG) {
-				Log.v(TAG, "rows in POI cursor: " + mCursor.getCount());
+			if(mOverlayItem != null) {
+				mRedraw |= markerClusters.remove(mOverlayItem);
 			}
+		}
+		
+		// move markers that have changed location
+		for(MarkerLoader.Marker mMarker : changes.moved) {
+			mOverlayItem = overlayItems.get(mMarker.key);
 			
-			// process the list of poi records
-			if(mCursor.getCount() > 0) {
-				// process the location records
-				GeoPoint mGeoPoint;
-				OverlayItem mOverlayItem;
-				
-				while(mCursor.moveToNext()) {
-					
-					// get the geographic coordinates
-					mGeoPoint = new GeoPoint(mCursor.getDouble(mCursor.getColumnIndex(PointsOfInterestContract.Table.LATITUDE)), mCursor.getDouble(mCursor.getColumnIndex(PointsOfInterestContract.Table.LONGITUDE)));
-					
-					mOverlayItem = new OverlayItem(mGeoPoint, null, null, poiLocationMarker);
-					mOverlayItem.setType(OverlayItems.POI_ITEM);
-					mOverlayItem.setRecordId(mCursor.getInt(mCursor.getColumnIndex(PointsOfInterestContract.Table._ID)));
-					
-					mItems.add(mOverlayItem);
+			if(mOverlayItem != null && mOverlayItem.getType() == mMarker.type) {
+				mOverlayItem.setRecordId(mMarker.recordId);
+				mOverlayItem.setPoint(mMarker.point);
+				mRedraw |= markerClusters.move(mOverlayItem);
+			} else {
+				// the type of marker has changed so replace it
+				if(mOverlayItem != null) {
+					mRedraw |= markerClusters.remove(mOverlayItem);
 				}
+				changes.added.add(mMarker);
 			}
+		}
+		
+		// add the new markers in one go
+		if(changes.added.isEmpty() == false) {
 			
-			// play nice and tidy up
-			mCursor.close();
+			ArrayList<OverlayItem> mItems = new ArrayList<OverlayItem>(changes.added.size());
 			
-			// build the gps track overlay if required
-			if(arrayWayOverlay != null) {
-				
-				// determine which fields to return
-				mProjection = new String[2];
-				mProjection[0] = LocationsContract.Table.LATITUDE;
-				mProjection[1] = LocationsContract.Table.LONGITUDE;
-				
-				// check if we need to take into account the age of the information
-				if(locationMaxAge != -1000) {
-				
-					mSelection = LocationsContract.Table.PHONE_NUMBER + " = ? AND "
-							+ LocationsContract.Table.TIMESTAMP + " > ?";
-					
-					mSelectionArgs = new String[2];
-					mSelectionArgs[0] = meshPhoneNumber;
-					mSelectionArgs[1] = Long.toString(System.currentTimeMillis() - locationMaxAge);
-				} else {
-					
-					mSelection = LocationsContract.Table.PHONE_NUMBER + " = ?";
-					
-					mSelectionArgs = new String[1];
-					mSelectionArgs[0] = meshPhoneNumber;
-				}
-				
-				// get the data
-				mCursor = mContentResolver.query(
-						LocationsContract.CONTENT_URI, 
-						mProjection, 
-						mSelection,
-						mSelectionArgs,
-						LocationsContract.Table.TIMESTAMP);
-				
-				if(mCursor.getCount() > 0) {
-					if(V_LOG) {
-						Log.v(TAG, "gps track contains: '" + mCursor.getCount() + "' points");
-					}
-					
-					// declare array to hold our list of points
-					GeoPoint[][] mWayPoints = new GeoPoint[1][mCursor.getCount()];
-					int mCount = 0;
-					GeoPoint mGeoPoint;
-					
-					// populate the array
-					while(mCursor.moveToNext()) {
-						mGeoPoint = new GeoPoint(mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LATITUDE)), mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LONGITUDE)));
-						mWayPoints[0][mCount] = mGeoPoint;
-						mCount++;
-					}
-					
-					// play nice and tidy up
-					mCursor.close();
-					
-					OverlayWay mOverlayWay = new OverlayWay(mWayPoints, null, null);
-					
-					// update the overlay
-					arrayWayOverlay.clear();
-					arrayWayOverlay.addWay(mOverlayWay);
-				}
+			for(MarkerLoader.Marker mMarker : changes.added) {
+				mOverlayItem = new OverlayItem(mMarker.point, null, null, getMarkerDrawable(mMarker.type));
+				mOverlayItem.setType(mMarker.type);
+				mOverlayItem.setRecordId(mMarker.recordId);
 				
+				overlayItems.put(mMarker.key, mOverlayItem);
+				mItems.add(mOverlayItem);
 			}
 			
-			// update and redraw the overlay
-			overlayList.clear();
-			overlayList.addItems(mItems);
+			mRedraw |= markerClusters.addAll(mItems);
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "map markers added: " + changes.added.size() + " moved: " + changes.moved.size() + " removed: " + changes.removed.size());
+		}
+		
+		// recenter the map if required
+		if(keepCentered && changes.self != null) {
+			mapView.getController().setCenter(changes.self.point);
+			if(V_LOG) {
+				Log.v(TAG, "map was recentered");
+			}
+		}
+		
+		if(mRedraw) {
 			overlayList.requestRedraw();
+		}
+		
+		// update the gps track overlay
+		if(changes.track != null && arrayWayOverlay != null) {
 			
-			if(arrayWayOverlay != null) {
-				arrayWayOverlay.requestRedraw();
+			if(trackOverlayWay == null) {
+				trackOverlayWay = new OverlayWay(changes.track, null, null);
+				arrayWayOverlay.addWay(trackOverlayWay);
+			} else {
+				trackOverlayWay.setWayNodes(changes.track);
 			}
 			
-			// indicate that a map update is finished
-			updateRunning = false;
-			
-			// add the task back onto the queue
-			updateHandler.postDelayed(updateMapTask, updateDelay);
+			arrayWayOverlay.requestRedraw();
 		}
-	};	
+	}
+	
+	/*
+	 * get the drawable used for a type of marker
+	 */
+	private Drawable getMarkerDrawable(int type) {
+		switch(type) {
+		case OverlayItems.SELF_LOCATION_ITEM:
+			return selfLocationMarker;
+		case OverlayItems.PEER_LOCATION_ITEM:
+			return peerLocationMarker;
+		default:
+			return poiLocationMarker;
+		}
+	}
 }
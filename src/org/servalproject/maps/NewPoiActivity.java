@@ -23,7 +23,9 @@ import java.io.File;
 import java.util.TimeZone;
 
 import org.servalproject.maps.location.LocationCollector;
+import org.servalproject.maps.protobuf.BinaryFileContract;
 import org.servalproject.maps.protobuf.BinaryFileWriter;
+import org.servalproject.maps.protobuf.PointOfInterestMessage;
 import org.servalproject.maps.provider.PointsOfInterestContract;
 import org.servalproject.maps.utils.FileUtils;
 import org.servalproject.maps.utils.HashUtils;
@@ -408,10 +410,13 @@ public class NewPoiActivity extends Activity implements OnClickListener{
 			mValues.put(PointsOfInterestContract.Table.PHOTO, new File(mPhotoName).getName());
 		}
 		
+		// build the binary message from the same values before the provider adds to them
+		PointOfInterestMessage.Message mMessage = BinaryFileContract.buildPointOfInterestMessage(mValues);
+		
 		try {
 			Uri newRecord = getContentResolver().insert(PointsOfInterestContract.CONTENT_URI, mValues);
 			
-			BinaryFileWriter.writePointOfInterest(this, newRecord.getLastPathSegment());
+			BinaryFileWriter.writePointOfInterest(this, mMessage);
 			if(V_LOG) {
 				Log.v(TAG, "new POI record created with id: " + newRecord.getLastPathSegment());
 			}
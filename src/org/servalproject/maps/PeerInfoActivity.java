@@ -20,7 +20,7 @@
 package org.servalproject.maps;
 
 import org.servalproject.maps.location.LocationCollector;
-import org.servalproject.maps.provider.LocationsContract;
+import org.servalproject.maps.provider.MapItemsCache;
 import org.servalproject.maps.utils.GeoUtils;
 import org.servalproject.maps.utils.TimeUtils;
 
@@ -62,21 +62,16 @@ public class PeerInfoActivity extends Activity implements OnClickListener {
         
         Intent mIntent = getIntent();
         
-		// resolve the content uri
+		// get the peer from the cache, which only goes to the database if required
 		ContentResolver mContentResolver = getApplicationContext().getContentResolver();
 		
-		Uri mContentUri = Uri.parse(LocationsContract.CONTENT_URI.toString() + "/" + mIntent.getIntExtra("recordId", -1));
-		
-		// get the content
-		Cursor mCursor = mContentResolver.query(mContentUri, null, null, null, null);
+		MapItemsCache.Peer mPeer = MapItemsCache.getPeer(mContentResolver, mIntent.getIntExtra("recordId", -1));
 		
 		// populate the activity
-		if(mCursor.getCount() == 1) {
-			
-			mCursor.moveToFirst();
+		if(mPeer != null) {
 			
 			TextView mView = (TextView) findViewById(R.id.peer_info_ui_txt_phone_number);
-			phoneNumber = mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.PHONE_NUMBER));
+			phoneNumber = mPeer.phoneNumber;
 			
 			// display the contacts name or their phone number
 			String mDisplayName = getDisplayName(phoneNumber);
@@ -88,16 +83,16 @@ public class PeerInfoActivity extends Activity implements OnClickListener {
 			}
 			
 			mView = (TextView) findViewById(R.id.peer_info_ui_txt_latitude);
-			mView.setText(mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.LATITUDE)));
+			mView.setText(Double.toString(mPeer.latitude));
 			
 			mView = (TextView) findViewById(R.id.peer_info_ui_txt_longitude);
-			mView.setText(mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.LONGITUDE)));
+			mView.setText(Double.toString(mPeer.longitude));
 			
 			mView = (TextView) findViewById(R.id.peer_info_ui_txt_age);
 			mView.setText(
 					TimeUtils.calculateAge(
-						mCursor.getLong(mCursor.getColumnIndex(LocationsContract.Table.TIMESTAMP)),
-						mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.TIMEZONE)),
+						mPeer.timestamp,
+						mPeer.timeZone,
 						getApplicationContext()));
 			
 			// calculate the distance between user and POI if possible
@@ -112,8 +107,8 @@ public class PeerInfoActivity extends Activity implements OnClickListener {
 				String mDistanceAsString = GeoUtils.calculateDistanceWithDefaults(
 						mLocation.getLatitude(), 
 						mLocation.getLongitude(),
-						mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LATITUDE)),
-						mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LONGITUDE)),
+						mPeer.latitude,
+						mPeer.longitude,
 						this);
 				
 				mView.setText(mDistanceAsString);
@@ -125,13 +120,9 @@ public class PeerInfoActivity extends Activity implements OnClickListener {
 			// show an error
 			Toast.makeText(getApplicationContext(), R.string.peer_info_toast_no_record_error, Toast.LENGTH_LONG).show();
 			Log.e(TAG, "Unable to load records, supplied id: " + mIntent.getIntExtra("recordId", -1));
-			mCursor.close();
 			finish();
 		}
 		
-		// play nice and tidy up
-		mCursor.close();
-		
 		// capture the touch on the buttons
 		Button mButton = (Button) findViewById(R.id.peer_info_ui_btn_call);
 		mButton.setOnClickListener(this);
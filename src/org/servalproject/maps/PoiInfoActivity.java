@@ -23,8 +23,7 @@ import java.io.File;
 import java.io.IOException;
 
 import org.servalproject.maps.location.LocationCollector;
-import org.servalproject.maps.provider.LocationsContract;
-import org.servalproject.maps.provider.PointsOfInterestContract;
+import org.servalproject.maps.provider.MapItemsCache;
 import org.servalproject.maps.utils.FileUtils;
 import org.servalproject.maps.utils.GeoUtils;
 import org.servalproject.maps.utils.MediaUtils;
@@ -33,7 +32,6 @@ import org.servalproject.maps.utils.TimeUtils;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
@@ -73,34 +71,29 @@ public class PoiInfoActivity extends Activity implements OnClickListener {
         
         Intent mIntent = getIntent();
         
-		// resolve the content uri
+		// get the point of interest from the cache
 		ContentResolver mContentResolver = getApplicationContext().getContentResolver();
 		
-		Uri mContentUri = Uri.parse(PointsOfInterestContract.CONTENT_URI.toString() + "/" + mIntent.getIntExtra("recordId", -1));
-		
-		// get the content
-		Cursor mCursor = mContentResolver.query(mContentUri, null, null, null, null);
+		MapItemsCache.PointOfInterest mPointOfInterest = MapItemsCache.getPointOfInterest(mContentResolver, mIntent.getIntExtra("recordId", -1));
 		
 		// populate the activity
-		if(mCursor.getCount() == 1) {
-			
-			mCursor.moveToFirst();
+		if(mPointOfInterest != null) {
 			
 			TextView mView = (TextView) findViewById(R.id.poi_info_ui_txt_title);
-			mView.setText(mCursor.getString(mCursor.getColumnIndex(PointsOfInterestContract.Table.TITLE)));
+			mView.setText(mPointOfInterest.title);
 			
 			mView = (TextView) findViewById(R.id.poi_info_ui_txt_description);
-			mView.setText(mCursor.getString(mCursor.getColumnIndex(PointsOfInterestContract.Table.DESCRIPTION)));
+			mView.setText(mPointOfInterest.description);
 			
 			mView = (TextView) findViewById(R.id.poi_info_ui_txt_age);
 			mView.setText(
 					TimeUtils.calculateAge(
-						mCursor.getLong(mCursor.getColumnIndex(PointsOfInterestContract.Table.TIMESTAMP)),
-						mCursor.getString(mCursor.getColumnIndex(PointsOfInterestContract.Table.TIMEZONE)),
+						mPointOfInterest.timestamp,
+						mPointOfInterest.timeZone,
 						getApplicationContext()));
 			
 			// check to see if we need to show the view photo button
-			photoName = mCursor.getString(mCursor.getColumnIndex(PointsOfInterestContract.Table.PHOTO));
+			photoName = mPointOfInterest.photo;
 			Button mButton = (Button) findViewById(R.id.poi_info_ui_btn_photo);
 			
 			if(photoName == null) {
@@ -124,8 +117,8 @@ public class PoiInfoActivity extends Activity implements OnClickListener {
 				String mDistanceAsString = GeoUtils.calculateDistanceWithDefaults(
 						mLocation.getLatitude(), 
 						mLocation.getLongitude(),
-						mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LATITUDE)),
-						mCursor.getDouble(mCursor.getColumnIndex(LocationsContract.Table.LONGITUDE)),
+						mPointOfInterest.latitude,
+						mPointOfInterest.longitude,
 						this);
 				
 				mView.setText(mDistanceAsString);
@@ -137,12 +130,8 @@ public class PoiInfoActivity extends Activity implements OnClickListener {
 			// show error
 			Toast.makeText(getApplicationContext(), R.string.poi_info_toast_no_record_error, Toast.LENGTH_LONG).show();
 			Log.e(TAG, "Unable to load records, supplied id: " + mIntent.getIntExtra("recordId", -1));
-			mCursor.close();
 			finish();
 		}
-		
-		// play nice and tidy up
-		mCursor.close();
     }
 
 	@Override
@@ -20,6 +20,7 @@
 package org.servalproject.maps;
 
 import org.servalproject.maps.location.LocationCollector;
+import org.servalproject.maps.provider.CursorColumns;
 import org.servalproject.maps.provider.PointsOfInterestContract;
 import org.servalproject.maps.utils.GeoUtils;
 import org.servalproject.maps.utils.TimeUtils;
@@ -43,6 +44,15 @@ public class PoiListAdapter extends SimpleCursorAdapter {
 	private int[] to;
 	
 	private Location location;
+	
+	// column indexes are looked up once per cursor rather than for every row
+	private CursorColumns columns;
+	private CursorColumns fromColumns;
+	
+	private static final int TIMESTAMP = 0;
+	private static final int TIMEZONE = 1;
+	private static final int LATITUDE = 2;
+	private static final int LONGITUDE = 3;
 
 	public static final int PLACE_HOLDER = -1;
 	
@@ -53,6 +63,14 @@ public class PoiListAdapter extends SimpleCursorAdapter {
 		this.to = to;
 		
 		location = LocationCollector.getLocation();
+		
+		columns = new CursorColumns(
+				PointsOfInterestContract.Table.TIMESTAMP,
+				PointsOfInterestContract.Table.TIMEZONE,
+				PointsOfInterestContract.Table.LATITUDE,
+				PointsOfInterestContract.Table.LONGITUDE);
+		
+		fromColumns = new CursorColumns(from);
 	}
 	
 	/*
@@ -64,6 +82,9 @@ public class PoiListAdapter extends SimpleCursorAdapter {
 		
 		TextView mTextView;
 		
+		columns.bind(cursor);
+		fromColumns.bind(cursor);
+		
 		// populate the view
 		for(int i = 0; i < to.length; i++) {
 			
@@ -73,8 +94,8 @@ public class PoiListAdapter extends SimpleCursorAdapter {
 				
 				mTextView.setText(
 					TimeUtils.calculateAge(
-						cursor.getLong(cursor.getColumnIndex(PointsOfInterestContract.Table.TIMESTAMP)),
-						cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.TIMEZONE)),
+						columns.getLong(TIMESTAMP),
+						columns.getString(TIMEZONE),
 						context
 					)
 				);
@@ -87,8 +108,8 @@ public class PoiListAdapter extends SimpleCursorAdapter {
 						GeoUtils.calculateDistanceWithDefaults(
 							location.getLatitude(),
 							location.getLongitude(),	
-							cursor.getDouble(cursor.getColumnIndex(PointsOfInterestContract.Table.LATITUDE)),
-							cursor.getDouble(cursor.getColumnIndex(PointsOfInterestContract.Table.LONGITUDE)),
+							columns.getDouble(LATITUDE),
+							columns.getDouble(LONGITUDE),
 							context)
 					);
 				} else {
@@ -98,7 +119,7 @@ public class PoiListAdapter extends SimpleCursorAdapter {
 			default:
 				if(to[i] != PLACE_HOLDER) {
 					mTextView = (TextView) view.findViewById(to[i]);
-					mTextView.setText(cursor.getString(cursor.getColumnIndex(from[i])));
+					mTextView.setText(fromColumns.getString(i));
 				}
 				break;
 			}
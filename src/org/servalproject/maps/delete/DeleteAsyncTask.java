@@ -26,6 +26,7 @@ import org.servalproject.maps.R;
 import org.servalproject.maps.protobuf.BinaryFileContract;
 import org.servalproject.maps.provider.LocationsContract;
 import org.servalproject.maps.provider.PointsOfInterestContract;
+import org.servalproject.maps.rhizome.IngestOffsets;
 import org.servalproject.maps.utils.FileUtils;
 import org.servalproject.maps.utils.MediaUtils;
 
@@ -229,6 +230,9 @@ public class DeleteAsyncTask extends AsyncTask<Void, Integer, Boolean> {
 			return false;
 		}
 		
+		// files received via rhizome need to be read from the start again
+		IngestOffsets.clear(context);
+		
 		// update the UI
 		publishProgress(4);
 		
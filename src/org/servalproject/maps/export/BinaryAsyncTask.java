@@ -26,7 +26,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import org.servalproject.maps.R;
+import org.servalproject.maps.protobuf.ArchiveFileContract;
+import org.servalproject.maps.protobuf.ArchiveWriter;
 import org.servalproject.maps.protobuf.BinaryFileContract;
+import org.servalproject.maps.provider.CursorColumns;
 import org.servalproject.maps.provider.LocationsContract;
 import org.servalproject.maps.provider.PointsOfInterestContract;
 import org.servalproject.maps.utils.FileUtils;
@@ -69,6 +72,11 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 	
 	private Integer recordCount = -1;
 	
+	private boolean archive = false;
+	
+	// size of the buffer used when writing the export file
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	
 	public BinaryAsyncTask(Activity context, ProgressBar progressBar, TextView progressLabel) {
 		
 		// check the parameters
@@ -85,6 +93,19 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 		}
 	}
 	
+	/**
+	 * construct a new export task
+	 * 
+	 * @param context the activity that started the export
+	 * @param progressBar the progress bar used to show the progress of the export
+	 * @param progressLabel the label used to show which records are being exported
+	 * @param archive if true location records are exported in the compressed archive format
+	 */
+	public BinaryAsyncTask(Activity context, ProgressBar progressBar, TextView progressLabel, boolean archive) {
+		this(context, progressBar, progressLabel);
+		this.archive = archive;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see android.os.AsyncTask#onPreExecute()
@@ -225,22 +246,17 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 		updateUI = true;
 		updateForLocation = true;
 		
-		// get all of the location data
+		// get all of the location data a chunk at a time
 		ContentResolver mContentResolver = context.getApplicationContext().getContentResolver();
 		
-		// get the content
-		Cursor mCursor = mContentResolver.query(
-				LocationsContract.CONTENT_URI, 
-				null, 
-				null, 
-				null, 
-				null);
+		RecordPager mPager = new RecordPager(mContentResolver, LocationsContract.CONTENT_URI, BinaryFileContract.getLocationColumns());
+		
+		int mTotal = mPager.getCount();
 		
 		// check on what was returned
-		if(mCursor.getCount() > 0) {
+		if(mTotal > 0) {
 			
-			progressBar.setMax(mCursor.getCount());
-			mRecordCount = mCursor.getCount();
+			progressBar.setMax(mTotal);
 			
 			// get the export directory 
 			// get the path for the output files
@@ -249,45 +265,70 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 			
 			if(FileUtils.isDirectoryWritable(mOutputPath) == false) {
 				Log.e(TAG, "unable to access the required output directory");
-				mCursor.close();
 				return 0;
 			}
 			
 			// build the output file name
-			String mFileName = "serval-maps-export-" + TimeUtils.getToday() + BinaryFileContract.LOCATION_EXT;
+			String mFileName = "serval-maps-export-" + TimeUtils.getToday();
+			
+			if(archive) {
+				mFileName += ArchiveFileContract.ARCHIVE_EXT;
+			} else {
+				mFileName += BinaryFileContract.LOCATION_EXT;
+			}
 			
 			// write the data to the file
 			OutputStream mOutput = null;
+			ArchiveWriter mArchive = null;
 			
 			try {
-				mOutput = new BufferedOutputStream(new FileOutputStream(mOutputPath + mFileName, false));
+				mOutput = new BufferedOutputStream(new FileOutputStream(mOutputPath + mFileName, false), OUTPUT_BUFFER_SIZE);
+				
+				if(archive) {
+					mArchive = new ArchiveWriter(mOutput);
+				}
+				
+				CursorColumns mColumns;
 				
-				while(mCursor.moveToNext()) {
+				// check to see if we need to cancel this task between chunks
+				while(isCancelled() == false && (mColumns = mPager.nextChunk()) != null) {
 					
-					BinaryFileContract.writeLocationRecord(mCursor, mOutput);
+					Cursor mCursor = mColumns.getCursor();
 					
-					publishProgress(mCursor.getPosition());
+					while(mCursor.moveToNext()) {
+						
+						if(mArchive != null) {
+							BinaryFileContract.writeLocationRecord(mColumns, mArchive);
+						} else {
+							BinaryFileContract.writeLocationRecord(mColumns, mOutput);
+						}
+						
+						mRecordCount++;
+					}
 					
-					// check to see if we need to cancel this task
-					if(isCancelled() == true) {
-						break;
+					if(mPager.isProgressDue()) {
+						publishProgress(mRecordCount);
 					}
 				}
 				
+				publishProgress(mRecordCount);
+				
 			} catch (FileNotFoundException e) {
 				Log.e(TAG, "unable to open the output file", e);
 			} catch (IOException e) {
-				Log.e(TAG, "unable to write the message at '" + mCursor.getPosition() + "' in the cursor", e);
+				Log.e(TAG, "unable to write the record at '" + mRecordCount + "' in the export", e);
 			} finally {
-				// play nice and tidy up
+				// play nice and tidy up, closing the archive writes its index and closes the file
 				try {
-					if(mOutput != null) {
+					if(mArchive != null) {
+						mArchive.close();
+					} else if(mOutput != null) {
 						mOutput.close();
 					}
 				} catch (IOException e) {
 					Log.e(TAG, "unable to close the output file", e);
 				}
-				mCursor.close();
+				mPager.close();
 			}
 		}
 		
@@ -297,6 +338,10 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 	// private method to undetake a POI export
 	private Integer doPoiExport() {
 		
+		if(V_LOG) {
+			Log.v(TAG, "doPoiExport called: ");
+		}
+		
 		// reset the progress bar
 		progressBar.setProgress(0);
 		Integer mRecordCount = 0;
@@ -304,26 +349,17 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 		updateUI = true;
 		updateForPoi = true;
 		
-		if(V_LOG) {
-			Log.v(TAG, "doPoiExport called: ");
-		}
-		
-		// get all of the location data
+		// get all of the POI data a chunk at a time
 		ContentResolver mContentResolver = context.getApplicationContext().getContentResolver();
 		
-		// get the content
-		Cursor mCursor = mContentResolver.query(
-				PointsOfInterestContract.CONTENT_URI, 
-				null, 
-				null, 
-				null, 
-				null);
+		RecordPager mPager = new RecordPager(mContentResolver, PointsOfInterestContract.CONTENT_URI, BinaryFileContract.getPointOfInterestColumns());
+		
+		int mTotal = mPager.getCount();
 		
 		// check on what was returned
-		if(mCursor.getCount() > 0) {
+		if(mTotal > 0) {
 			
-			progressBar.setMax(mCursor.getCount());
-			mRecordCount = mCursor.getCount();
+			progressBar.setMax(mTotal);
 			
 			// get the export directory 
 			// get the path for the output files
@@ -332,34 +368,43 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 			
 			if(FileUtils.isDirectoryWritable(mOutputPath) == false) {
 				Log.e(TAG, "unable to access the required output directory");
-				mCursor.close();
 				return 0;
 			}
 			
 			// build the output file name
 			String mFileName = "serval-maps-export-" + TimeUtils.getToday() + BinaryFileContract.POI_EXT;
 			
+			// write the data to the file
 			OutputStream mOutput = null;
 			
 			try {
-				mOutput = new BufferedOutputStream(new FileOutputStream(mOutputPath + mFileName, false));
+				mOutput = new BufferedOutputStream(new FileOutputStream(mOutputPath + mFileName, false), OUTPUT_BUFFER_SIZE);
 				
-				while(mCursor.moveToNext()) {
+				CursorColumns mColumns;
+				
+				// check to see if we need to cancel this task between chunks
+				while(isCancelled() == false && (mColumns = mPager.nextChunk()) != null) {
 					
-					BinaryFileContract.writePointOfInterestRecord(mCursor, mOutput);
+					Cursor mCursor = mColumns.getCursor();
 					
-					publishProgress(mCursor.getPosition());
+					while(mCursor.moveToNext()) {
+						
+						BinaryFileContract.writePointOfInterestRecord(mColumns, mOutput);
+						
+						mRecordCount++;
+					}
 					
-					// check to see if we need to cancel this task
-					if(isCancelled() == true) {
-						break;
+					if(mPager.isProgressDue()) {
+						publishProgress(mRecordCount);
 					}
 				}
 				
+				publishProgress(mRecordCount);
+				
 			} catch (FileNotFoundException e) {
 				Log.e(TAG, "unable to open the output file", e);
 			} catch (IOException e) {
-				Log.e(TAG, "unable to write the message at '" + mCursor.getPosition() + "' in the cursor", e);
+				Log.e(TAG, "unable to write the record at '" + mRecordCount + "' in the export", e);
 			} finally {
 				// play nice and tidy up
 				try {
@@ -369,7 +414,7 @@ public class BinaryAsyncTask extends AsyncTask<String, Integer, Integer> {
 				} catch (IOException e) {
 					Log.e(TAG, "unable to close the output file", e);
 				}
-				mCursor.close();
+				mPager.close();
 			}
 		}
 		
@@ -28,6 +28,7 @@ import java.util.Arrays;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.servalproject.maps.R;
+import org.servalproject.maps.provider.CursorColumns;
 import org.servalproject.maps.provider.LocationsContract;
 import org.servalproject.maps.provider.PointsOfInterestContract;
 import org.servalproject.maps.utils.FileUtils;
@@ -72,6 +73,9 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 	
 	private Integer recordCount = -1;
 	
+	// size of the buffer used when writing the export file
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	
 	public CsvAsyncTask(Activity context, ProgressBar progressBar, TextView progressLabel) {
 		
 		// check the parameters
@@ -228,22 +232,17 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 		updateUI = true;
 		updateForLocation = true;
 		
-		// get all of the location data
+		// get all of the location data a chunk at a time
 		ContentResolver mContentResolver = context.getApplicationContext().getContentResolver();
 		
-		// get the content
-		Cursor mCursor = mContentResolver.query(
-				LocationsContract.CONTENT_URI, 
-				null, 
-				null, 
-				null, 
-				null);
+		RecordPager mPager = new RecordPager(mContentResolver, LocationsContract.CONTENT_URI, new CursorColumns(LocationsContract.Table.COLUMNS));
+		
+		int mTotal = mPager.getCount();
 		
 		// check on what was returned
-		if(mCursor.getCount() > 0) {
+		if(mTotal > 0) {
 			
-			progressBar.setMax(mCursor.getCount());
-			mRecordCount = mCursor.getCount();
+			progressBar.setMax(mTotal);
 			
 			// get the export directory 
 			// get the path for the output files
@@ -252,7 +251,6 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 			
 			if(FileUtils.isDirectoryWritable(mOutputPath) == false) {
 				Log.e(TAG, "unable to access the required output directory");
-				mCursor.close();
 				return 0;
 			}
 			
@@ -265,8 +263,7 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 			String[] mLine = new String[LocationsContract.Table.COLUMNS.length];
 			
 			try {
-				//mOutput = new BufferedOutputStream(new FileOutputStream(mOutputPath + mFileName, false));
-				mOutput = new BufferedWriter(new FileWriter(mOutputPath + mFileName, false));
+				mOutput = new BufferedWriter(new FileWriter(mOutputPath + mFileName, false), OUTPUT_BUFFER_SIZE);
 				
 				CSVPrinter mPrinter = new CSVPrinter(mOutput, csvFormat);
 				
@@ -275,26 +272,35 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 				mPrinter.printComment("File created: " + TimeUtils.getToday());
 				mPrinter.printComment(Arrays.toString(LocationsContract.Table.COLUMNS));
 				
-				while(mCursor.moveToNext()) {
-					
-					for(int i = 0; i < LocationsContract.Table.COLUMNS.length; i++) {
-						mLine[i] = mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.COLUMNS[i]));
-					}
+				CursorColumns mColumns;
+				
+				// check to see if we need to cancel this task between chunks
+				while(isCancelled() == false && (mColumns = mPager.nextChunk()) != null) {
 					
-					mPrinter.println(mLine);
+					Cursor mCursor = mColumns.getCursor();
 					
-					publishProgress(mCursor.getPosition());
+					while(mCursor.moveToNext()) {
+						
+						for(int i = 0; i < mLine.length; i++) {
+							mLine[i] = mColumns.getString(i);
+						}
+						
+						mPrinter.println(mLine);
+						
+						mRecordCount++;
+					}
 					
-					// check to see if we need to cancel this task
-					if(isCancelled() == true) {
-						break;
+					if(mPager.isProgressDue()) {
+						publishProgress(mRecordCount);
 					}
 				}
 				
+				publishProgress(mRecordCount);
+				
 			} catch (FileNotFoundException e) {
 				Log.e(TAG, "unable to open the output file", e);
 			} catch (IOException e) {
-				Log.e(TAG, "unable to write the message at '" + mCursor.getPosition() + "' in the cursor", e);
+				Log.e(TAG, "unable to write the record at '" + mRecordCount + "' in the export", e);
 			} finally {
 				// play nice and tidy up
 				try {
@@ -304,7 +310,7 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 				} catch (IOException e) {
 					Log.e(TAG, "unable to close the output file", e);
 				}
-				mCursor.close();
+				mPager.close();
 			}
 		}
 		
@@ -314,6 +320,10 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 	// private method to undetake a POI export
 	private Integer doPoiExport() {
 		
+		if(V_LOG) {
+			Log.v(TAG, "doPoiExport called: ");
+		}
+		
 		// reset the progress bar
 		progressBar.setProgress(0);
 		Integer mRecordCount = 0;
@@ -321,26 +331,17 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 		updateUI = true;
 		updateForPoi = true;
 		
-		if(V_LOG) {
-			Log.v(TAG, "doPoiExport called: ");
-		}
-		
-		// get all of the location data
+		// get all of the POI data a chunk at a time
 		ContentResolver mContentResolver = context.getApplicationContext().getContentResolver();
 		
-		// get the content
-		Cursor mCursor = mContentResolver.query(
-				PointsOfInterestContract.CONTENT_URI, 
-				null, 
-				null, 
-				null, 
-				null);
+		RecordPager mPager = new RecordPager(mContentResolver, PointsOfInterestContract.CONTENT_URI, new CursorColumns(PointsOfInterestContract.Table.COLUMNS));
+		
+		int mTotal = mPager.getCount();
 		
 		// check on what was returned
-		if(mCursor.getCount() > 0) {
+		if(mTotal > 0) {
 			
-			progressBar.setMax(mCursor.getCount());
-			mRecordCount = mCursor.getCount();
+			progressBar.setMax(mTotal);
 			
 			// get the export directory 
 			// get the path for the output files
@@ -349,7 +350,6 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 			
 			if(FileUtils.isDirectoryWritable(mOutputPath) == false) {
 				Log.e(TAG, "unable to access the required output directory");
-				mCursor.close();
 				return 0;
 			}
 			
@@ -362,8 +362,7 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 			String[] mLine = new String[PointsOfInterestContract.Table.COLUMNS.length];
 			
 			try {
-				//mOutput = new BufferedOutputStream(new FileOutputStream(mOutputPath + mFileName, false));
-				mOutput = new BufferedWriter(new FileWriter(mOutputPath + mFileName, false));
+				mOutput = new BufferedWriter(new FileWriter(mOutputPath + mFileName, false), OUTPUT_BUFFER_SIZE);
 				
 				CSVPrinter mPrinter = new CSVPrinter(mOutput, csvFormat);
 				
@@ -372,26 +371,35 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 				mPrinter.printComment("File created: " + TimeUtils.getToday());
 				mPrinter.printComment(Arrays.toString(PointsOfInterestContract.Table.COLUMNS));
 				
-				while(mCursor.moveToNext()) {
-					
-					for(int i = 0; i < PointsOfInterestContract.Table.COLUMNS.length; i++) {
-						mLine[i] = mCursor.getString(mCursor.getColumnIndex(PointsOfInterestContract.Table.COLUMNS[i]));
-					}
+				CursorColumns mColumns;
+				
+				// check to see if we need to cancel this task between chunks
+				while(isCancelled() == false && (mColumns = mPager.nextChunk()) != null) {
 					
-					mPrinter.println(mLine);
+					Cursor mCursor = mColumns.getCursor();
 					
-					publishProgress(mCursor.getPosition());
+					while(mCursor.moveToNext()) {
+						
+						for(int i = 0; i < mLine.length; i++) {
+							mLine[i] = mColumns.getString(i);
+						}
+						
+						mPrinter.println(mLine);
+						
+						mRecordCount++;
+					}
 					
-					// check to see if we need to cancel this task
-					if(isCancelled() == true) {
-						break;
+					if(mPager.isProgressDue()) {
+						publishProgress(mRecordCount);
 					}
 				}
 				
+				publishProgress(mRecordCount);
+				
 			} catch (FileNotFoundException e) {
 				Log.e(TAG, "unable to open the output file", e);
 			} catch (IOException e) {
-				Log.e(TAG, "unable to write the message at '" + mCursor.getPosition() + "' in the cursor", e);
+				Log.e(TAG, "unable to write the record at '" + mRecordCount + "' in the export", e);
 			} finally {
 				// play nice and tidy up
 				try {
@@ -401,7 +409,7 @@ public class CsvAsyncTask extends AsyncTask<String, Integer, Integer> {
 				} catch (IOException e) {
 					Log.e(TAG, "unable to close the output file", e);
 				}
-				mCursor.close();
+				mPager.close();
 			}
 		}
 		
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.export;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.servalproject.maps.provider.CursorColumns;
+import org.servalproject.maps.provider.MapItems;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+
+/**
+ * reads all of the records in a table in chunks ordered by record id, so the
+ * whole table is never held in one cursor and the CursorWindow limits are not
+ * reached however large the table is
+ * 
+ * each chunk is a new query for the records after the last id that was read,
+ * which uses the primary key index rather than an offset that has to be counted
+ */
+class RecordPager {
+	
+	/*
+	 * class level constants
+	 */
+	
+	// number of records read in each chunk
+	static final int CHUNK_SIZE = 1000;
+	
+	// minimum time in milliseconds between progress updates
+	static final long PROGRESS_INTERVAL = 250;
+	
+	/*
+	 * private class level variables
+	 */
+	private ContentResolver contentResolver;
+	private Uri contentUri;
+	private CursorColumns columns;
+	private String[] projection;
+	
+	private Cursor cursor = null;
+	private int idIndex;
+	private long lastId = -1;
+	private boolean finished = false;
+	
+	private long lastProgress = 0;
+	
+	/**
+	 * construct a new pager
+	 * 
+	 * @param contentResolver the content resolver used to query the table
+	 * @param contentUri the uri of the whole table
+	 * @param columns the columns to read, they are bound to the cursor for each chunk
+	 */
+	RecordPager(ContentResolver contentResolver, Uri contentUri, CursorColumns columns) {
+		
+		if(contentResolver == null || contentUri == null || columns == null) {
+			throw new IllegalArgumentException("all parameters are required");
+		}
+		
+		this.contentResolver = contentResolver;
+		this.contentUri = contentUri;
+		this.columns = columns;
+		
+		// the record id is always needed to find the start of the next chunk
+		ArrayList<String> mProjection = new ArrayList<String>(Arrays.asList(columns.getNames()));
+		
+		if(mProjection.contains(BaseColumns._ID) == false) {
+			mProjection.add(BaseColumns._ID);
+		}
+		
+		projection = mProjection.toArray(new String[mProjection.size()]);
+	}
+	
+	/**
+	 * count the records in the table without reading them
+	 * 
+	 * @return the number of records
+	 */
+	int getCount() {
+		
+		String[] mProjection = {"COUNT(*)"};
+		
+		Cursor mCursor = contentResolver.query(contentUri, mProjection, null, null, null);
+		
+		if(mCursor == null) {
+			return 0;
+		}
+		
+		try {
+			if(mCursor.moveToFirst()) {
+				return mCursor.getInt(0);
+			} else {
+				return 0;
+			}
+		} finally {
+			mCursor.close();
+		}
+	}
+	
+	/**
+	 * move to the next chunk of records, closing the previous chunk
+	 * 
+	 * @return the columns bound to the cursor for the next chunk, or null if there are no more records
+	 */
+	CursorColumns nextChunk() {
+		
+		if(cursor != null) {
+			
+			// start the next chunk after the last record in this one
+			if(cursor.moveToLast()) {
+				lastId = cursor.getLong(idIndex);
+			}
+			
+			cursor.close();
+			cursor = null;
+		}
+		
+		if(finished) {
+			return null;
+		}
+		
+		String[] mSelectionArgs = {Long.toString(lastId)};
+		
+		cursor = contentResolver.query(
+				MapItems.withLimit(contentUri, CHUNK_SIZE),
+				projection,
+				BaseColumns._ID + " > ?",
+				mSelectionArgs,
+				BaseColumns._ID + " ASC");
+		
+		if(cursor == null || cursor.getCount() == 0) {
+			close();
+			finished = true;
+			return null;
+		}
+		
+		// a short chunk is the last one
+		if(cursor.getCount() < CHUNK_SIZE) {
+			finished = true;
+		}
+		
+		idIndex = cursor.getColumnIndex(BaseColumns._ID);
+		
+		return columns.bind(cursor);
+	}
+	
+	/**
+	 * check to see if enough time has passed since the last progress update
+	 * so that the UI isn't flooded with updates
+	 * 
+	 * @return true if progress should be published
+	 */
+	boolean isProgressDue() {
+		
+		long mNow = SystemClock.uptimeMillis();
+		
+		if(mNow - lastProgress >= PROGRESS_INTERVAL) {
+			lastProgress = mNow;
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * close the cursor for the current chunk
+	 */
+	void close() {
+		
+		if(cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+	}
+}
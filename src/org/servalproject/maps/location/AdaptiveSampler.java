@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.location;
+
+import android.location.Location;
+
+/**
+ * decides which location fixes are worth recording by predicting where the
+ * user should be from the last recorded fix and the speed and heading
+ * estimated from recent fixes, a fix is only recorded when it is further from
+ * the prediction than the error threshold of the profile
+ * 
+ * a user who is stationary or moving in a straight line at a steady speed
+ * is recorded rarely while turns and changes of speed are recorded as they happen
+ */
+class AdaptiveSampler {
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// metres per degree of latitude, and of longitude at the equator
+	private static final double METRES_PER_DEGREE = 111320;
+	
+	// weight given to the newest velocity estimate
+	private static final double SMOOTHING = 0.5;
+	
+	// speeds in metres per second below this are treated as stationary jitter
+	private static final double STATIONARY_SPEED = 0.5;
+	
+	// fixes less accurate than this in metres are never recorded
+	private static final float MAXIMUM_ACCURACY = 200;
+	
+	/*
+	 * private class level variables
+	 */
+	
+	// the previous fix, used to estimate the velocity
+	private boolean hasFix = false;
+	private double fixLatitude;
+	private double fixLongitude;
+	private long fixTime;
+	
+	// smoothed velocity in metres per second
+	private boolean hasVelocity = false;
+	private double velocityNorth;
+	private double velocityEast;
+	
+	// the last recorded fix and the velocity at the time it was recorded
+	private boolean hasRecord = false;
+	private double recordLatitude;
+	private double recordLongitude;
+	private long recordTime;
+	private double recordNorth;
+	private double recordEast;
+	
+	/**
+	 * decide if a new fix should be recorded, every fix should be passed
+	 * to this method so that the speed and heading can be estimated
+	 * 
+	 * @param location the new fix
+	 * @param profile the profile that provides the error threshold and maximum record interval
+	 * @return true if the fix should be recorded
+	 */
+	public boolean shouldRecord(Location location, CollectionProfile profile) {
+		
+		if(location == null) {
+			throw new IllegalArgumentException("the location parameter is required");
+		}
+		
+		if(profile == null) {
+			throw new IllegalArgumentException("the profile parameter is required");
+		}
+		
+		// fixes from before the previous one add nothing to the track
+		if(hasFix && location.getTime() <= fixTime) {
+			return false;
+		}
+		
+		updateVelocity(location);
+		
+		if(location.hasAccuracy() && location.getAccuracy() > MAXIMUM_ACCURACY) {
+			return false;
+		}
+		
+		if(hasRecord == false) {
+			return record(location);
+		}
+		
+		long mElapsed = location.getTime() - recordTime;
+		
+		// record at least once in each interval so peers know the user is still there
+		if(mElapsed >= profile.getMaxRecordInterval()) {
+			return record(location);
+		}
+		
+		// dead reckoning from the last recorded fix
+		double mSeconds = mElapsed / 1000d;
+		double mPredictedNorth = recordNorth * mSeconds;
+		double mPredictedEast = recordEast * mSeconds;
+		
+		double mNorth = getNorth(recordLatitude, location.getLatitude());
+		double mEast = getEast(recordLatitude, recordLongitude, location.getLongitude());
+		
+		double mError = Math.hypot(mNorth - mPredictedNorth, mEast - mPredictedEast);
+		
+		// differences smaller than the accuracy of the fix are just noise
+		float mThreshold = profile.getErrorThreshold();
+		
+		if(location.hasAccuracy() && location.getAccuracy() > mThreshold) {
+			mThreshold = location.getAccuracy();
+		}
+		
+		if(mError > mThreshold) {
+			return record(location);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * forget the recorded track so the next fix is recorded
+	 */
+	public void reset() {
+		hasFix = false;
+		hasVelocity = false;
+		hasRecord = false;
+	}
+	
+	/*
+	 * remember a fix as recorded, along with the current velocity estimate
+	 */
+	private boolean record(Location location) {
+		
+		hasRecord = true;
+		recordLatitude = location.getLatitude();
+		recordLongitude = location.getLongitude();
+		recordTime = location.getTime();
+		
+		if(hasVelocity) {
+			recordNorth = velocityNorth;
+			recordEast = velocityEast;
+		} else {
+			recordNorth = 0;
+			recordEast = 0;
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * update the smoothed velocity using the speed and bearing from the
+	 * gps if available, otherwise from the distance since the previous fix
+	 */
+	private void updateVelocity(Location location) {
+		
+		double mNorth;
+		double mEast;
+		boolean mMeasured = true;
+		
+		if(location.hasSpeed() && location.hasBearing()) {
+			double mBearing = Math.toRadians(location.getBearing());
+			mNorth = location.getSpeed() * Math.cos(mBearing);
+			mEast = location.getSpeed() * Math.sin(mBearing);
+		} else if(hasFix) {
+			double mSeconds = (location.getTime() - fixTime) / 1000d;
+			mNorth = getNorth(fixLatitude, location.getLatitude());
+			mEast = getEast(fixLatitude, fixLongitude, location.getLongitude());
+			
+			// both fixes may be out by the accuracy, so smaller movements can't be told apart from noise
+			if(location.hasAccuracy() && Math.hypot(mNorth, mEast) < location.getAccuracy() * 2) {
+				mNorth = 0;
+				mEast = 0;
+			} else {
+				mNorth /= mSeconds;
+				mEast /= mSeconds;
+			}
+		} else {
+			mNorth = 0;
+			mEast = 0;
+			mMeasured = false;
+		}
+		
+		hasFix = true;
+		fixLatitude = location.getLatitude();
+		fixLongitude = location.getLongitude();
+		fixTime = location.getTime();
+		
+		if(mMeasured == false) {
+			return;
+		}
+		
+		if(Math.hypot(mNorth, mEast) < STATIONARY_SPEED) {
+			mNorth = 0;
+			mEast = 0;
+		}
+		
+		if(hasVelocity) {
+			velocityNorth += SMOOTHING * (mNorth - velocityNorth);
+			velocityEast += SMOOTHING * (mEast - velocityEast);
+		} else {
+			velocityNorth = mNorth;
+			velocityEast = mEast;
+			hasVelocity = true;
+		}
+	}
+	
+	/*
+	 * distances in metres between two points, using a flat projection
+	 * which is accurate enough over the distances between fixes
+	 */
+	private static double getNorth(double fromLatitude, double toLatitude) {
+		return (toLatitude - fromLatitude) * METRES_PER_DEGREE;
+	}
+	
+	private static double getEast(double latitude, double fromLongitude, double toLongitude) {
+		
+		double mDelta = toLongitude - fromLongitude;
+		
+		// take the short way across the date line
+		if(mDelta > 180) {
+			mDelta -= 360;
+		} else if(mDelta < -180) {
+			mDelta += 360;
+		}
+		
+		return mDelta * METRES_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.location;
+
+/**
+ * settings that trade the accuracy of the collected locations against battery use
+ * 
+ * the minimum time and distance are passed to the location manager so the GPS
+ * reports fewer fixes, a fix is only recorded when the position predicted from the
+ * recorded track is further than the error threshold from it, or when nothing has
+ * been recorded for the maximum record interval, recorded fixes are then held and
+ * written to the database in batches so the database and binary files are written
+ * to less often
+ */
+public class CollectionProfile {
+	
+	/**
+	 * a fix every second recorded when the track is ten metres out, each one written straight away
+	 */
+	public static final CollectionProfile HIGH_PRECISION = new CollectionProfile("high-precision", 1000, 0, 10, 60 * 1000, 1, 0);
+	
+	/**
+	 * a fix every five seconds after moving at least five metres recorded when the track
+	 * is twenty metres out, written in batches of up to a minute
+	 */
+	public static final CollectionProfile BALANCED = new CollectionProfile("balanced", 5 * 1000, 5, 20, 5 * 60 * 1000, 12, 60 * 1000);
+	
+	/**
+	 * a fix every thirty seconds after moving at least twenty five metres recorded when the
+	 * track is fifty metres out, written in batches of up to five minutes
+	 */
+	public static final CollectionProfile LOW_POWER = new CollectionProfile("low-power", 30 * 1000, 25, 50, 15 * 60 * 1000, 10, 5 * 60 * 1000);
+	
+	/**
+	 * the profile used when none has been chosen
+	 */
+	public static final CollectionProfile DEFAULT_PROFILE = BALANCED;
+	
+	/*
+	 * private class level variables
+	 */
+	private final String name;
+	private final long minTime;
+	private final float minDistance;
+	private final float errorThreshold;
+	private final long maxRecordInterval;
+	private final int batchSize;
+	private final long batchInterval;
+	
+	/*
+	 * construct a new profile
+	 */
+	private CollectionProfile(String name, long minTime, float minDistance, float errorThreshold, long maxRecordInterval, int batchSize, long batchInterval) {
+		this.name = name;
+		this.minTime = minTime;
+		this.minDistance = minDistance;
+		this.errorThreshold = errorThreshold;
+		this.maxRecordInterval = maxRecordInterval;
+		this.batchSize = batchSize;
+		this.batchInterval = batchInterval;
+	}
+	
+	/**
+	 * get a profile using the name stored in the preferences
+	 * 
+	 * @param name the name of the profile
+	 * @return the matching profile, or DEFAULT_PROFILE if the name isn't recognised
+	 */
+	public static CollectionProfile fromName(String name) {
+		
+		if(HIGH_PRECISION.name.equals(name)) {
+			return HIGH_PRECISION;
+		} else if(LOW_POWER.name.equals(name)) {
+			return LOW_POWER;
+		} else if(BALANCED.name.equals(name)) {
+			return BALANCED;
+		}
+		
+		return DEFAULT_PROFILE;
+	}
+	
+	/**
+	 * @return the name of the profile as stored in the preferences
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the minimum time in milliseconds between location updates
+	 */
+	public long getMinTime() {
+		return minTime;
+	}
+	
+	/**
+	 * @return the minimum distance in metres between location updates
+	 */
+	public float getMinDistance() {
+		return minDistance;
+	}
+	
+	/**
+	 * @return the distance in metres between a fix and the position predicted from the recorded track that causes the fix to be recorded
+	 */
+	public float getErrorThreshold() {
+		return errorThreshold;
+	}
+	
+	/**
+	 * @return the maximum time in milliseconds between recorded fixes, even when the track is predictable
+	 */
+	public long getMaxRecordInterval() {
+		return maxRecordInterval;
+	}
+	
+	/**
+	 * @return the number of accepted fixes that are written to the database together
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * @return the maximum time in milliseconds an accepted fix is held before it is written
+	 */
+	public long getBatchInterval() {
+		return batchInterval;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+}
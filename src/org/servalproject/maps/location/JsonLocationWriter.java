@@ -26,7 +26,7 @@ import java.io.PrintWriter;
 
 import org.servalproject.maps.R;
 import org.servalproject.maps.ServalMaps;
-import org.servalproject.maps.rhizome.Rhizome;
+import org.servalproject.maps.rhizome.RhizomePublisher;
 import org.servalproject.maps.utils.FileUtils;
 import org.servalproject.maps.utils.TimeUtils;
 
@@ -172,8 +172,8 @@ public class JsonLocationWriter implements Runnable {
 					mFileOutputStream.getFD().sync();
 					mOutput.close();
 					
-					// add the file to rhizome
-					Rhizome.addFile(context, fileName);
+					// ask for the file to be added to rhizome
+					RhizomePublisher.getInstance(context).requestPublish(fileName);
 					
 					if(V_LOG) {
 						Log.v(TAG, "location values: '" + mLocation.getLatitude() + "','" +  mLocation.getLongitude() + "'");
@@ -20,11 +20,15 @@
 
 package org.servalproject.maps.location;
 
+import java.util.ArrayList;
 import java.util.TimeZone;
 
 import org.servalproject.maps.ServalMaps;
+import org.servalproject.maps.protobuf.BinaryFileContract;
 import org.servalproject.maps.protobuf.BinaryFileWriter;
+import org.servalproject.maps.protobuf.LocationMessage;
 import org.servalproject.maps.provider.LocationsContract;
+import org.servalproject.maps.provider.MapItemsCache;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -32,8 +36,8 @@ import android.content.Context;
 import android.database.SQLException;
 import android.location.Location;
 import android.location.LocationListener;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 
 /**
@@ -52,11 +56,6 @@ public class LocationCollector implements LocationListener {
 	 */
 	private Context context;
 	
-	
-	/**
-	 * the most recent and most accurate location information
-	 */
-	private static volatile Location currentLocation = null;
 	private String timeZone = TimeZone.getDefault().getID();
 	
 	private String phoneNumber;
@@ -64,6 +63,21 @@ public class LocationCollector implements LocationListener {
 	
 	private ContentResolver contentResolver;
 	
+	// accepted locations waiting to be written, only used on the main thread
+	private CollectionProfile profile = CollectionProfile.DEFAULT_PROFILE;
+	private ArrayList<ContentValues> pending = new ArrayList<ContentValues>();
+	private Handler handler = new Handler();
+	private boolean flushScheduled = false;
+	
+	// decides which locations are recorded, only used on the main thread
+	private AdaptiveSampler sampler = new AdaptiveSampler();
+	
+	/**
+	 * construct a new location collector, the collector must be
+	 * constructed and used on the main thread
+	 * 
+	 * @param context the context used to access the content resolver
+	 */
 	public LocationCollector(Context context) {
 
 		super();
@@ -83,11 +97,93 @@ public class LocationCollector implements LocationListener {
 	}
 	
 	/**
-	 * get the most recent and most accurate location information
+	 * get the most recent and most accurate location information,
+	 * which is held in the map items cache so it can be read without locking
 	 */
 	public static Location getLocation() {
-		return currentLocation;
+		return MapItemsCache.getSnapshot().getLocation();
+	}
+	
+	/**
+	 * set the profile used to decide which locations are recorded and how they are batched,
+	 * any locations held under the previous profile are written first and the track is
+	 * started again so the next location is recorded under the new profile
+	 * 
+	 * @param profile the new profile
+	 */
+	public void setProfile(CollectionProfile profile) {
+		
+		if(profile == null) {
+			throw new IllegalArgumentException("the profile parameter is required");
+		}
+		
+		flush();
+		
+		if(profile.equals(this.profile) == false) {
+			sampler.reset();
+		}
+		
+		this.profile = profile;
+	}
+	
+	/**
+	 * @return the profile used to decide which locations are recorded and how they are batched
+	 */
+	public CollectionProfile getProfile() {
+		return profile;
+	}
+	
+	/**
+	 * write the held locations to the database and the binary file
+	 */
+	public void flush() {
+		
+		if(flushScheduled) {
+			handler.removeCallbacks(flushTask);
+			flushScheduled = false;
+		}
+		
+		if(pending.size() == 0) {
+			return;
+		}
+		
+		ContentValues[] mValues = pending.toArray(new ContentValues[pending.size()]);
+		pending.clear();
+		
+		// build the binary messages from the same values before the provider adds to them
+		LocationMessage.Message[] mMessages = new LocationMessage.Message[mValues.length];
+		
+		for(int i = 0; i < mValues.length; i++) {
+			mMessages[i] = BinaryFileContract.buildLocationMessage(mValues[i]);
+		}
+		
+		try {
+			int mCount = contentResolver.bulkInsert(LocationsContract.CONTENT_URI, mValues);
+			if(V_LOG) {
+				Log.v(TAG, "wrote batch of " + mCount + " location records");
+			}
+			
+			// functionality not required at this stage 
+			//OutgoingMeshMS.sendLocationMessage(context, newRecord.getLastPathSegment());
+			
+			// write the entries to the binary log file
+			for(LocationMessage.Message mMessage : mMessages) {
+				BinaryFileWriter.writeLocation(context, mMessage);
+			}
+		}catch (SQLException e) {
+			Log.e(TAG, "unable to add new location records", e);
+		}
 	}
+	
+	/*
+	 * task used to write the held locations once the batch interval has passed
+	 */
+	private Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled = false;
+			flush();
+		}
+	};
 
 	/*
 	 * Called when the location has changed.
@@ -102,56 +198,57 @@ public class LocationCollector implements LocationListener {
 			Log.v(TAG, "new location received");
 		}
 		
+		Location mCurrentLocation = getLocation();
+		
 		// check to see if this location is better than the one we have already
-		if(isBetterLocation(location, currentLocation) == true) {
+		if(isBetterLocation(location, mCurrentLocation) == true) {
 			
 			if(V_LOG) {
 				Log.v(TAG, "new location is better than current location");
-				if(currentLocation != null) {
-					Log.v(TAG, "old location: Lat: " + currentLocation.getLatitude() + " Lng: " + currentLocation.getLongitude() + " accuracy: " + currentLocation.getAccuracy());
+				if(mCurrentLocation != null) {
+					Log.v(TAG, "old location: Lat: " + mCurrentLocation.getLatitude() + " Lng: " + mCurrentLocation.getLongitude() + " accuracy: " + mCurrentLocation.getAccuracy());
 				}
 				Log.v(TAG, "new location: Lat: " + location.getLatitude() + " Lng: " + location.getLongitude() + " accuracy: " + location.getAccuracy());
 			}
 			
 			// save the location for later
-			currentLocation = location;
-			
-			if(phoneNumber == null || subscriberId == null) {
-				// these may be null but will be populated once the 
-				// sticky to Serval Mesh returns
-				return;
-			}
-			
-			long mTime = System.currentTimeMillis();
-			
-			ContentValues mNewValues = new ContentValues();
-			mNewValues.put(LocationsContract.Table.PHONE_NUMBER, phoneNumber);
-			mNewValues.put(LocationsContract.Table.SUBSCRIBER_ID, subscriberId);
-			mNewValues.put(LocationsContract.Table.LATITUDE, location.getLatitude());
-			mNewValues.put(LocationsContract.Table.LONGITUDE, location.getLongitude());
-			mNewValues.put(LocationsContract.Table.TIMEZONE, timeZone);
-			mNewValues.put(LocationsContract.Table.TIMESTAMP, mTime);
-
-			try {
-				Uri newRecord = contentResolver.insert(LocationsContract.CONTENT_URI, mNewValues);
-				if(V_LOG) {
-					Log.v(TAG, "new location record created with id: " + newRecord.getLastPathSegment());
-				}
-				
-				// functionality not required at this stage 
-				//OutgoingMeshMS.sendLocationMessage(context, newRecord.getLastPathSegment());
-				
-				// write an entry to the binary log file
-				BinaryFileWriter.writeLocation(context,  newRecord.getLastPathSegment());
-			}catch (SQLException e) {
-				Log.e(TAG, "unable to add new location record", e);
-			}
-		} else {
+			MapItemsCache.setLocation(location);
+		}
+		
+		if(phoneNumber == null || subscriberId == null) {
+			// these may be null but will be populated once the 
+			// sticky to Serval Mesh returns
+			return;
+		}
+		
+		// only record the location if it can't be predicted from the recorded track,
+		// the sampler keeps the location as part of the track so this comes last
+		if(sampler.shouldRecord(location, profile) == false) {
 			if(V_LOG) {
-				Log.v(TAG, "new location is not better than current location");
+				Log.v(TAG, "new location is predicted by the recorded track");
 			}
+			return;
+		}
+		
+		long mTime = System.currentTimeMillis();
+		
+		ContentValues mNewValues = new ContentValues();
+		mNewValues.put(LocationsContract.Table.PHONE_NUMBER, phoneNumber);
+		mNewValues.put(LocationsContract.Table.SUBSCRIBER_ID, subscriberId);
+		mNewValues.put(LocationsContract.Table.LATITUDE, location.getLatitude());
+		mNewValues.put(LocationsContract.Table.LONGITUDE, location.getLongitude());
+		mNewValues.put(LocationsContract.Table.TIMEZONE, timeZone);
+		mNewValues.put(LocationsContract.Table.TIMESTAMP, mTime);
+		
+		// hold the location until the batch is full or the batch interval has passed
+		pending.add(mNewValues);
+		
+		if(pending.size() >= profile.getBatchSize()) {
+			flush();
+		} else if(flushScheduled == false) {
+			flushScheduled = true;
+			handler.postDelayed(flushTask, profile.getBatchInterval());
 		}
-
 	}
 
 	/*
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.mapsforge;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * a drawable used to represent a cluster of markers, drawn as a circle
+ * containing the number of markers in the cluster
+ */
+public class ClusterDrawable extends Drawable {
+	
+	/*
+	 * private class level constants
+	 */
+	private final float RADIUS = 14;
+	private final float TEXT_SIZE = 12;
+	
+	/*
+	 * private class level variables
+	 */
+	private Paint fillPaint;
+	private Paint textPaint;
+	private float radius;
+	
+	private volatile int count = 0;
+	private volatile String label = "0";
+	
+	/**
+	 * construct a new cluster drawable
+	 * 
+	 * @param density the logical density of the display
+	 */
+	public ClusterDrawable(float density) {
+		
+		radius = RADIUS * density;
+		
+		fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		fillPaint.setARGB(200, 85, 140, 248);
+		fillPaint.setStyle(Paint.Style.FILL);
+		
+		textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		textPaint.setARGB(255, 255, 255, 255);
+		textPaint.setTextSize(TEXT_SIZE * density);
+		textPaint.setTextAlign(Paint.Align.CENTER);
+		textPaint.setFakeBoldText(true);
+		
+		// centre the drawable on the location of the cluster
+		int mHalfSize = (int) Math.ceil(radius);
+		setBounds(-mHalfSize, -mHalfSize, mHalfSize, mHalfSize);
+	}
+	
+	/**
+	 * set the number of markers shown in the cluster
+	 * 
+	 * @param count the number of markers
+	 */
+	public void setCount(int count) {
+		if(this.count != count) {
+			this.count = count;
+			this.label = Integer.toString(count);
+		}
+	}
+	
+	/**
+	 * get the number of markers shown in the cluster
+	 * 
+	 * @return the number of markers
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see android.graphics.drawable.Drawable#draw(android.graphics.Canvas)
+	 */
+	@Override
+	public void draw(Canvas canvas) {
+		
+		Rect mBounds = getBounds();
+		
+		// the size of the circle grows a little with the number of digits
+		String mLabel = label;
+		float mRadius = radius + (mLabel.length() > 2 ? (mLabel.length() - 2) * radius / 4 : 0);
+		
+		canvas.drawCircle(mBounds.exactCenterX(), mBounds.exactCenterY(), mRadius, fillPaint);
+		canvas.drawText(mLabel, mBounds.exactCenterX(), mBounds.exactCenterY() - (textPaint.ascent() + textPaint.descent()) / 2, textPaint);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see android.graphics.drawable.Drawable#setAlpha(int)
+	 */
+	@Override
+	public void setAlpha(int alpha) {
+		fillPaint.setAlpha(alpha);
+		textPaint.setAlpha(alpha);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see android.graphics.drawable.Drawable#setColorFilter(android.graphics.ColorFilter)
+	 */
+	@Override
+	public void setColorFilter(ColorFilter colorFilter) {
+		fillPaint.setColorFilter(colorFilter);
+		textPaint.setColorFilter(colorFilter);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see android.graphics.drawable.Drawable#getOpacity()
+	 */
+	@Override
+	public int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.mapsforge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.mapsforge.core.GeoPoint;
+import org.mapsforge.core.MercatorProjection;
+
+import android.util.Log;
+
+/**
+ * groups the markers shown in an overlay list into clusters when the map is zoomed out,
+ * markers in the same square of a screen space grid are shown as one marker with a count
+ * 
+ * clusters are updated as markers are added, moved and removed, and are only rebuilt
+ * when the zoom level changes, all methods must be called on the UI thread
+ */
+public class MarkerClusters {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the lowest zoom level at which markers are not clustered
+	 */
+	public static final byte MAX_CLUSTER_ZOOM = 16;
+	
+	/*
+	 * private class level constants
+	 */
+	private final boolean V_LOG = false;
+	private final String TAG = "MarkerClusters";
+	
+	// size of a square of the grid in pixels before scaling for the display density
+	private final double GRID_SIZE = 48;
+	
+	/*
+	 * a group of markers in the same square of the grid
+	 */
+	private class Cluster {
+		
+		Long square;
+		ArrayList<OverlayItem> members = new ArrayList<OverlayItem>(2);
+		OverlayItem clusterItem = null;
+		ClusterDrawable drawable = null;
+		long latitudeTotal = 0;
+		long longitudeTotal = 0;
+		
+		/*
+		 * get the item shown on the map for this cluster
+		 */
+		OverlayItem getVisibleItem() {
+			return members.size() == 1 ? members.get(0) : clusterItem;
+		}
+		
+		/*
+		 * get the location at the centre of the members
+		 */
+		GeoPoint getCentre() {
+			return new GeoPoint((int) (latitudeTotal / members.size()), (int) (longitudeTotal / members.size()));
+		}
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private OverlayList overlayList;
+	private float density;
+	private double gridSize;
+	
+	private byte zoomLevel = -1;
+	
+	// the clusters keyed by grid square, and the cluster for each marker
+	private HashMap<Long, Cluster> clusters = new HashMap<Long, Cluster>();
+	private HashMap<OverlayItem, Cluster> itemClusters = new HashMap<OverlayItem, Cluster>();
+	
+	// markers that are never clustered
+	private ArrayList<OverlayItem> unclustered = new ArrayList<OverlayItem>();
+	
+	/**
+	 * construct a new set of marker clusters
+	 * 
+	 * @param overlayList the overlay list used to show the markers
+	 * @param density the logical density of the display
+	 */
+	public MarkerClusters(OverlayList overlayList, float density) {
+		
+		if(overlayList == null) {
+			throw new IllegalArgumentException("the overlayList parameter is required");
+		}
+		
+		this.overlayList = overlayList;
+		this.density = density;
+		this.gridSize = GRID_SIZE * density;
+	}
+	
+	/**
+	 * add a marker
+	 * 
+	 * @param item the marker to add
+	 * @return true if the items shown on the map have changed
+	 */
+	public boolean add(OverlayItem item) {
+		
+		if(isClustering() == false || item.getType() == OverlayItems.SELF_LOCATION_ITEM) {
+			unclustered.add(item);
+			overlayList.addItem(item);
+			return true;
+		}
+		
+		return addToCluster(item);
+	}
+	
+	/**
+	 * add a list of markers
+	 * 
+	 * @param items the markers to add
+	 * @return true if the items shown on the map have changed
+	 */
+	public boolean addAll(ArrayList<OverlayItem> items) {
+		
+		if(isClustering() == false) {
+			// add all of the items in one go
+			unclustered.addAll(items);
+			overlayList.addItems(items);
+			return items.isEmpty() == false;
+		}
+		
+		boolean mChanged = false;
+		
+		for(OverlayItem mItem : items) {
+			mChanged |= add(mItem);
+		}
+		
+		return mChanged;
+	}
+	
+	/**
+	 * remove a marker
+	 * 
+	 * @param item the marker to remove
+	 * @return true if the items shown on the map have changed
+	 */
+	public boolean remove(OverlayItem item) {
+		
+		Cluster mCluster = itemClusters.remove(item);
+		
+		if(mCluster == null) {
+			if(unclustered.remove(item)) {
+				overlayList.removeItem(item);
+				return true;
+			}
+			return false;
+		}
+		
+		return removeFromCluster(mCluster, item);
+	}
+	
+	/**
+	 * update the clusters after a marker has been moved with setPoint
+	 * 
+	 * @param item the marker that was moved
+	 * @return true if the items shown on the map have changed
+	 */
+	public boolean move(OverlayItem item) {
+		
+		Cluster mCluster = itemClusters.get(item);
+		
+		if(mCluster == null) {
+			// the marker is shown on its own
+			return unclustered.contains(item);
+		}
+		
+		if(mCluster.square.equals(getGridSquare(item.getPoint()))) {
+			// still in the same square, only the centre of the cluster moves
+			recalculateTotals(mCluster);
+			
+			if(mCluster.members.size() > 1) {
+				updateClusterItem(mCluster);
+			}
+			return true;
+		}
+		
+		itemClusters.remove(item);
+		removeFromCluster(mCluster, item);
+		addToCluster(item);
+		
+		return true;
+	}
+	
+	/**
+	 * set the zoom level of the map, rebuilding the clusters if it has changed
+	 * 
+	 * @param zoomLevel the new zoom level
+	 * @return true if the items shown on the map have changed
+	 */
+	public boolean setZoomLevel(byte zoomLevel) {
+		
+		if(this.zoomLevel == zoomLevel) {
+			return false;
+		}
+		
+		boolean mWasClustering = isClustering();
+		this.zoomLevel = zoomLevel;
+		
+		if(mWasClustering == false && isClustering() == false) {
+			// markers are shown on their own at both zoom levels
+			return false;
+		}
+		
+		// gather up all of the markers
+		ArrayList<OverlayItem> mItems = new ArrayList<OverlayItem>(unclustered.size() + itemClusters.size());
+		mItems.addAll(unclustered);
+		mItems.addAll(itemClusters.keySet());
+		
+		clusters.clear();
+		itemClusters.clear();
+		unclustered.clear();
+		overlayList.clear();
+		
+		if(isClustering() == false) {
+			unclustered.addAll(mItems);
+			overlayList.addItems(mItems);
+		} else {
+			// build the clusters without touching the overlay list
+			for(OverlayItem mItem : mItems) {
+				if(mItem.getType() == OverlayItems.SELF_LOCATION_ITEM) {
+					unclustered.add(mItem);
+				} else {
+					addToCluster(mItem, false);
+				}
+			}
+			
+			ArrayList<OverlayItem> mVisible = new ArrayList<OverlayItem>(unclustered.size() + clusters.size());
+			mVisible.addAll(unclustered);
+			
+			for(Cluster mCluster : clusters.values()) {
+				mVisible.add(mCluster.getVisibleItem());
+			}
+			
+			overlayList.addItems(mVisible);
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "zoom level " + zoomLevel + " shows " + overlayList.size() + " items for " + mItems.size() + " markers");
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * check to see if markers are clustered at the current zoom level
+	 */
+	private boolean isClustering() {
+		return zoomLevel >= 0 && zoomLevel < MAX_CLUSTER_ZOOM;
+	}
+	
+	/*
+	 * get the key of the grid square containing a location at the current zoom level
+	 */
+	private Long getGridSquare(GeoPoint point) {
+		long mX = (long) (MercatorProjection.longitudeToPixelX(point.getLongitude(), zoomLevel) / gridSize);
+		long mY = (long) (MercatorProjection.latitudeToPixelY(point.getLatitude(), zoomLevel) / gridSize);
+		return Long.valueOf((mY << 32) | mX);
+	}
+	
+	/*
+	 * add a marker to the cluster for its grid square
+	 */
+	private boolean addToCluster(OverlayItem item) {
+		return addToCluster(item, true);
+	}
+	
+	private boolean addToCluster(OverlayItem item, boolean updateOverlay) {
+		
+		Long mSquare = getGridSquare(item.getPoint());
+		Cluster mCluster = clusters.get(mSquare);
+		
+		if(mCluster == null) {
+			mCluster = new Cluster();
+			mCluster.square = mSquare;
+			clusters.put(mSquare, mCluster);
+		}
+		
+		OverlayItem mPreviousItem = mCluster.members.isEmpty() ? null : mCluster.getVisibleItem();
+		
+		mCluster.members.add(item);
+		mCluster.latitudeTotal += item.getPoint().latitudeE6;
+		mCluster.longitudeTotal += item.getPoint().longitudeE6;
+		itemClusters.put(item, mCluster);
+		
+		if(mCluster.members.size() > 1) {
+			updateClusterItem(mCluster);
+		}
+		
+		if(updateOverlay) {
+			OverlayItem mVisibleItem = mCluster.getVisibleItem();
+			
+			if(mPreviousItem != mVisibleItem) {
+				if(mPreviousItem != null) {
+					overlayList.removeItem(mPreviousItem);
+				}
+				overlayList.addItem(mVisibleItem);
+			}
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * remove a marker from its cluster
+	 */
+	private boolean removeFromCluster(Cluster cluster, OverlayItem item) {
+		
+		OverlayItem mPreviousItem = cluster.getVisibleItem();
+		
+		cluster.members.remove(item);
+		
+		if(cluster.members.isEmpty()) {
+			clusters.remove(cluster.square);
+			overlayList.removeItem(mPreviousItem);
+			return true;
+		}
+		
+		// the marker may have moved since it was added, so the totals are recalculated
+		recalculateTotals(cluster);
+		
+		if(cluster.members.size() > 1) {
+			updateClusterItem(cluster);
+		}
+		
+		OverlayItem mVisibleItem = cluster.getVisibleItem();
+		
+		if(mPreviousItem != mVisibleItem) {
+			overlayList.removeItem(mPreviousItem);
+			overlayList.addItem(mVisibleItem);
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * recalculate the location totals of a cluster from its members
+	 */
+	private void recalculateTotals(Cluster cluster) {
+		
+		cluster.latitudeTotal = 0;
+		cluster.longitudeTotal = 0;
+		
+		for(OverlayItem mMember : cluster.members) {
+			cluster.latitudeTotal += mMember.getPoint().latitudeE6;
+			cluster.longitudeTotal += mMember.getPoint().longitudeE6;
+		}
+	}
+	
+	/*
+	 * update the marker used to show a cluster with more than one member
+	 */
+	private void updateClusterItem(Cluster cluster) {
+		
+		if(cluster.clusterItem == null) {
+			cluster.drawable = new ClusterDrawable(density);
+			cluster.clusterItem = new OverlayItem(null, null, null, cluster.drawable);
+			cluster.clusterItem.setType(OverlayItems.CLUSTER_ITEM);
+		}
+		
+		cluster.drawable.setCount(cluster.members.size());
+		cluster.clusterItem.setPoint(cluster.getCentre());
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.mapsforge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.mapsforge.core.BoundingBox;
+import org.mapsforge.core.GeoPoint;
+import org.servalproject.maps.provider.LocationsContract;
+import org.servalproject.maps.provider.MapItemsCache;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * loads the markers and track shown on the map and works out what has changed
+ * since the previous load, so that only the changes need to be applied to the overlays
+ *
+ * the markers are read from the map items cache, only the track is read from the database
+ *
+ * the load method does database work and should be called on a background thread,
+ * calls to it must not overlap
+ */
+public class MarkerLoader {
+
+	/*
+	 * private class level constants
+	 */
+	private final boolean V_LOG = false;
+	private final String  TAG = "MarkerLoader";
+
+	// key prefixes used to identify markers
+	private final String PEER_KEY_PREFIX = "peer:";
+	private final String POI_KEY_PREFIX = "poi:";
+
+	/**
+	 * an immutable description of a marker on the map
+	 */
+	public static class Marker {
+
+		/**
+		 * key that identifies this marker across loads
+		 */
+		public final String key;
+
+		/**
+		 * the type of marker, as defined in OverlayItems
+		 */
+		public final int type;
+
+		/**
+		 * the id of the record this marker represents
+		 */
+		public final int recordId;
+
+		/**
+		 * the location of the marker
+		 */
+		public final GeoPoint point;
+
+		private Marker(String key, int type, int recordId, GeoPoint point) {
+			this.key = key;
+			this.type = type;
+			this.recordId = recordId;
+			this.point = point;
+		}
+	}
+
+	/**
+	 * the changes found by a load
+	 */
+	public static class Changes {
+
+		/**
+		 * markers that are new
+		 */
+		public final ArrayList<Marker> added = new ArrayList<Marker>();
+
+		/**
+		 * markers that have moved or now represent a different record
+		 */
+		public final ArrayList<Marker> moved = new ArrayList<Marker>();
+
+		/**
+		 * keys of markers that are no longer shown
+		 */
+		public final ArrayList<String> removed = new ArrayList<String>();
+
+		/**
+		 * the points of the track, only set if the track has changed
+		 */
+		public GeoPoint[][] track = null;
+		
+		/**
+		 * the time at which the oldest marker or track point will become too old to show,
+		 * or -1 if nothing will expire
+		 */
+		public long nextExpiry = -1;
+
+		/**
+		 * the marker for the user, if it was added or moved
+		 */
+		public Marker self = null;
+
+		/**
+		 * check to see if any changes were found
+		 *
+		 * @return true if there are no changes
+		 */
+		public boolean isEmpty() {
+			return added.isEmpty() && moved.isEmpty() && removed.isEmpty() && track == null;
+		}
+	}
+
+	/*
+	 * private class level variables
+	 */
+	private ContentResolver contentResolver;
+
+	// the markers found by the previous load
+	private HashMap<String, Marker> markers = new HashMap<String, Marker>();
+
+	// the points of the track and the time each was recorded
+	private TrackSimplifier trackPoints = new TrackSimplifier();
+	private ArrayList<Long> trackTimes = new ArrayList<Long>();
+	private volatile boolean resetTrack = false;
+	
+	// zoom level the track was last simplified for
+	private byte trackZoomLevel = -1;
+
+	/**
+	 * construct a new marker loader
+	 *
+	 * @param contentResolver the content resolver used to load the cache and query for the track
+	 */
+	public MarkerLoader(ContentResolver contentResolver) {
+
+		if(contentResolver == null) {
+			throw new IllegalArgumentException("the contentResolver parameter is required");
+		}
+
+		this.contentResolver = contentResolver;
+	}
+
+	/**
+	 * discard the loaded track so that it is loaded from scratch next time
+	 */
+	public void resetTrack() {
+		resetTrack = true;
+	}
+
+	/**
+	 * load the markers and track and determine what has changed
+	 *
+	 * @param phoneNumber the phone number of the user
+	 * @param locationMaxAge the maximum age of location markers in milliseconds, or a negative value for no limit
+	 * @param poiMaxAge the maximum age of POI markers in milliseconds, or a negative value for no limit
+	 * @param loadTrack true if the track of the user should be loaded
+	 * @param area the area to load markers for, or null to load markers for the whole map
+	 * @param zoomLevel the zoom level of the map, used to simplify the track
+	 * @return the changes since the last load
+	 */
+	public Changes load(String phoneNumber, long locationMaxAge, long poiMaxAge, boolean loadTrack, BoundingBox area, byte zoomLevel) {
+
+		Changes mChanges = new Changes();
+		HashMap<String, Marker> mLoaded = new HashMap<String, Marker>(markers.size() + 16);
+
+		long mNow = System.currentTimeMillis();
+		
+		// peers and points of interest come from the same snapshot of the cache,
+		// which holds all of the points of interest young enough to be shown
+		MapItemsCache.Snapshot mSnapshot = MapItemsCache.getSnapshot(contentResolver, poiMaxAge);
+
+		long mOldest = loadPeers(mSnapshot, mLoaded, phoneNumber, locationMaxAge < 0 ? -1 : mNow - locationMaxAge, area);
+		
+		if(locationMaxAge >= 0 && mOldest != Long.MAX_VALUE) {
+			mChanges.nextExpiry = mOldest + locationMaxAge;
+		}
+		
+		mOldest = loadPointsOfInterest(mSnapshot, mLoaded, poiMaxAge < 0 ? -1 : mNow - poiMaxAge, area);
+		
+		if(poiMaxAge >= 0 && mOldest != Long.MAX_VALUE) {
+			mChanges.nextExpiry = earliest(mChanges.nextExpiry, mOldest + poiMaxAge);
+		}
+
+		// compare with the previous load
+		for(Marker mMarker : mLoaded.values()) {
+			Marker mPrevious = markers.get(mMarker.key);
+
+			if(mPrevious == null) {
+				mChanges.added.add(mMarker);
+			} else if(mPrevious.recordId != mMarker.recordId || mPrevious.point.equals(mMarker.point) == false) {
+				mChanges.moved.add(mMarker);
+			} else {
+				continue;
+			}
+
+			if(mMarker.type == OverlayItems.SELF_LOCATION_ITEM) {
+				mChanges.self = mMarker;
+			}
+		}
+
+		for(String mKey : markers.keySet()) {
+			if(mLoaded.containsKey(mKey) == false) {
+				mChanges.removed.add(mKey);
+			}
+		}
+
+		markers = mLoaded;
+
+		// update the track
+		if(loadTrack) {
+			loadTrack(mChanges, phoneNumber, locationMaxAge < 0 ? -1 : mNow - locationMaxAge, zoomLevel);
+			
+			if(locationMaxAge >= 0 && trackTimes.isEmpty() == false) {
+				mChanges.nextExpiry = earliest(mChanges.nextExpiry, trackTimes.get(0) + locationMaxAge);
+			}
+		} else if(trackPoints.size() > 0) {
+			trackPoints.clear();
+			trackTimes.clear();
+		}
+
+		if(V_LOG) {
+			Log.v(TAG, "added: " + mChanges.added.size() + " moved: " + mChanges.moved.size() + " removed: " + mChanges.removed.size());
+		}
+
+		return mChanges;
+	}
+
+	/*
+	 * return the earliest of two expiry times, either of which may be -1
+	 */
+	private long earliest(long first, long second) {
+		if(first == -1) {
+			return second;
+		} else if(second == -1) {
+			return first;
+		} else {
+			return Math.min(first, second);
+		}
+	}
+	
+	/*
+	 * check to see if a point is inside the area, a null area contains everything
+	 */
+	private boolean contains(BoundingBox area, double latitude, double longitude) {
+		
+		if(area == null) {
+			return true;
+		}
+		
+		return latitude >= area.getMinLatitude() && latitude <= area.getMaxLatitude()
+				&& longitude >= area.getMinLongitude() && longitude <= area.getMaxLongitude();
+	}
+	
+	/*
+	 * load the latest location of each peer from the cache, returning the oldest timestamp found
+	 */
+	private long loadPeers(MapItemsCache.Snapshot snapshot, HashMap<String, Marker> loaded, String phoneNumber, long minTimestamp, BoundingBox area) {
+		
+		long mOldest = Long.MAX_VALUE;
+		int mType;
+		
+		for(MapItemsCache.Peer mPeer : snapshot.getPeers().values()) {
+			
+			if(minTimestamp != -1 && mPeer.timestamp <= minTimestamp) {
+				continue;
+			}
+			
+			if(mPeer.phoneNumber != null && mPeer.phoneNumber.equals(phoneNumber)) {
+				// the user is always shown, so that the map can follow them outside of the area
+				mType = OverlayItems.SELF_LOCATION_ITEM;
+			} else if(contains(area, mPeer.latitude, mPeer.longitude)) {
+				mType = OverlayItems.PEER_LOCATION_ITEM;
+			} else {
+				continue;
+			}
+			
+			Marker mMarker = new Marker(
+					PEER_KEY_PREFIX + mPeer.phoneNumber,
+					mType,
+					(int) mPeer.recordId,
+					new GeoPoint(mPeer.latitude, mPeer.longitude));
+			
+			loaded.put(mMarker.key, mMarker);
+			mOldest = Math.min(mOldest, mPeer.timestamp);
+		}
+		
+		return mOldest;
+	}
+
+	/*
+	 * load the points of interest from the cache, returning the oldest timestamp found
+	 */
+	private long loadPointsOfInterest(MapItemsCache.Snapshot snapshot, HashMap<String, Marker> loaded, long minTimestamp, BoundingBox area) {
+		
+		long mOldest = Long.MAX_VALUE;
+		
+		for(MapItemsCache.PointOfInterest mPointOfInterest : snapshot.getPointsOfInterest().values()) {
+			
+			if(minTimestamp != -1 && mPointOfInterest.timestamp <= minTimestamp) {
+				continue;
+			}
+			
+			if(contains(area, mPointOfInterest.latitude, mPointOfInterest.longitude) == false) {
+				continue;
+			}
+			
+			Marker mMarker = new Marker(
+					POI_KEY_PREFIX + mPointOfInterest.recordId,
+					OverlayItems.POI_ITEM,
+					(int) mPointOfInterest.recordId,
+					new GeoPoint(mPointOfInterest.latitude, mPointOfInterest.longitude));
+			
+			loaded.put(mMarker.key, mMarker);
+			mOldest = Math.min(mOldest, mPointOfInterest.timestamp);
+		}
+		
+		return mOldest;
+	}
+
+	/*
+	 * add new points to the track and drop those that are too old
+	 */
+	private void loadTrack(Changes changes, String phoneNumber, long minTimestamp, byte zoomLevel) {
+
+		boolean mChanged = false;
+
+		if(resetTrack) {
+			resetTrack = false;
+			trackPoints.clear();
+			trackTimes.clear();
+			mChanged = true;
+		}
+
+		// drop points that are now too old
+		if(minTimestamp != -1) {
+			int mExpired = 0;
+
+			while(mExpired < trackTimes.size() && trackTimes.get(mExpired) <= minTimestamp) {
+				mExpired++;
+			}
+
+			if(mExpired > 0) {
+				trackTimes.subList(0, mExpired).clear();
+				trackPoints.removeFirst(mExpired);
+				mChanged = true;
+			}
+		}
+
+		// only ask for points newer than those already loaded
+		long mLastTimestamp = minTimestamp;
+
+		if(trackTimes.isEmpty() == false) {
+			mLastTimestamp = Math.max(mLastTimestamp, trackTimes.get(trackTimes.size() - 1));
+		}
+
+		String[] mProjection = new String[3];
+		mProjection[0] = LocationsContract.Table.LATITUDE;
+		mProjection[1] = LocationsContract.Table.LONGITUDE;
+		mProjection[2] = LocationsContract.Table.TIMESTAMP;
+
+		String mSelection = LocationsContract.Table.PHONE_NUMBER + " = ? AND "
+				+ LocationsContract.Table.TIMESTAMP + " > ?";
+
+		String[] mSelectionArgs = new String[2];
+		mSelectionArgs[0] = phoneNumber;
+		mSelectionArgs[1] = Long.toString(mLastTimestamp);
+
+		Cursor mCursor = contentResolver.query(
+				LocationsContract.CONTENT_URI,
+				mProjection,
+				mSelection,
+				mSelectionArgs,
+				LocationsContract.Table.TIMESTAMP);
+
+		if(mCursor != null) {
+			try {
+				int mLatitudeColumn = mCursor.getColumnIndex(LocationsContract.Table.LATITUDE);
+				int mLongitudeColumn = mCursor.getColumnIndex(LocationsContract.Table.LONGITUDE);
+				int mTimestampColumn = mCursor.getColumnIndex(LocationsContract.Table.TIMESTAMP);
+
+				while(mCursor.moveToNext()) {
+					trackPoints.add(new GeoPoint(mCursor.getDouble(mLatitudeColumn), mCursor.getDouble(mLongitudeColumn)));
+					trackTimes.add(mCursor.getLong(mTimestampColumn));
+					mChanged = true;
+				}
+			} finally {
+				mCursor.close();
+			}
+		}
+
+		// the track needs to be simplified again if the zoom level has changed
+		if(mChanged || zoomLevel != trackZoomLevel) {
+			trackZoomLevel = zoomLevel;
+
+			GeoPoint[][] mWayPoints = new GeoPoint[1][];
+			mWayPoints[0] = trackPoints.getTrack(zoomLevel);
+			changes.track = mWayPoints;
+
+			if(V_LOG) {
+				Log.v(TAG, "gps track contains: '" + trackPoints.size() + "' points, simplified to: '" + mWayPoints[0].length + "'");
+			}
+		}
+	}
+}
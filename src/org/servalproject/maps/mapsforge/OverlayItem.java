@@ -81,6 +81,9 @@ public class OverlayItem extends org.mapsforge.android.maps.overlay.OverlayItem
 		case OverlayItems.POI_ITEM:
 			itemType = type;
 			break;
+		case OverlayItems.CLUSTER_ITEM:
+			itemType = type;
+			break;
 		default:
 			throw new IllegalArgumentException("unknwon item type specified");
 		}
@@ -111,6 +114,16 @@ public class OverlayItem extends org.mapsforge.android.maps.overlay.OverlayItem
 		return this.recordId;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mapsforge.android.maps.overlay.OverlayItem#setPoint(org.mapsforge.core.GeoPoint)
+	 */
+	@Override
+	public void setPoint(GeoPoint point) {
+		super.setPoint(point);
+		geoPoint = point;
+	}
+	
 	/**
 	 * get the latitude associated with this item
 	 * 
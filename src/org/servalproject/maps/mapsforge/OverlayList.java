@@ -94,6 +94,17 @@ public class OverlayList extends ArrayItemizedOverlay {
 			mIntent.putExtra("recordId", mItem.getRecordId());
 			context.startActivity(mIntent);
 			break;
+		case OverlayItems.CLUSTER_ITEM:
+			if(V_LOG){
+				Log.v(TAG, "user touched a cluster marker");
+			}
+			
+			// zoom in on the cluster so the markers it contains can be seen
+			if(internalMapView != null) {
+				internalMapView.getController().setCenter(mItem.getPoint());
+				internalMapView.getController().zoomIn();
+			}
+			break;
 		default:
 			Log.e(TAG, "unknown marker type");
 			return false;
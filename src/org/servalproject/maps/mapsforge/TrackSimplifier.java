@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.mapsforge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.mapsforge.core.GeoPoint;
+import org.mapsforge.core.MercatorProjection;
+
+/**
+ * simplifies a GPS track for drawing at a zoom level using the Douglas-Peucker algorithm
+ * 
+ * the track is split into chunks of a fixed number of points, and the simplified version of
+ * each complete chunk is cached for each zoom level, so that appending new points or dropping
+ * old ones only requires the chunks at either end of the track to be simplified again
+ * 
+ * this class is not thread safe
+ */
+public class TrackSimplifier {
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// number of points in each chunk, neighbouring chunks share their end points
+	private final int CHUNK_SIZE = 128;
+	
+	// maximum distance in pixels a simplified track is allowed to stray from the original
+	private final double TOLERANCE = 1.5;
+	
+	/*
+	 * the simplified chunks of the track for one zoom level
+	 */
+	private class ZoomCache {
+		HashMap<Integer, GeoPoint[]> chunks = new HashMap<Integer, GeoPoint[]>();
+		GeoPoint[] track = null;
+		int trackVersion = -1;
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private ArrayList<GeoPoint> points = new ArrayList<GeoPoint>();
+	
+	// number of points that have been removed from the start of the track
+	private int removed = 0;
+	
+	// incremented each time the track changes
+	private int version = 0;
+	
+	private HashMap<Byte, ZoomCache> caches = new HashMap<Byte, ZoomCache>();
+	
+	/**
+	 * get the number of points in the track
+	 * 
+	 * @return the number of points
+	 */
+	public int size() {
+		return points.size();
+	}
+	
+	/**
+	 * add a point to the end of the track
+	 * 
+	 * @param point the point to add
+	 */
+	public void add(GeoPoint point) {
+		points.add(point);
+		version++;
+	}
+	
+	/**
+	 * remove points from the start of the track
+	 * 
+	 * @param count the number of points to remove
+	 */
+	public void removeFirst(int count) {
+		
+		count = Math.min(count, points.size());
+		
+		if(count <= 0) {
+			return;
+		}
+		
+		points.subList(0, count).clear();
+		removed += count;
+		version++;
+		
+		// forget about the chunks that have been removed completely
+		int mFirstChunk = removed / CHUNK_SIZE;
+		
+		for(ZoomCache mCache : caches.values()) {
+			Iterator<Integer> mChunks = mCache.chunks.keySet().iterator();
+			
+			while(mChunks.hasNext()) {
+				if(mChunks.next() < mFirstChunk) {
+					mChunks.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * remove all of the points from the track
+	 */
+	public void clear() {
+		points.clear();
+		caches.clear();
+		removed = 0;
+		version++;
+	}
+	
+	/**
+	 * get the simplified track for a zoom level
+	 * 
+	 * @param zoomLevel the zoom level the track will be drawn at
+	 * @return the points of the simplified track
+	 */
+	public GeoPoint[] getTrack(byte zoomLevel) {
+		
+		ZoomCache mCache = caches.get(zoomLevel);
+		
+		if(mCache == null) {
+			mCache = new ZoomCache();
+			caches.put(zoomLevel, mCache);
+		}
+		
+		if(mCache.trackVersion == version) {
+			return mCache.track;
+		}
+		
+		if(points.size() < 3) {
+			mCache.track = points.toArray(new GeoPoint[points.size()]);
+			mCache.trackVersion = version;
+			return mCache.track;
+		}
+		
+		// absolute index of the first and last points
+		int mFirst = removed;
+		int mLast = removed + points.size() - 1;
+		
+		ArrayList<GeoPoint> mTrack = new ArrayList<GeoPoint>();
+		
+		for(int mChunk = mFirst / CHUNK_SIZE; mChunk * CHUNK_SIZE < mLast; mChunk++) {
+			
+			int mStart = Math.max(mChunk * CHUNK_SIZE, mFirst);
+			int mEnd = Math.min((mChunk + 1) * CHUNK_SIZE, mLast);
+			
+			// only chunks that have all of their points are cached
+			boolean mComplete = mStart == mChunk * CHUNK_SIZE && mEnd == (mChunk + 1) * CHUNK_SIZE;
+			
+			GeoPoint[] mSimplified = mComplete ? mCache.chunks.get(mChunk) : null;
+			
+			if(mSimplified == null) {
+				mSimplified = simplify(mStart - removed, mEnd - removed, zoomLevel);
+				
+				if(mComplete) {
+					mCache.chunks.put(mChunk, mSimplified);
+				}
+			}
+			
+			// the first point of a chunk is the last point of the one before it
+			for(int i = mTrack.isEmpty() ? 0 : 1; i < mSimplified.length; i++) {
+				mTrack.add(mSimplified[i]);
+			}
+		}
+		
+		mCache.track = mTrack.toArray(new GeoPoint[mTrack.size()]);
+		mCache.trackVersion = version;
+		
+		return mCache.track;
+	}
+	
+	/*
+	 * simplify the points between two indexes, including both end points
+	 */
+	private GeoPoint[] simplify(int start, int end, byte zoomLevel) {
+		
+		int mCount = end - start + 1;
+		
+		// work in pixels so that the tolerance is the same at all zoom levels
+		double[] mX = new double[mCount];
+		double[] mY = new double[mCount];
+		
+		for(int i = 0; i < mCount; i++) {
+			GeoPoint mPoint = points.get(start + i);
+			mX[i] = MercatorProjection.longitudeToPixelX(mPoint.getLongitude(), zoomLevel);
+			mY[i] = MercatorProjection.latitudeToPixelY(mPoint.getLatitude(), zoomLevel);
+		}
+		
+		boolean[] mKeep = new boolean[mCount];
+		mKeep[0] = true;
+		mKeep[mCount - 1] = true;
+		
+		// use a stack of ranges rather than recursion
+		int[] mStack = new int[mCount * 2];
+		int mStackSize = 0;
+		
+		mStack[mStackSize++] = 0;
+		mStack[mStackSize++] = mCount - 1;
+		
+		double mTolerance = TOLERANCE * TOLERANCE;
+		
+		while(mStackSize > 0) {
+			
+			int mRangeEnd = mStack[--mStackSize];
+			int mRangeStart = mStack[--mStackSize];
+			
+			double mMaxDistance = 0;
+			int mMaxIndex = -1;
+			
+			for(int i = mRangeStart + 1; i < mRangeEnd; i++) {
+				double mDistance = getSquaredDistance(mX[i], mY[i], mX[mRangeStart], mY[mRangeStart], mX[mRangeEnd], mY[mRangeEnd]);
+				
+				if(mDistance > mMaxDistance) {
+					mMaxDistance = mDistance;
+					mMaxIndex = i;
+				}
+			}
+			
+			if(mMaxIndex != -1 && mMaxDistance > mTolerance) {
+				mKeep[mMaxIndex] = true;
+				
+				mStack[mStackSize++] = mRangeStart;
+				mStack[mStackSize++] = mMaxIndex;
+				mStack[mStackSize++] = mMaxIndex;
+				mStack[mStackSize++] = mRangeEnd;
+			}
+		}
+		
+		ArrayList<GeoPoint> mSimplified = new ArrayList<GeoPoint>();
+		
+		for(int i = 0; i < mCount; i++) {
+			if(mKeep[i]) {
+				mSimplified.add(points.get(start + i));
+			}
+		}
+		
+		return mSimplified.toArray(new GeoPoint[mSimplified.size()]);
+	}
+	
+	/*
+	 * get the squared distance from a point to a line segment
+	 */
+	private double getSquaredDistance(double x, double y, double startX, double startY, double endX, double endY) {
+		
+		double mDeltaX = endX - startX;
+		double mDeltaY = endY - startY;
+		double mLength = mDeltaX * mDeltaX + mDeltaY * mDeltaY;
+		
+		if(mLength == 0) {
+			return (x - startX) * (x - startX) + (y - startY) * (y - startY);
+		}
+		
+		// find the closest point on the segment
+		double mPosition = ((x - startX) * mDeltaX + (y - startY) * mDeltaY) / mLength;
+		mPosition = Math.max(0, Math.min(1, mPosition));
+		
+		double mClosestX = startX + mPosition * mDeltaX;
+		double mClosestY = startY + mPosition * mDeltaY;
+		
+		return (x - mClosestX) * (x - mClosestX) + (y - mClosestY) * (y - mClosestY);
+	}
+}
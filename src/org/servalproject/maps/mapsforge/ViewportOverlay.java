@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.mapsforge;
+
+import org.mapsforge.android.maps.Projection;
+import org.mapsforge.android.maps.overlay.Overlay;
+import org.mapsforge.core.BoundingBox;
+import org.mapsforge.core.GeoPoint;
+
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * an overlay that draws nothing but keeps track of the area of the map that is visible,
+ * and runs a task when the visible area moves outside the area that markers have been loaded for
+ * or when the zoom level changes
+ */
+public class ViewportOverlay extends Overlay {
+	
+	/*
+	 * private class level constants
+	 */
+	private final boolean V_LOG = false;
+	private final String TAG = "ViewportOverlay";
+	
+	/*
+	 * private class level variables
+	 */
+	private Handler handler;
+	private Runnable task;
+	
+	private volatile BoundingBox visibleArea = null;
+	private volatile BoundingBox loadedArea = null;
+	private volatile boolean loadRequired = false;
+	private volatile byte zoomLevel = -1;
+	
+	/**
+	 * construct a new viewport overlay
+	 * 
+	 * @param handler the handler used to run the task
+	 * @param task the task to run when the visible area is no longer inside the loaded area or the zoom level changes
+	 */
+	public ViewportOverlay(Handler handler, Runnable task) {
+		super();
+		
+		if(handler == null || task == null) {
+			throw new IllegalArgumentException("the handler and task parameters are required");
+		}
+		
+		this.handler = handler;
+		this.task = task;
+	}
+	
+	/**
+	 * get the area of the map that is visible
+	 * 
+	 * @return the visible area, or null if the map hasn't been drawn yet
+	 */
+	public BoundingBox getVisibleArea() {
+		return visibleArea;
+	}
+	
+	/**
+	 * get the zoom level the map was last drawn at
+	 * 
+	 * @return the zoom level, or -1 if the map hasn't been drawn yet
+	 */
+	public byte getZoomLevel() {
+		return zoomLevel;
+	}
+	
+	/**
+	 * check to see if the visible area has moved outside of the loaded area
+	 * 
+	 * @return true if markers need to be loaded for the visible area
+	 */
+	public boolean isLoadRequired() {
+		return loadRequired;
+	}
+	
+	/**
+	 * get the area to load markers for, which is the visible area with
+	 * a margin on each side so that small movements don't require a new load
+	 * 
+	 * @return the area to load, or null if markers for the whole map should be loaded
+	 */
+	public BoundingBox getAreaToLoad() {
+		
+		BoundingBox mVisible = visibleArea;
+		
+		if(mVisible == null) {
+			return null;
+		}
+		
+		int mLatitudeMargin = (mVisible.maxLatitudeE6 - mVisible.minLatitudeE6) / 2;
+		int mLongitudeMargin = (mVisible.maxLongitudeE6 - mVisible.minLongitudeE6) / 2;
+		
+		int mMinLongitude = mVisible.minLongitudeE6 - mLongitudeMargin;
+		int mMaxLongitude = mVisible.maxLongitudeE6 + mLongitudeMargin;
+		
+		if(mMinLongitude < -180000000 || mMaxLongitude > 180000000) {
+			// too close to 180 degrees of longitude to bother with a bounding box
+			return null;
+		}
+		
+		return new BoundingBox(
+				Math.max(mVisible.minLatitudeE6 - mLatitudeMargin, -90000000),
+				mMinLongitude,
+				Math.min(mVisible.maxLatitudeE6 + mLatitudeMargin, 90000000),
+				mMaxLongitude);
+	}
+	
+	/**
+	 * set the area that markers have been loaded for
+	 * 
+	 * @param area the area that has been loaded, or null if the whole map has been loaded
+	 */
+	public void setLoadedArea(BoundingBox area) {
+		loadedArea = area;
+		loadRequired = false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mapsforge.android.maps.overlay.Overlay#drawOverlayBitmap(android.graphics.Canvas, android.graphics.Point, org.mapsforge.android.maps.Projection, byte)
+	 */
+	@Override
+	protected void drawOverlayBitmap(Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel) {
+		
+		// work out the visible area from the corners of the map
+		GeoPoint mNorthWest = projection.fromPixels(0, 0);
+		GeoPoint mSouthEast = projection.fromPixels(canvas.getWidth(), canvas.getHeight());
+		
+		if(mNorthWest == null || mSouthEast == null) {
+			return;
+		}
+		
+		BoundingBox mVisible = new BoundingBox(
+				mSouthEast.latitudeE6,
+				mNorthWest.longitudeE6,
+				mNorthWest.latitudeE6,
+				mSouthEast.longitudeE6);
+		
+		visibleArea = mVisible;
+		
+		boolean mChanged = false;
+		
+		if(zoomLevel != drawZoomLevel) {
+			zoomLevel = drawZoomLevel;
+			mChanged = true;
+		}
+		
+		BoundingBox mLoaded = loadedArea;
+		
+		if(mLoaded != null && contains(mLoaded, mVisible) == false) {
+			if(V_LOG) {
+				Log.v(TAG, "visible area has moved outside of the loaded area");
+			}
+			
+			// only ask once for each loaded area
+			loadedArea = null;
+			loadRequired = true;
+			mChanged = true;
+		}
+		
+		if(mChanged) {
+			handler.post(task);
+		}
+	}
+	
+	/*
+	 * check to see if one area is completely inside another
+	 */
+	private boolean contains(BoundingBox outer, BoundingBox inner) {
+		return inner.minLatitudeE6 >= outer.minLatitudeE6
+				&& inner.maxLatitudeE6 <= outer.maxLatitudeE6
+				&& inner.minLongitudeE6 >= outer.minLongitudeE6
+				&& inner.maxLongitudeE6 <= outer.maxLongitudeE6;
+	}
+}
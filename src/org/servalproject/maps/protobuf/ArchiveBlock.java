@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+/**
+ * the index entry for a block of records in an archive file
+ */
+class ArchiveBlock {
+	
+	/**
+	 * offset of the compressed block from the start of the file
+	 */
+	long offset;
+	
+	/**
+	 * length of the compressed block
+	 */
+	int length;
+	
+	/**
+	 * length of the block once it is decompressed
+	 */
+	int rawLength;
+	
+	/**
+	 * number of records in the block
+	 */
+	int recordCount;
+	
+	/**
+	 * earliest and latest timestamps in the block
+	 */
+	long firstTimestamp;
+	long lastTimestamp;
+	
+	/**
+	 * sorted dictionary indexes of the peers in the block
+	 */
+	int[] peers;
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import org.servalproject.maps.utils.GeoUtils;
+
+/**
+ * declare various constants related to the location archive file
+ * 
+ * an archive stores location records in blocks of columns rather than as one message per record,
+ * phone numbers, subscriber ids and time zones are stored once in a dictionary and referred to by
+ * index, timestamps and coordinates are stored as the difference from the previous record for the
+ * same peer in the block, and each block is compressed
+ * 
+ * layout of the file:
+ * 
+ * header: MAGIC (4 bytes), VERSION (1 byte)
+ * 
+ * blocks: each block is deflate compressed and contains the record count followed by the peer index,
+ * time zone index, timestamp, latitude and longitude columns, all stored as varints with the deltas
+ * zig zag encoded, coordinates are fixed point with COORDINATE_SCALE units per degree
+ * 
+ * footer: the version, the peer dictionary (phone number and subscriber id), the time zone dictionary
+ * and an index entry for each block containing its offset, compressed and uncompressed lengths,
+ * record count, first and last timestamps and the peers it contains
+ * 
+ * trailer: the offset of the footer (8 bytes) and MAGIC (4 bytes), so the index can be read from the
+ * end of the file and only the blocks matching a time range or peer need to be decompressed
+ */
+public class ArchiveFileContract {
+	
+	/**
+	 * the file extension for the location archive file
+	 */
+	public static final String ARCHIVE_EXT = ".smapa";
+	
+	/**
+	 * the magic number at the start and end of an archive file, "SMAA"
+	 */
+	public static final int MAGIC = 0x534D4141;
+	
+	/**
+	 * the version of the archive file format
+	 */
+	public static final int VERSION = 1;
+	
+	/**
+	 * the maximum number of records in a block
+	 */
+	public static final int BLOCK_SIZE = 4096;
+	
+	/**
+	 * the number of fixed point units per degree used to store coordinates, about one centimetre
+	 */
+	public static final double COORDINATE_SCALE = GeoUtils.FIXED_POINT_SCALE;
+	
+	/**
+	 * the length in bytes of the trailer at the end of the file
+	 */
+	public static final int TRAILER_LENGTH = 12;
+	
+	/**
+	 * convert a coordinate in degrees to fixed point
+	 * 
+	 * @param degrees the coordinate in degrees
+	 * @return the coordinate in fixed point units
+	 */
+	public static long toFixedPoint(double degrees) {
+		return GeoUtils.toFixedPoint(degrees);
+	}
+	
+	/**
+	 * convert a fixed point coordinate to degrees
+	 * 
+	 * @param fixedPoint the coordinate in fixed point units
+	 * @return the coordinate in degrees
+	 */
+	public static double fromFixedPoint(long fixedPoint) {
+		return GeoUtils.fromFixedPoint(fixedPoint);
+	}
+}
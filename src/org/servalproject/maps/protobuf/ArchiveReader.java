@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * read location records from an archive file as described in ArchiveFileContract
+ * 
+ * only the footer is read when the archive is opened, blocks are read and decompressed
+ * when they may contain records matching the time range and peer being read
+ */
+public class ArchiveReader {
+	
+	/**
+	 * receives the records read from an archive
+	 */
+	public interface RecordHandler {
+		
+		/**
+		 * called for each matching record in the order they were written within each block
+		 * 
+		 * @param message the location record
+		 */
+		public void onRecord(LocationMessage.Message message);
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private RandomAccessFile file;
+	
+	private String[] phoneNumbers;
+	private String[] subscriberIds;
+	private String[] timeZones;
+	private ArchiveBlock[] blocks;
+	
+	private Inflater inflater = new Inflater();
+	
+	/**
+	 * open an archive and read its index
+	 * 
+	 * @param archive the archive file
+	 * @throws IOException if the file can't be read or isn't an archive
+	 */
+	public ArchiveReader(File archive) throws IOException {
+		
+		if(archive == null) {
+			throw new IllegalArgumentException("the archive parameter is required");
+		}
+		
+		file = new RandomAccessFile(archive, "r");
+		
+		try {
+			readFooter();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * get the number of records in the archive
+	 * 
+	 * @return the number of records
+	 */
+	public int getRecordCount() {
+		
+		int mCount = 0;
+		
+		for(ArchiveBlock mBlock : blocks) {
+			mCount += mBlock.recordCount;
+		}
+		
+		return mCount;
+	}
+	
+	/**
+	 * get the phone numbers of the peers with records in the archive
+	 * 
+	 * @return the phone numbers, a phone number with more than one subscriber id is listed more than once
+	 */
+	public String[] getPhoneNumbers() {
+		return phoneNumbers.clone();
+	}
+	
+	/**
+	 * read all of the records in the archive
+	 * 
+	 * @param handler the handler to receive the records
+	 * @return the number of records read
+	 * @throws IOException if a block can't be read
+	 */
+	public int read(RecordHandler handler) throws IOException {
+		return read(Long.MIN_VALUE, Long.MAX_VALUE, null, handler);
+	}
+	
+	/**
+	 * read the records in a time range, optionally for only one peer, blocks that
+	 * can't contain a matching record are skipped without being read
+	 * 
+	 * @param from the earliest timestamp to read, inclusive
+	 * @param to the latest timestamp to read, inclusive
+	 * @param phoneNumber the phone number of the peer to read, or null for all peers
+	 * @param handler the handler to receive the records
+	 * @return the number of records read
+	 * @throws IOException if a block can't be read
+	 */
+	public int read(long from, long to, String phoneNumber, RecordHandler handler) throws IOException {
+		
+		if(handler == null) {
+			throw new IllegalArgumentException("the handler parameter is required");
+		}
+		
+		// find the dictionary entries for the peer
+		boolean[] mWanted = null;
+		
+		if(phoneNumber != null) {
+			mWanted = new boolean[phoneNumbers.length];
+			boolean mFound = false;
+			
+			for(int i = 0; i < phoneNumbers.length; i++) {
+				if(phoneNumbers[i].equals(phoneNumber)) {
+					mWanted[i] = true;
+					mFound = true;
+				}
+			}
+			
+			if(mFound == false) {
+				return 0;
+			}
+		}
+		
+		int mCount = 0;
+		
+		for(ArchiveBlock mBlock : blocks) {
+			
+			if(mBlock.lastTimestamp < from || mBlock.firstTimestamp > to) {
+				continue;
+			}
+			
+			if(mWanted != null && containsPeer(mBlock, mWanted) == false) {
+				continue;
+			}
+			
+			mCount += readBlock(mBlock, from, to, mWanted, handler);
+		}
+		
+		return mCount;
+	}
+	
+	/**
+	 * close the archive file
+	 */
+	public void close() {
+		
+		inflater.end();
+		
+		try {
+			file.close();
+		} catch (IOException e) {
+			// nothing useful can be done
+		}
+	}
+	
+	/*
+	 * check to see if a block contains any of the wanted peers
+	 */
+	private boolean containsPeer(ArchiveBlock block, boolean[] wanted) {
+		
+		for(int mPeer : block.peers) {
+			if(wanted[mPeer]) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/*
+	 * read the trailer, the dictionaries and the block index
+	 */
+	private void readFooter() throws IOException {
+		
+		long mLength = file.length();
+		
+		if(mLength < 5 + ArchiveFileContract.TRAILER_LENGTH) {
+			throw new IOException("the file is too short to be an archive");
+		}
+		
+		file.seek(0);
+		
+		if(file.readInt() != ArchiveFileContract.MAGIC) {
+			throw new IOException("the file is not an archive");
+		}
+		
+		if(file.readUnsignedByte() > ArchiveFileContract.VERSION) {
+			throw new IOException("the archive was written by a newer version of the software");
+		}
+		
+		file.seek(mLength - ArchiveFileContract.TRAILER_LENGTH);
+		
+		long mFooterOffset = file.readLong();
+		
+		if(file.readInt() != ArchiveFileContract.MAGIC) {
+			throw new IOException("the archive is incomplete");
+		}
+		
+		long mFooterLength = mLength - ArchiveFileContract.TRAILER_LENGTH - mFooterOffset;
+		
+		if(mFooterOffset < 5 || mFooterLength < 0 || mFooterLength > Integer.MAX_VALUE) {
+			throw new IOException("the archive index is invalid");
+		}
+		
+		byte[] mFooter = new byte[(int) mFooterLength];
+		file.seek(mFooterOffset);
+		file.readFully(mFooter);
+		
+		CodedInputStream mCoded = CodedInputStream.newInstance(mFooter);
+		
+		mCoded.readUInt32();
+		
+		int mPeerCount = mCoded.readUInt32();
+		phoneNumbers = new String[mPeerCount];
+		subscriberIds = new String[mPeerCount];
+		
+		for(int i = 0; i < mPeerCount; i++) {
+			phoneNumbers[i] = mCoded.readString();
+			subscriberIds[i] = mCoded.readString();
+		}
+		
+		int mTimeZoneCount = mCoded.readUInt32();
+		timeZones = new String[mTimeZoneCount];
+		
+		for(int i = 0; i < mTimeZoneCount; i++) {
+			timeZones[i] = mCoded.readString();
+		}
+		
+		int mBlockCount = mCoded.readUInt32();
+		blocks = new ArchiveBlock[mBlockCount];
+		
+		for(int i = 0; i < mBlockCount; i++) {
+			ArchiveBlock mBlock = new ArchiveBlock();
+			mBlock.offset = mCoded.readUInt64();
+			mBlock.length = mCoded.readUInt32();
+			mBlock.rawLength = mCoded.readUInt32();
+			mBlock.recordCount = mCoded.readUInt32();
+			mBlock.firstTimestamp = mCoded.readSInt64();
+			mBlock.lastTimestamp = mBlock.firstTimestamp + mCoded.readSInt64();
+			
+			mBlock.peers = new int[mCoded.readUInt32()];
+			
+			int mPrevious = 0;
+			
+			for(int j = 0; j < mBlock.peers.length; j++) {
+				mPrevious += mCoded.readUInt32();
+				
+				if(mPrevious < 0 || mPrevious >= mPeerCount) {
+					throw new IOException("the archive index is invalid");
+				}
+				
+				mBlock.peers[j] = mPrevious;
+			}
+			
+			blocks[i] = mBlock;
+		}
+	}
+	
+	/*
+	 * decompress and decode a block, passing the matching records to the handler
+	 */
+	private int readBlock(ArchiveBlock block, long from, long to, boolean[] wanted, RecordHandler handler) throws IOException {
+		
+		byte[] mCompressed = new byte[block.length];
+		file.seek(block.offset);
+		file.readFully(mCompressed);
+		
+		byte[] mRaw = new byte[block.rawLength];
+		
+		inflater.reset();
+		inflater.setInput(mCompressed);
+		
+		try {
+			if(inflater.inflate(mRaw) != block.rawLength) {
+				throw new IOException("the archive block at '" + block.offset + "' is truncated");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("the archive block at '" + block.offset + "' is corrupt");
+		}
+		
+		CodedInputStream mCoded = CodedInputStream.newInstance(mRaw);
+		
+		int mRecordCount = mCoded.readUInt32();
+		
+		int[] mPeers = new int[mRecordCount];
+		int[] mTimeZones = new int[mRecordCount];
+		long[] mTimestamps = new long[mRecordCount];
+		long[] mLatitudes = new long[mRecordCount];
+		
+		for(int i = 0; i < mRecordCount; i++) {
+			mPeers[i] = mCoded.readUInt32();
+			
+			if(mPeers[i] < 0 || mPeers[i] >= phoneNumbers.length) {
+				throw new IOException("the archive block at '" + block.offset + "' is corrupt");
+			}
+		}
+		
+		for(int i = 0; i < mRecordCount; i++) {
+			mTimeZones[i] = mCoded.readUInt32();
+			
+			if(mTimeZones[i] < 0 || mTimeZones[i] >= timeZones.length) {
+				throw new IOException("the archive block at '" + block.offset + "' is corrupt");
+			}
+		}
+		
+		// undo the deltas, which are from the previous record for the same peer
+		long[] mPrevious = new long[phoneNumbers.length];
+		
+		for(int i = 0; i < mRecordCount; i++) {
+			mTimestamps[i] = mPrevious[mPeers[i]] + mCoded.readSInt64();
+			mPrevious[mPeers[i]] = mTimestamps[i];
+		}
+		
+		mPrevious = new long[phoneNumbers.length];
+		
+		for(int i = 0; i < mRecordCount; i++) {
+			mLatitudes[i] = mPrevious[mPeers[i]] + mCoded.readSInt64();
+			mPrevious[mPeers[i]] = mLatitudes[i];
+		}
+		
+		// the longitude column is the last so records can be passed on as it is decoded
+		mPrevious = new long[phoneNumbers.length];
+		
+		int mCount = 0;
+		
+		for(int i = 0; i < mRecordCount; i++) {
+			long mLongitude = mPrevious[mPeers[i]] + mCoded.readSInt64();
+			mPrevious[mPeers[i]] = mLongitude;
+			
+			if(mTimestamps[i] < from || mTimestamps[i] > to) {
+				continue;
+			}
+			
+			if(wanted != null && wanted[mPeers[i]] == false) {
+				continue;
+			}
+			
+			LocationMessage.Message.Builder mMessageBuilder = LocationMessage.Message.newBuilder();
+			
+			mMessageBuilder.setPhoneNumber(phoneNumbers[mPeers[i]]);
+			mMessageBuilder.setSubsciberId(subscriberIds[mPeers[i]]);
+			mMessageBuilder.setLatitude(ArchiveFileContract.fromFixedPoint(mLatitudes[i]));
+			mMessageBuilder.setLongitude(ArchiveFileContract.fromFixedPoint(mLongitude));
+			mMessageBuilder.setTimestamp(mTimestamps[i]);
+			mMessageBuilder.setTimeZone(timeZones[mTimeZones[i]]);
+			
+			handler.onRecord(mMessageBuilder.build());
+			mCount++;
+		}
+		
+		return mCount;
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * write location records to an archive file as described in ArchiveFileContract
+ * 
+ * records are collected into blocks of up to ArchiveFileContract.BLOCK_SIZE records
+ * and the footer is written when the writer is closed, a writer that isn't closed
+ * leaves an archive that can't be read
+ */
+public class ArchiveWriter {
+	
+	/*
+	 * private class level variables
+	 */
+	private DataOutputStream output;
+	private long offset = 0;
+	
+	// dictionaries of peers and time zones, and the index entry for each block written
+	private HashMap<String, Integer> peerIndexes = new HashMap<String, Integer>();
+	private ArrayList<String[]> peers = new ArrayList<String[]>();
+	private HashMap<String, Integer> timeZoneIndexes = new HashMap<String, Integer>();
+	private ArrayList<String> timeZones = new ArrayList<String>();
+	private ArrayList<ArchiveBlock> blocks = new ArrayList<ArchiveBlock>();
+	
+	// columns for the block being collected
+	private int[] blockPeers = new int[ArchiveFileContract.BLOCK_SIZE];
+	private int[] blockTimeZones = new int[ArchiveFileContract.BLOCK_SIZE];
+	private long[] blockTimestamps = new long[ArchiveFileContract.BLOCK_SIZE];
+	private long[] blockLatitudes = new long[ArchiveFileContract.BLOCK_SIZE];
+	private long[] blockLongitudes = new long[ArchiveFileContract.BLOCK_SIZE];
+	private int blockCount = 0;
+	
+	private ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream(64 * 1024);
+	private Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+	private byte[] deflateBuffer = new byte[16 * 1024];
+	
+	private int recordCount = 0;
+	
+	/**
+	 * construct a new writer and write the file header
+	 * 
+	 * @param output the stream to write the archive to, it is closed when the writer is closed
+	 * @throws IOException if the header can't be written
+	 */
+	public ArchiveWriter(OutputStream output) throws IOException {
+		
+		if(output == null) {
+			throw new IllegalArgumentException("the output parameter is required");
+		}
+		
+		this.output = new DataOutputStream(output);
+		
+		this.output.writeInt(ArchiveFileContract.MAGIC);
+		this.output.writeByte(ArchiveFileContract.VERSION);
+		offset = 5;
+	}
+	
+	/**
+	 * add a location record to the archive
+	 * 
+	 * @param phoneNumber the phone number of the peer
+	 * @param subscriberId the subscriber id of the peer
+	 * @param latitude the latitude in degrees
+	 * @param longitude the longitude in degrees
+	 * @param timestamp the time of the location
+	 * @param timeZone the time zone of the peer
+	 * @throws IOException if a completed block can't be written
+	 */
+	public void write(String phoneNumber, String subscriberId, double latitude, double longitude, long timestamp, String timeZone) throws IOException {
+		
+		if(phoneNumber == null) {
+			throw new IllegalArgumentException("the phoneNumber parameter is required");
+		}
+		
+		blockPeers[blockCount] = getPeerIndex(phoneNumber, subscriberId);
+		blockTimeZones[blockCount] = getTimeZoneIndex(timeZone);
+		blockTimestamps[blockCount] = timestamp;
+		blockLatitudes[blockCount] = ArchiveFileContract.toFixedPoint(latitude);
+		blockLongitudes[blockCount] = ArchiveFileContract.toFixedPoint(longitude);
+		blockCount++;
+		recordCount++;
+		
+		if(blockCount == ArchiveFileContract.BLOCK_SIZE) {
+			writeBlock();
+		}
+	}
+	
+	/**
+	 * add a location message to the archive
+	 * 
+	 * @param message the location message
+	 * @throws IOException if a completed block can't be written
+	 */
+	public void write(LocationMessage.Message message) throws IOException {
+		
+		write(message.getPhoneNumber(),
+				message.getSubsciberId(),
+				message.getLatitude(),
+				message.getLongitude(),
+				message.getTimestamp(),
+				message.getTimeZone());
+	}
+	
+	/**
+	 * get the number of records added to the archive
+	 * 
+	 * @return the number of records
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+	
+	/**
+	 * write the last block and the footer, and close the output stream
+	 * 
+	 * @throws IOException if the archive can't be finished
+	 */
+	public void close() throws IOException {
+		
+		try {
+			if(blockCount > 0) {
+				writeBlock();
+			}
+			
+			writeFooter();
+			output.flush();
+		} finally {
+			deflater.end();
+			output.close();
+		}
+	}
+	
+	/*
+	 * get the dictionary index of a peer, adding it if required
+	 */
+	private int getPeerIndex(String phoneNumber, String subscriberId) {
+		
+		if(subscriberId == null) {
+			subscriberId = "";
+		}
+		
+		String mKey = phoneNumber + "|" + subscriberId;
+		Integer mIndex = peerIndexes.get(mKey);
+		
+		if(mIndex == null) {
+			mIndex = peers.size();
+			peers.add(new String[] {phoneNumber, subscriberId});
+			peerIndexes.put(mKey, mIndex);
+		}
+		
+		return mIndex;
+	}
+	
+	/*
+	 * get the dictionary index of a time zone, adding it if required
+	 */
+	private int getTimeZoneIndex(String timeZone) {
+		
+		if(timeZone == null) {
+			timeZone = "";
+		}
+		
+		Integer mIndex = timeZoneIndexes.get(timeZone);
+		
+		if(mIndex == null) {
+			mIndex = timeZones.size();
+			timeZones.add(timeZone);
+			timeZoneIndexes.put(timeZone, mIndex);
+		}
+		
+		return mIndex;
+	}
+	
+	/*
+	 * encode, compress and write the block being collected
+	 */
+	private void writeBlock() throws IOException {
+		
+		ArchiveBlock mBlock = new ArchiveBlock();
+		mBlock.offset = offset;
+		mBlock.recordCount = blockCount;
+		mBlock.firstTimestamp = Long.MAX_VALUE;
+		mBlock.lastTimestamp = Long.MIN_VALUE;
+		
+		// encode the columns, deltas are from the previous record for the same peer
+		blockBuffer.reset();
+		CodedOutputStream mCoded = CodedOutputStream.newInstance(blockBuffer);
+		
+		mCoded.writeUInt32NoTag(blockCount);
+		
+		for(int i = 0; i < blockCount; i++) {
+			mCoded.writeUInt32NoTag(blockPeers[i]);
+		}
+		
+		for(int i = 0; i < blockCount; i++) {
+			mCoded.writeUInt32NoTag(blockTimeZones[i]);
+		}
+		
+		HashMap<Integer, long[]> mPrevious = new HashMap<Integer, long[]>();
+		
+		for(int i = 0; i < blockCount; i++) {
+			mBlock.firstTimestamp = Math.min(mBlock.firstTimestamp, blockTimestamps[i]);
+			mBlock.lastTimestamp = Math.max(mBlock.lastTimestamp, blockTimestamps[i]);
+			
+			long[] mPeerPrevious = getPrevious(mPrevious, blockPeers[i]);
+			mCoded.writeSInt64NoTag(blockTimestamps[i] - mPeerPrevious[0]);
+			mPeerPrevious[0] = blockTimestamps[i];
+		}
+		
+		for(int i = 0; i < blockCount; i++) {
+			long[] mPeerPrevious = getPrevious(mPrevious, blockPeers[i]);
+			mCoded.writeSInt64NoTag(blockLatitudes[i] - mPeerPrevious[1]);
+			mPeerPrevious[1] = blockLatitudes[i];
+		}
+		
+		for(int i = 0; i < blockCount; i++) {
+			long[] mPeerPrevious = getPrevious(mPrevious, blockPeers[i]);
+			mCoded.writeSInt64NoTag(blockLongitudes[i] - mPeerPrevious[2]);
+			mPeerPrevious[2] = blockLongitudes[i];
+		}
+		
+		mCoded.flush();
+		
+		// the index lists the peers in each block so blocks can be skipped without decoding them
+		int[] mBlockPeers = new int[mPrevious.size()];
+		int mPeer = 0;
+		
+		for(Integer mIndex : mPrevious.keySet()) {
+			mBlockPeers[mPeer++] = mIndex;
+		}
+		
+		Arrays.sort(mBlockPeers);
+		mBlock.peers = mBlockPeers;
+		
+		// compress the block straight to the output
+		byte[] mRaw = blockBuffer.toByteArray();
+		mBlock.rawLength = mRaw.length;
+		
+		deflater.reset();
+		deflater.setInput(mRaw);
+		deflater.finish();
+		
+		int mLength = 0;
+		
+		while(deflater.finished() == false) {
+			int mCount = deflater.deflate(deflateBuffer);
+			output.write(deflateBuffer, 0, mCount);
+			mLength += mCount;
+		}
+		
+		mBlock.length = mLength;
+		offset += mLength;
+		
+		blocks.add(mBlock);
+		blockCount = 0;
+	}
+	
+	/*
+	 * get the previous timestamp, latitude and longitude for a peer in the current block
+	 */
+	private long[] getPrevious(HashMap<Integer, long[]> previous, int peer) {
+		
+		long[] mPrevious = previous.get(peer);
+		
+		if(mPrevious == null) {
+			mPrevious = new long[3];
+			previous.put(peer, mPrevious);
+		}
+		
+		return mPrevious;
+	}
+	
+	/*
+	 * write the dictionaries, the block index and the trailer
+	 */
+	private void writeFooter() throws IOException {
+		
+		long mFooterOffset = offset;
+		
+		CodedOutputStream mCoded = CodedOutputStream.newInstance(output);
+		
+		mCoded.writeUInt32NoTag(ArchiveFileContract.VERSION);
+		
+		mCoded.writeUInt32NoTag(peers.size());
+		
+		for(String[] mPeer : peers) {
+			mCoded.writeStringNoTag(mPeer[0]);
+			mCoded.writeStringNoTag(mPeer[1]);
+		}
+		
+		mCoded.writeUInt32NoTag(timeZones.size());
+		
+		for(String mTimeZone : timeZones) {
+			mCoded.writeStringNoTag(mTimeZone);
+		}
+		
+		mCoded.writeUInt32NoTag(blocks.size());
+		
+		for(ArchiveBlock mBlock : blocks) {
+			mCoded.writeUInt64NoTag(mBlock.offset);
+			mCoded.writeUInt32NoTag(mBlock.length);
+			mCoded.writeUInt32NoTag(mBlock.rawLength);
+			mCoded.writeUInt32NoTag(mBlock.recordCount);
+			mCoded.writeSInt64NoTag(mBlock.firstTimestamp);
+			mCoded.writeSInt64NoTag(mBlock.lastTimestamp - mBlock.firstTimestamp);
+			
+			// the peer indexes are sorted so store the differences
+			mCoded.writeUInt32NoTag(mBlock.peers.length);
+			
+			int mPrevious = 0;
+			
+			for(int mPeer : mBlock.peers) {
+				mCoded.writeUInt32NoTag(mPeer - mPrevious);
+				mPrevious = mPeer;
+			}
+		}
+		
+		mCoded.flush();
+		
+		output.writeLong(mFooterOffset);
+		output.writeInt(ArchiveFileContract.MAGIC);
+	}
+}
@@ -19,16 +19,34 @@
  */
 package org.servalproject.maps.protobuf;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
+import org.servalproject.maps.provider.CursorColumns;
 import org.servalproject.maps.provider.LocationsContract;
 import org.servalproject.maps.provider.PointsOfInterestContract;
 
-import android.database.Cursor;
+import android.content.ContentValues;
 
 /**
  * declare various constants related to the processing of binary files
+ * 
+ * location files are written in one of two formats:
+ * 
+ * delimited: one length delimited LocationMessage per record, as written by writeDelimitedTo
+ * 
+ * compact: COMPACT_MAGIC (4 bytes) and COMPACT_VERSION (1 byte) followed by frames, each frame
+ * is a varint length and then the phone number, subscriber id and time zone shared by the records
+ * in the frame, a varint record count, and for each record the timestamp, latitude and longitude as
+ * zig zag varints of the difference from the previous record in the frame, coordinates are fixed
+ * point with ArchiveFileContract.COORDINATE_SCALE units per degree, each frame can be read on its
+ * own so a file can be appended to and read from the end of the last complete frame
+ * 
+ * a delimited file can't start with a zero byte as that would be an empty message,
+ * which is how the two formats are told apart
  */
 public class BinaryFileContract {
 	
@@ -47,24 +65,142 @@ public class BinaryFileContract {
 	 */
 	public static final String[] EXTENSIONS = {LOCATION_EXT, POI_EXT};
 	
+	/**
+	 * the magic number at the start of a compact location file, a zero byte and "SMC"
+	 */
+	public static final int COMPACT_MAGIC = 0x00534D43;
+	
+	/**
+	 * the format version of a location file with one delimited message per record
+	 */
+	public static final int DELIMITED_VERSION = 1;
+	
+	/**
+	 * the format version of a compact location file
+	 */
+	public static final int COMPACT_VERSION = 2;
+	
+	/**
+	 * the length in bytes of the header at the start of a compact location file
+	 */
+	public static final int COMPACT_HEADER_LENGTH = 5;
+	
+	/**
+	 * the maximum length in bytes of a frame in a compact location file
+	 */
+	public static final int COMPACT_MAX_FRAME_LENGTH = 64 * 1024;
+	
+	/*
+	 * the columns read from a cursor when writing records, the location
+	 * columns are the first six of the point of interest columns
+	 */
+	private static final String[] LOCATION_COLUMNS = {
+		LocationsContract.Table.PHONE_NUMBER,
+		LocationsContract.Table.SUBSCRIBER_ID,
+		LocationsContract.Table.LATITUDE,
+		LocationsContract.Table.LONGITUDE,
+		LocationsContract.Table.TIMESTAMP,
+		LocationsContract.Table.TIMEZONE
+	};
+	
+	private static final String[] POI_COLUMNS = {
+		PointsOfInterestContract.Table.PHONE_NUMBER,
+		PointsOfInterestContract.Table.SUBSCRIBER_ID,
+		PointsOfInterestContract.Table.LATITUDE,
+		PointsOfInterestContract.Table.LONGITUDE,
+		PointsOfInterestContract.Table.TIMESTAMP,
+		PointsOfInterestContract.Table.TIMEZONE,
+		PointsOfInterestContract.Table.TITLE,
+		PointsOfInterestContract.Table.DESCRIPTION,
+		PointsOfInterestContract.Table.CATEGORY,
+		PointsOfInterestContract.Table.PHOTO
+	};
+	
+	private static final int PHONE_NUMBER = 0;
+	private static final int SUBSCRIBER_ID = 1;
+	private static final int LATITUDE = 2;
+	private static final int LONGITUDE = 3;
+	private static final int TIMESTAMP = 4;
+	private static final int TIMEZONE = 5;
+	private static final int TITLE = 6;
+	private static final int DESCRIPTION = 7;
+	private static final int CATEGORY = 8;
+	private static final int PHOTO = 9;
+	
+	/**
+	 * write the header at the start of a compact location file
+	 * 
+	 * @param output the output stream
+	 * @throws IOException if the write operation fails
+	 */
+	public static void writeCompactHeader(OutputStream output) throws IOException {
+		
+		DataOutputStream mOutput = new DataOutputStream(output);
+		mOutput.writeInt(COMPACT_MAGIC);
+		mOutput.writeByte(COMPACT_VERSION);
+		mOutput.flush();
+	}
+	
+	/**
+	 * determine the format of a location file from the bytes at the start of the file
+	 * 
+	 * @param input a stream positioned at the start of the file, the header is read if there is one
+	 * @return COMPACT_VERSION if the file has a compact header, otherwise DELIMITED_VERSION
+	 * @throws IOException if the file can't be read or is a later version of the compact format
+	 */
+	public static int readLocationFormat(InputStream input) throws IOException {
+		
+		// the magic number starts with a zero byte which can't start a delimited file
+		int mByte = input.read();
+		
+		if(mByte != 0) {
+			return DELIMITED_VERSION;
+		}
+		
+		DataInputStream mInput = new DataInputStream(input);
+		
+		int mMagic = (mByte << 24) | (mInput.readUnsignedByte() << 16) | mInput.readUnsignedShort();
+		
+		if(mMagic != COMPACT_MAGIC) {
+			throw new IOException("unrecognised location file header");
+		}
+		
+		int mVersion = mInput.readUnsignedByte();
+		
+		if(mVersion != COMPACT_VERSION) {
+			throw new IOException("unsupported compact location file version: " + mVersion);
+		}
+		
+		return mVersion;
+	}
+	
+	/**
+	 * get the columns used to write binary location records from a cursor
+	 * 
+	 * @return the columns, ready to be bound to a cursor
+	 */
+	public static CursorColumns getLocationColumns() {
+		return new CursorColumns(LOCATION_COLUMNS);
+	}
+	
 	/**
 	 * write a binary location record to an output stream
 	 * 
-	 * @param cursor the cursor containing the record to write
+	 * @param columns the columns bound to the cursor containing the record to write
 	 * @param output the output stream
 	 * @throws IOException if the write operation fails
 	 */
-	public static void writeLocationRecord(Cursor cursor, OutputStream output) throws IOException {
+	public static void writeLocationRecord(CursorColumns columns, OutputStream output) throws IOException {
 		
 		org.servalproject.maps.protobuf.LocationMessage.Message.Builder mMessageBuilder = LocationMessage.Message.newBuilder();
 		
 		// populate the message
-		mMessageBuilder.setPhoneNumber(cursor.getString(cursor.getColumnIndex(LocationsContract.Table.PHONE_NUMBER)));
-		mMessageBuilder.setSubsciberId(cursor.getString(cursor.getColumnIndex(LocationsContract.Table.SUBSCRIBER_ID)));
-		mMessageBuilder.setLatitude(cursor.getDouble(cursor.getColumnIndex(LocationsContract.Table.LATITUDE)));
-		mMessageBuilder.setLongitude(cursor.getDouble(cursor.getColumnIndex(LocationsContract.Table.LONGITUDE)));
-		mMessageBuilder.setTimestamp(cursor.getLong(cursor.getColumnIndex(LocationsContract.Table.TIMESTAMP)));
-		mMessageBuilder.setTimeZone(cursor.getString(cursor.getColumnIndex(LocationsContract.Table.TIMEZONE)));
+		mMessageBuilder.setPhoneNumber(columns.getString(PHONE_NUMBER));
+		mMessageBuilder.setSubsciberId(columns.getString(SUBSCRIBER_ID));
+		mMessageBuilder.setLatitude(columns.getDouble(LATITUDE));
+		mMessageBuilder.setLongitude(columns.getDouble(LONGITUDE));
+		mMessageBuilder.setTimestamp(columns.getLong(TIMESTAMP));
+		mMessageBuilder.setTimeZone(columns.getString(TIMEZONE));
 		
 		// write the message
 		mMessageBuilder.build().writeDelimitedTo(output);
@@ -73,30 +209,115 @@ public class BinaryFileContract {
 		mMessageBuilder = null;
 	}
 	
+	/**
+	 * add a location record to an archive
+	 * 
+	 * @param columns the columns bound to the cursor containing the record to write
+	 * @param output the archive writer
+	 * @throws IOException if the write operation fails
+	 */
+	public static void writeLocationRecord(CursorColumns columns, ArchiveWriter output) throws IOException {
+		
+		output.write(
+				columns.getString(PHONE_NUMBER),
+				columns.getString(SUBSCRIBER_ID),
+				columns.getDouble(LATITUDE),
+				columns.getDouble(LONGITUDE),
+				columns.getLong(TIMESTAMP),
+				columns.getString(TIMEZONE));
+	}
+	
+	/**
+	 * build a location message from the values used to insert the record into the database
+	 * 
+	 * @param values the values for the new location record
+	 * @return the location message
+	 */
+	public static LocationMessage.Message buildLocationMessage(ContentValues values) {
+		
+		LocationMessage.Message.Builder mMessageBuilder = LocationMessage.Message.newBuilder();
+		
+		// populate the message
+		mMessageBuilder.setPhoneNumber(values.getAsString(LocationsContract.Table.PHONE_NUMBER));
+		mMessageBuilder.setSubsciberId(values.getAsString(LocationsContract.Table.SUBSCRIBER_ID));
+		mMessageBuilder.setLatitude(values.getAsDouble(LocationsContract.Table.LATITUDE));
+		mMessageBuilder.setLongitude(values.getAsDouble(LocationsContract.Table.LONGITUDE));
+		mMessageBuilder.setTimestamp(values.getAsLong(LocationsContract.Table.TIMESTAMP));
+		mMessageBuilder.setTimeZone(values.getAsString(LocationsContract.Table.TIMEZONE));
+		
+		return mMessageBuilder.build();
+	}
+	
+	/**
+	 * build a point of interest message from the values used to insert the record into the database
+	 * 
+	 * @param values the values for the new point of interest record
+	 * @return the point of interest message
+	 */
+	public static PointOfInterestMessage.Message buildPointOfInterestMessage(ContentValues values) {
+		
+		PointOfInterestMessage.Message.Builder mMessageBuilder = PointOfInterestMessage.Message.newBuilder();
+		
+		// populate the message
+		mMessageBuilder.setPhoneNumber(values.getAsString(PointsOfInterestContract.Table.PHONE_NUMBER));
+		mMessageBuilder.setSubsciberId(values.getAsString(PointsOfInterestContract.Table.SUBSCRIBER_ID));
+		mMessageBuilder.setLatitude(values.getAsDouble(PointsOfInterestContract.Table.LATITUDE));
+		mMessageBuilder.setLongitude(values.getAsDouble(PointsOfInterestContract.Table.LONGITUDE));
+		mMessageBuilder.setTimestamp(values.getAsLong(PointsOfInterestContract.Table.TIMESTAMP));
+		mMessageBuilder.setTimeZone(values.getAsString(PointsOfInterestContract.Table.TIMEZONE));
+		mMessageBuilder.setTitle(values.getAsString(PointsOfInterestContract.Table.TITLE));
+		mMessageBuilder.setDescription(values.getAsString(PointsOfInterestContract.Table.DESCRIPTION));
+		
+		// the database uses the default category if one isn't specified
+		if(values.containsKey(PointsOfInterestContract.Table.CATEGORY)) {
+			mMessageBuilder.setCategory(values.getAsLong(PointsOfInterestContract.Table.CATEGORY));
+		} else {
+			mMessageBuilder.setCategory(PointsOfInterestContract.DEFAULT_CATEGORY);
+		}
+		
+		// check to see if a photo is associated with this poi
+		String mPhotoName = values.getAsString(PointsOfInterestContract.Table.PHOTO);
+		
+		if(mPhotoName != null) {
+			mMessageBuilder.setPhoto(mPhotoName);
+		}
+		
+		return mMessageBuilder.build();
+	}
+	
+	/**
+	 * get the columns used to write binary point of interest records from a cursor
+	 * 
+	 * @return the columns, ready to be bound to a cursor
+	 */
+	public static CursorColumns getPointOfInterestColumns() {
+		return new CursorColumns(POI_COLUMNS);
+	}
+	
 	/**
 	 * write a binary point of interest record to an output stream
 	 * 
-	 * @param cursor the cursor containing the record to write
+	 * @param columns the columns bound to the cursor containing the record to write
 	 * @param output the output stream
 	 * @throws IOException if the write operation fails
 	 */
-	public static void writePointOfInterestRecord(Cursor cursor, OutputStream output) throws IOException {
+	public static void writePointOfInterestRecord(CursorColumns columns, OutputStream output) throws IOException {
 		
 		org.servalproject.maps.protobuf.PointOfInterestMessage.Message.Builder mMessageBuilder = PointOfInterestMessage.Message.newBuilder();
 		
 		// populate the message
-		mMessageBuilder.setPhoneNumber(cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.PHONE_NUMBER)));
-		mMessageBuilder.setSubsciberId(cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.SUBSCRIBER_ID)));
-		mMessageBuilder.setLatitude(cursor.getDouble(cursor.getColumnIndex(PointsOfInterestContract.Table.LATITUDE)));
-		mMessageBuilder.setLongitude(cursor.getDouble(cursor.getColumnIndex(PointsOfInterestContract.Table.LONGITUDE)));
-		mMessageBuilder.setTimestamp(cursor.getLong(cursor.getColumnIndex(PointsOfInterestContract.Table.TIMESTAMP)));
-		mMessageBuilder.setTimeZone(cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.TIMEZONE)));
-		mMessageBuilder.setTitle(cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.TITLE)));
-		mMessageBuilder.setDescription(cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.DESCRIPTION)));
-		mMessageBuilder.setCategory(cursor.getLong(cursor.getColumnIndex(PointsOfInterestContract.Table.CATEGORY)));
+		mMessageBuilder.setPhoneNumber(columns.getString(PHONE_NUMBER));
+		mMessageBuilder.setSubsciberId(columns.getString(SUBSCRIBER_ID));
+		mMessageBuilder.setLatitude(columns.getDouble(LATITUDE));
+		mMessageBuilder.setLongitude(columns.getDouble(LONGITUDE));
+		mMessageBuilder.setTimestamp(columns.getLong(TIMESTAMP));
+		mMessageBuilder.setTimeZone(columns.getString(TIMEZONE));
+		mMessageBuilder.setTitle(columns.getString(TITLE));
+		mMessageBuilder.setDescription(columns.getString(DESCRIPTION));
+		mMessageBuilder.setCategory(columns.getLong(CATEGORY));
 		
 		// check to see if this POI has a photo associated with it
-		String mPhotoName = cursor.getString(cursor.getColumnIndex(PointsOfInterestContract.Table.PHOTO)); 
+		String mPhotoName = columns.getString(PHOTO); 
 		
 		// check to see if a photo is associated with this poi
 		if(mPhotoName != null) {
@@ -19,122 +19,329 @@
  */
 package org.servalproject.maps.protobuf;
 
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import org.servalproject.maps.R;
-import org.servalproject.maps.provider.LocationsContract;
-import org.servalproject.maps.provider.PointsOfInterestContract;
 import org.servalproject.maps.rhizome.Rhizome;
+import org.servalproject.maps.rhizome.RhizomePublisher;
 import org.servalproject.maps.utils.FileUtils;
 import org.servalproject.maps.utils.MediaUtils;
 import org.servalproject.maps.utils.TimeUtils;
 
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 /**
  * write a google protocol buffer based binary file 
  * containing location or point of interest information
+ * 
+ * a single long lived writer keeps the current hourly files open on its own thread
+ * and buffers messages in memory, the buffered messages are written and the file
+ * synced to storage in one go (a group commit) once the sync interval has passed
+ * since the first unsynced message or the buffer reaches the sync size, whichever
+ * comes first, files are rolled over when the hour changes and synced before
+ * they are closed, location files are written in the compact format described
+ * in BinaryFileContract with one frame per commit
+ * 
+ * durability: messages that have not yet been committed are lost if the process is
+ * killed or the device loses power, so at most the sync interval or the sync size
+ * worth of messages can be lost, the records are always in the database first so
+ * only the copy shared via Rhizome is affected, a sync interval of zero commits
+ * every message as before
+ * 
+ * flash writes: previously every GPS fix cost an open, a write, an fsync and a close,
+ * so at one fix a second there were 3600 syncs an hour, each rewriting at least one
+ * flash page plus the file system metadata, with the default 30 second interval there
+ * are at most 120 syncs an hour for the location file, or one per 16KB of messages
+ * if that comes first, these figures are calculated from the policy rather than
+ * measured on a device
  */
 public class BinaryFileWriter {
 	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * default maximum time in milliseconds that a message is buffered before it is committed
+	 */
+	public static final long DEFAULT_SYNC_INTERVAL = 30 * 1000;
+	
+	/**
+	 * default number of buffered bytes that causes a commit
+	 */
+	public static final int DEFAULT_SYNC_SIZE = 16 * 1024;
+	
 	/*
 	 * private class level constants
 	 */
 	private static final String TAG = "BinaryFileWriter";
-	//private static final boolean V_LOG = false;
+	private static final boolean V_LOG = false;
+	
+	/*
+	 * an open hourly file and the messages waiting to be written to it
+	 */
+	private class OpenFile {
+		String path;
+		FileOutputStream output;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(DEFAULT_SYNC_SIZE);
+		
+		// the frame being built for a compact location file, null for other files
+		CompactLocationEncoder compact;
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private static BinaryFileWriter instance = null;
+	
+	private Context context;
+	private HandlerThread thread;
+	private Handler handler;
+	
+	private volatile long syncInterval = DEFAULT_SYNC_INTERVAL;
+	private volatile int syncSize = DEFAULT_SYNC_SIZE;
+	
+	// only used on the writer thread, keyed by file name without the hour
+	private HashMap<String, OpenFile> openFiles = new HashMap<String, OpenFile>();
+	private boolean commitScheduled = false;
 	
 	/**
-	 * write a location message to the file
+	 * get the writer, starting it if required
 	 * 
 	 * @param context a context object used to get a content resolver object
-	 * @param recordId the unique record identifier for the location record
+	 * @return the writer
 	 * 
 	 * @throws IllegalArgumentException if the context parameter is null
-	 * @throws IllegalArgumentException if a record cannot be found
 	 */
-	public static void writeLocation(Context context, String recordId) {
+	public static synchronized BinaryFileWriter getInstance(Context context) {
 		
 		if(context == null) {
 			throw new IllegalArgumentException("the context parameter is required");
 		}
 		
-		// get the path for the output files
-		String mOutputPath = Environment.getExternalStorageDirectory().getPath();
-		mOutputPath += context.getString(R.string.system_path_binary_data);
+		if(instance == null) {
+			instance = new BinaryFileWriter(context.getApplicationContext());
+		}
 		
-		// test the path
-		if(FileUtils.isDirectoryWritable(mOutputPath) == false) {
-			Log.e(TAG, "unable to access the required output directory");
-			return;
+		return instance;
+	}
+	
+	/**
+	 * commit any buffered messages, close the files and stop the writer,
+	 * waiting for the writer thread to finish
+	 * 
+	 * the writer is started again the next time it is required
+	 */
+	public static synchronized void shutdown() {
+		
+		if(instance != null) {
+			instance.stop();
+			instance = null;
+		}
+	}
+	
+	/**
+	 * write a location message to the file
+	 * 
+	 * @param context a context object used to get a content resolver object
+	 * @param message the location message built from the values of the new record
+	 * 
+	 * @throws IllegalArgumentException if the context parameter is null
+	 */
+	public static void writeLocation(Context context, LocationMessage.Message message) {
+		getInstance(context).queueLocation(message);
+	}
+	
+	/**
+	 * write a POI message to the file
+	 * 
+	 * @param context a context object used to get a content resolver object
+	 * @param message the POI message built from the values of the new record
+	 * 
+	 * @throws IllegalArgumentException if the context parameter is null
+	 */
+	public static void writePointOfInterest(Context context, PointOfInterestMessage.Message message) {
+		getInstance(context).queuePointOfInterest(message);
+	}
+	
+	/*
+	 * construct a new writer and start its thread
+	 */
+	private BinaryFileWriter(Context context) {
+		
+		this.context = context;
+		
+		thread = new HandlerThread(TAG);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+	
+	/**
+	 * set the policy used to decide when buffered messages are committed
+	 * 
+	 * @param interval the maximum time in milliseconds a message is buffered, zero commits every message
+	 * @param size the number of buffered bytes that causes a commit
+	 */
+	public void setSyncPolicy(long interval, int size) {
+		
+		if(interval < 0 || size < 0) {
+			throw new IllegalArgumentException("the interval and size must not be negative");
 		}
 		
-		// get the record
-		ContentResolver mContentResolver = context.getContentResolver();
+		syncInterval = interval;
+		syncSize = size;
+	}
+	
+	/**
+	 * queue a location message to be written to the file
+	 * 
+	 * @param message the location message
+	 */
+	public void queueLocation(final LocationMessage.Message message) {
 		
-		Uri mContentUri = Uri.parse(LocationsContract.CONTENT_URI.toString() + "/" + recordId);
+		if(message == null) {
+			throw new IllegalArgumentException("the message parameter is required");
+		}
 		
-		Cursor mCursor = mContentResolver.query(mContentUri, null, null, null, null);
+		handler.post(new Runnable() {
+			public void run() {
+				appendLocation(message);
+			}
+		});
+	}
+	
+	/**
+	 * queue a POI message to be written to the file
+	 * 
+	 * @param message the POI message
+	 */
+	public void queuePointOfInterest(final PointOfInterestMessage.Message message) {
 		
-		// check on the content
-		if(mCursor.getCount() == 0) {
-			Log.e(TAG, "the supplied recordId does not match any records");
-			return;
+		if(message == null) {
+			throw new IllegalArgumentException("the message parameter is required");
 		}
 		
-		// build the message
-		mCursor.moveToFirst();
+		handler.post(new Runnable() {
+			public void run() {
+				appendPointOfInterest(message);
+			}
+		});
+	}
+	
+	/*
+	 * commit everything and stop the writer thread once the queued records are written,
+	 * waiting for the thread so that a new writer can't open the same files while this one has them open
+	 */
+	private void stop() {
 		
-		// determine the file name
-		String mFileName = mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.PHONE_NUMBER));
-		mFileName = mFileName.replace(" ", "");
-		mFileName = mFileName.replace("-", "");
+		handler.post(new Runnable() {
+			public void run() {
+				commitAll(true);
+				thread.quit();
+			}
+		});
 		
-		mFileName = mFileName + "-" + TimeUtils.getTodayWithHour() + BinaryFileContract.LOCATION_EXT;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Log.w(TAG, "interrupted while waiting for the writer thread to stop");
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * task used to commit the buffered messages when the sync interval has passed
+	 */
+	private Runnable commitTask = new Runnable() {
+		public void run() {
+			commitScheduled = false;
+			commitAll(false);
+		}
+	};
+	
+	/*
+	 * write a location message to the buffer for its file
+	 */
+	private void appendLocation(LocationMessage.Message message) {
 		
-		FileOutputStream mOutput = null;
-
 		try {
-			mOutput = new FileOutputStream(mOutputPath + mFileName, true);
-			try{
-				BinaryFileContract.writeLocationRecord(mCursor, mOutput);
-				mOutput.getFD().sync();
-			}finally{
-				mOutput.close();
+			OpenFile mFile = getFile(message.getPhoneNumber(), BinaryFileContract.LOCATION_EXT);
+			
+			if(mFile != null) {
+				if(mFile.compact != null) {
+					mFile.compact.add(message, mFile.buffer);
+				} else {
+					message.writeDelimitedTo(mFile.buffer);
+				}
+				buffered(mFile);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "unable to write to the output file", e);
+		}
+	}
+	
+	/*
+	 * write a POI message to the buffer for its file
+	 */
+	private void appendPointOfInterest(PointOfInterestMessage.Message message) {
+		
+		try {
+			// check to see if a photo is associated with this poi
+			if(message.hasPhoto()) {
+				
+				// add the image to Rhizome
+				Rhizome.addFile(context, MediaUtils.getMediaStore() + message.getPhoto());
 			}
-			// add the file to rhizome
-			Rhizome.addFile(context, mOutputPath + mFileName);
 			
-		} catch (FileNotFoundException e) {
-			Log.e(TAG, "unable to create the output file", e);
+			OpenFile mFile = getFile(message.getPhoneNumber(), BinaryFileContract.POI_EXT);
+			
+			if(mFile != null) {
+				message.writeDelimitedTo(mFile.buffer);
+				
+				// POIs are rare and entered by hand so they are always committed and published straight away
+				commit(mFile);
+				RhizomePublisher.getInstance(context).publishNow(mFile.path);
+			}
 		} catch (IOException e) {
 			Log.e(TAG, "unable to write to the output file", e);
-		} finally {
-			mCursor.close();
 		}
 	}
 	
-	/**
-	 * write a POI message to the file
-	 * 
-	 * @param context a context object used to get a content resolver object
-	 * @param recordId the unique record identifier for the location record
-	 * 
-	 * @throws IllegalArgumentException if the context parameter is null
-	 * @throws IllegalArgumentException if a record cannot be found
+	/*
+	 * commit the buffer if the sync size has been reached, otherwise
+	 * make sure a commit is scheduled for when the sync interval passes
 	 */
-	public static void writePointOfInterest(Context context, String recordId) {
+	private void buffered(OpenFile file) throws IOException {
 		
-		if(context == null) {
-			throw new IllegalArgumentException("the context parameter is required");
+		int mSize = file.buffer.size();
+		
+		if(file.compact != null) {
+			mSize += file.compact.size();
 		}
 		
+		if(syncInterval == 0 || mSize >= syncSize) {
+			commit(file);
+		} else if(commitScheduled == false) {
+			commitScheduled = true;
+			handler.postDelayed(commitTask, syncInterval);
+		}
+	}
+	
+	/*
+	 * get the open file for the current hour, rolling over from the previous hour if required
+	 */
+	private OpenFile getFile(String phoneNumber, String extension) throws IOException {
+		
 		// get the path for the output files
 		String mOutputPath = Environment.getExternalStorageDirectory().getPath();
 		mOutputPath += context.getString(R.string.system_path_binary_data);
@@ -142,70 +349,198 @@ public class BinaryFileWriter {
 		// test the path
 		if(FileUtils.isDirectoryWritable(mOutputPath) == false) {
 			Log.e(TAG, "unable to access the required output directory");
-			return;
+			return null;
+		}
+		
+		// determine the file name
+		String mFileName = phoneNumber;
+		mFileName = mFileName.replace(" ", "");
+		mFileName = mFileName.replace("-", "");
+		
+		String mKey = mFileName + extension;
+		String mPath = mOutputPath + mFileName + "-" + TimeUtils.getTodayWithHour() + extension;
+		
+		OpenFile mFile = openFiles.get(mKey);
+		
+		if(mFile != null && mFile.path.equals(mPath) == false) {
+			// the hour has changed so finish with the previous file
+			close(mFile);
+			openFiles.remove(mKey);
+			mFile = null;
+		} else if(mFile != null && isDeleted(mFile)) {
+			// the data has been deleted so start the file again
+			discard(mFile);
+			openFiles.remove(mKey);
+			mFile = null;
 		}
 		
-		// get the record
-		ContentResolver mContentResolver = context.getContentResolver();
+		if(mFile == null) {
+			mFile = new OpenFile();
+			mFile.path = mPath;
+			
+			if(extension.equals(BinaryFileContract.LOCATION_EXT)) {
+				openLocationFile(mFile);
+			}
+			
+			mFile.output = new FileOutputStream(mPath, true);
+			openFiles.put(mKey, mFile);
+			
+			if(V_LOG) {
+				Log.v(TAG, "opened output file: " + mPath);
+			}
+		}
 		
-		Uri mContentUri = Uri.parse(PointsOfInterestContract.CONTENT_URI.toString() + "/" + recordId);
+		return mFile;
+	}
+	
+	/*
+	 * new location files are written in the compact format, a file started by an earlier
+	 * version of the software during the same hour is continued in the delimited format
+	 */
+	private void openLocationFile(OpenFile file) throws IOException {
 		
-		Cursor mCursor = mContentResolver.query(mContentUri, null, null, null, null);
+		File mExisting = new File(file.path);
 		
-		// check on the content
-		if(mCursor.getCount() == 0) {
-			Log.e(TAG, "unable to access the required output directory");
+		if(mExisting.length() == 0) {
+			BinaryFileContract.writeCompactHeader(file.buffer);
+			file.compact = new CompactLocationEncoder();
 			return;
 		}
 		
-		// build the message
-		mCursor.moveToFirst();
+		FileInputStream mInput = new FileInputStream(mExisting);
 		
-		String mPhotoName = mCursor.getString(mCursor.getColumnIndex(PointsOfInterestContract.Table.PHOTO)); 
+		try {
+			if(BinaryFileContract.readLocationFormat(mInput) == BinaryFileContract.COMPACT_VERSION) {
+				file.compact = new CompactLocationEncoder();
+			}
+		} finally {
+			mInput.close();
+		}
+	}
+	
+	/*
+	 * write the buffered messages to the file and sync it to storage
+	 */
+	private void commit(OpenFile file) throws IOException {
 		
-		// check to see if a photo is associated with this poi
-		if(mPhotoName != null) {
-			
-			// add the image to Rhizome
-			Rhizome.addFile(context, MediaUtils.getMediaStore() + mPhotoName);
+		// the current frame of a compact file is finished so it can be read straight away
+		if(file.compact != null) {
+			file.compact.finishFrame(file.buffer);
 		}
 		
-		// determine the file name
-		String mFileName = mCursor.getString(mCursor.getColumnIndex(LocationsContract.Table.PHONE_NUMBER));
-		mFileName = mFileName.replace(" ", "");
-		mFileName = mFileName.replace("-", "");
+		if(file.buffer.size() == 0) {
+			return;
+		}
+		
+		// the buffered messages belong to data that has been deleted
+		if(isDeleted(file)) {
+			file.buffer.reset();
+			return;
+		}
 		
-		mFileName = mFileName + "-" + TimeUtils.getTodayWithHour() + BinaryFileContract.POI_EXT;
+		// the length of the file before the write, so that a partial write can be removed
+		long mLength = file.output.getChannel().size();
 		
-		// open the file and write the data
-		FileOutputStream mOutput = null;
-		try{
+		try {
+			file.buffer.writeTo(file.output);
+			file.output.getFD().sync();
+		} catch (IOException e) {
+			// drop the messages rather than write them again after a partial
+			// write, which would corrupt the stream, the records are in the database
+			file.buffer.reset();
+			
 			try {
-				mOutput = new FileOutputStream(mOutputPath + mFileName, true);
-				
-				BinaryFileContract.writePointOfInterestRecord(mCursor, mOutput);
-				mOutput.getFD().sync();
-			}finally{
-				mOutput.close();
+				file.output.getChannel().truncate(mLength);
+			} catch (IOException ex) {
+				Log.e(TAG, "unable to remove a partial write from: " + file.path, ex);
 			}
-			// add the file to rhizome
-			Rhizome.addFile(context, mOutputPath + mFileName);
 			
-		} catch (FileNotFoundException e) {
-			Log.e(TAG, "unable to create the output file", e);
+			// the header of a new compact file was only in the buffer so write it again with the next commit
+			if(file.compact != null && mLength == 0) {
+				BinaryFileContract.writeCompactHeader(file.buffer);
+			}
+			
+			throw e;
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "committed " + file.buffer.size() + " bytes to: " + file.path);
+		}
+		
+		file.buffer.reset();
+		
+		// ask for the file to be added to rhizome, publications of a growing file are coalesced
+		RhizomePublisher.getInstance(context).requestPublish(file.path);
+	}
+	
+	/*
+	 * check to see if a file has been deleted while it was open, such as when the user deletes the data
+	 */
+	private boolean isDeleted(OpenFile file) {
+		return new File(file.path).exists() == false;
+	}
+	
+	/*
+	 * close a file that has been deleted without writing the buffered messages
+	 */
+	private void discard(OpenFile file) {
+		
+		file.buffer.reset();
+		
+		try {
+			file.output.close();
+		} catch (IOException e) {
+			Log.e(TAG, "unable to close the output file", e);
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "discarded deleted output file: " + file.path);
+		}
+	}
+	
+	/*
+	 * commit and close a file
+	 */
+	private void close(OpenFile file) {
+		
+		try {
+			commit(file);
 		} catch (IOException e) {
 			Log.e(TAG, "unable to write to the output file", e);
 		} finally {
-			// play nice and tidy up
 			try {
-				if(mOutput != null) {
-					mOutput.close();
-				}
+				file.output.close();
 			} catch (IOException e) {
 				Log.e(TAG, "unable to close the output file", e);
 			}
-			mCursor.close();
+			
+			// the file won't be written to again so publish the final version
+			RhizomePublisher.getInstance(context).publishNow(file.path);
 		}
 	}
-
-}  
\ No newline at end of file
+	
+	/*
+	 * commit all of the open files, closing them if they are finished with
+	 */
+	private void commitAll(boolean closeAll) {
+		
+		String mHour = TimeUtils.getTodayWithHour();
+		
+		Iterator<OpenFile> mFiles = openFiles.values().iterator();
+		
+		while(mFiles.hasNext()) {
+			OpenFile mFile = mFiles.next();
+			
+			if(closeAll || mFile.path.contains("-" + mHour) == false) {
+				close(mFile);
+				mFiles.remove();
+			} else {
+				try {
+					commit(mFile);
+				} catch (IOException e) {
+					Log.e(TAG, "unable to write to the output file", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * collects new records and writes them to the MapItems provider in batches,
+ * each batch is committed in a single transaction using bulkInsert
+ *
+ * the time taken to commit a batch is used to detect contention on the database
+ * and the helper backs off between batches when commits are slow
+ */
+public class BulkInsertHelper {
+
+	/*
+	 * public class level constants
+	 */
+
+	/**
+	 * the default number of records in a batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 250;
+
+	/*
+	 * private class level constants
+	 */
+	private final String TAG = "BulkInsertHelper";
+	private final boolean V_LOG = false;
+
+	// a batch that takes longer than this to commit indicates contention (milliseconds)
+	private final long TARGET_COMMIT_TIME = 200;
+
+	// upper limit on the time to back off between batches (milliseconds)
+	private final long MAX_BACK_OFF = 2000;
+
+	/*
+	 * private class level variables
+	 */
+	private ContentResolver contentResolver;
+	private Uri contentUri;
+	private int batchSize;
+
+	private ArrayList<ContentValues> pending;
+
+	private long backOff = 0;
+	private long startTime = -1;
+	private long rowCount = 0;
+
+	/**
+	 * construct a new bulk insert helper using the default batch size
+	 *
+	 * @param contentResolver the content resolver used to insert the records
+	 * @param contentUri the content uri of the table to insert the records into
+	 */
+	public BulkInsertHelper(ContentResolver contentResolver, Uri contentUri) {
+		this(contentResolver, contentUri, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * construct a new bulk insert helper
+	 *
+	 * @param contentResolver the content resolver used to insert the records
+	 * @param contentUri the content uri of the table to insert the records into
+	 * @param batchSize the maximum number of records in a batch
+	 *
+	 * @throws IllegalArgumentException if a parameter is invalid
+	 */
+	public BulkInsertHelper(ContentResolver contentResolver, Uri contentUri, int batchSize) {
+
+		if(contentResolver == null || contentUri == null) {
+			throw new IllegalArgumentException("all parameters are required");
+		}
+
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("the batchSize parameter must be greater than zero");
+		}
+
+		this.contentResolver = contentResolver;
+		this.contentUri = contentUri;
+		this.batchSize = batchSize;
+
+		pending = new ArrayList<ContentValues>(batchSize);
+	}
+
+	/**
+	 * add a new record, writing the current batch if it is full
+	 *
+	 * @param values the values of the new record
+	 * @throws android.database.SQLException if the batch cannot be written
+	 */
+	public void add(ContentValues values) {
+
+		if(startTime == -1) {
+			startTime = System.currentTimeMillis();
+		}
+
+		pending.add(values);
+
+		if(pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * write any pending records to the database
+	 *
+	 * @throws android.database.SQLException if the batch cannot be written
+	 */
+	public void flush() {
+
+		if(pending.size() == 0) {
+			return;
+		}
+
+		ContentValues[] mValues = pending.toArray(new ContentValues[pending.size()]);
+		pending.clear();
+
+		long mCommitStart = System.currentTimeMillis();
+
+		rowCount += contentResolver.bulkInsert(contentUri, mValues);
+
+		long mCommitTime = System.currentTimeMillis() - mCommitStart;
+
+		// adjust the back off based on how long the commit took
+		if(mCommitTime > TARGET_COMMIT_TIME) {
+			// the database is busy so give other users a chance
+			backOff = Math.min(MAX_BACK_OFF, Math.max(backOff * 2, mCommitTime - TARGET_COMMIT_TIME));
+		} else {
+			backOff = backOff / 2;
+		}
+
+		if(V_LOG) {
+			Log.v(TAG, "wrote batch of " + mValues.length + " records in " + mCommitTime + "ms, back off is " + backOff + "ms");
+		}
+
+		if(backOff > 0) {
+			try {
+				Thread.sleep(backOff);
+			} catch (InterruptedException e) {
+				Log.w(TAG, "thread was interrupted unexepectantly");
+			}
+		}
+	}
+
+	/**
+	 * write any pending records to the database and report on the throughput achieved
+	 *
+	 * @return the total number of records written
+	 * @throws android.database.SQLException if the batch cannot be written
+	 */
+	public long finish() {
+
+		flush();
+
+		if(rowCount > 0) {
+			Log.i(TAG, "inserted " + rowCount + " records into " + contentUri + " at " + getRowsPerSecond() + " rows per second");
+		}
+
+		return rowCount;
+	}
+
+	/**
+	 * get the number of records written so far
+	 *
+	 * @return the number of records written to the database
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * get the rate at which records have been written since the first record was added
+	 *
+	 * @return the number of records written per second
+	 */
+	public long getRowsPerSecond() {
+
+		if(startTime == -1) {
+			return 0;
+		}
+
+		long mElapsed = System.currentTimeMillis() - startTime;
+
+		if(mElapsed == 0) {
+			return rowCount;
+		}
+
+		return (rowCount * 1000) / mElapsed;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * encode location messages as frames of a compact location file,
+ * see BinaryFileContract for a description of the format
+ * 
+ * records are added to the current frame until the frame is finished, a new
+ * frame is started when the phone number, subscriber id or time zone changes
+ */
+class CompactLocationEncoder {
+	
+	/*
+	 * private class level variables
+	 */
+	private final ByteArrayOutputStream records = new ByteArrayOutputStream(1024);
+	private final CodedOutputStream recordOutput = CodedOutputStream.newInstance(records);
+	
+	private String phoneNumber;
+	private String subscriberId;
+	private String timeZone;
+	private int count = 0;
+	
+	private long timestamp;
+	private long latitude;
+	private long longitude;
+	
+	/**
+	 * add a location to the current frame
+	 * 
+	 * @param message the location message
+	 * @param output the stream that receives the current frame if it has to be finished first
+	 * @throws IOException if the write operation fails
+	 */
+	void add(LocationMessage.MessageOrBuilder message, OutputStream output) throws IOException {
+		
+		// start a new frame if the record doesn't share the identity of the current one
+		if(count > 0 && (size() >= BinaryFileContract.COMPACT_MAX_FRAME_LENGTH / 2
+				|| phoneNumber.equals(message.getPhoneNumber()) == false
+				|| subscriberId.equals(message.getSubsciberId()) == false
+				|| timeZone.equals(message.getTimeZone()) == false)) {
+			finishFrame(output);
+		}
+		
+		if(count == 0) {
+			phoneNumber = message.getPhoneNumber();
+			subscriberId = message.getSubsciberId();
+			timeZone = message.getTimeZone();
+			
+			timestamp = 0;
+			latitude = 0;
+			longitude = 0;
+		}
+		
+		long mLatitude = ArchiveFileContract.toFixedPoint(message.getLatitude());
+		long mLongitude = ArchiveFileContract.toFixedPoint(message.getLongitude());
+		
+		recordOutput.writeSInt64NoTag(message.getTimestamp() - timestamp);
+		recordOutput.writeSInt64NoTag(mLatitude - latitude);
+		recordOutput.writeSInt64NoTag(mLongitude - longitude);
+		
+		timestamp = message.getTimestamp();
+		latitude = mLatitude;
+		longitude = mLongitude;
+		
+		count++;
+	}
+	
+	/**
+	 * get the number of bytes of records in the current frame
+	 * 
+	 * @return the number of bytes
+	 * @throws IOException if the buffered records can't be flushed
+	 */
+	int size() throws IOException {
+		recordOutput.flush();
+		return records.size();
+	}
+	
+	/**
+	 * write the current frame to a stream, nothing is written if the frame is empty
+	 * 
+	 * @param output the output stream
+	 * @throws IOException if the write operation fails
+	 */
+	void finishFrame(OutputStream output) throws IOException {
+		
+		if(count == 0) {
+			return;
+		}
+		
+		recordOutput.flush();
+		
+		int mLength = CodedOutputStream.computeStringSizeNoTag(phoneNumber)
+				+ CodedOutputStream.computeStringSizeNoTag(subscriberId)
+				+ CodedOutputStream.computeStringSizeNoTag(timeZone)
+				+ CodedOutputStream.computeRawVarint32Size(count)
+				+ records.size();
+		
+		CodedOutputStream mOutput = CodedOutputStream.newInstance(output);
+		
+		mOutput.writeRawVarint32(mLength);
+		mOutput.writeStringNoTag(phoneNumber);
+		mOutput.writeStringNoTag(subscriberId);
+		mOutput.writeStringNoTag(timeZone);
+		mOutput.writeRawVarint32(count);
+		mOutput.flush();
+		
+		records.writeTo(output);
+		
+		records.reset();
+		count = 0;
+	}
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import android.util.Log;
+
+/**
+ * read a stream of length delimited messages, as written by writeDelimitedTo,
+ * or the frames of a compact location file, without creating a new message
+ * object for each record
+ * 
+ * one coded input stream is used for the whole stream, each message is read
+ * into a reused buffer before it is decoded so that a message cut short at the
+ * end of the stream can be told apart from one that is corrupt, the fields of
+ * each record are read into a builder that is reused for the next record, the
+ * phone number, subscriber id and time zone are pooled as they repeat in every record
+ */
+public class DelimitedMessageReader {
+	
+	/**
+	 * receives the location records read from the stream
+	 */
+	public interface LocationHandler {
+		
+		/**
+		 * called for each complete record, the record is reused
+		 * once the method returns so it must not be kept
+		 * 
+		 * @param record the location record
+		 */
+		public void onLocation(LocationMessage.MessageOrBuilder record);
+	}
+	
+	/**
+	 * receives the point of interest records read from the stream
+	 */
+	public interface PointOfInterestHandler {
+		
+		/**
+		 * called for each complete record, the record is reused
+		 * once the method returns so it must not be kept
+		 * 
+		 * @param record the point of interest record
+		 */
+		public void onPointOfInterest(PointOfInterestMessage.MessageOrBuilder record);
+	}
+	
+	/*
+	 * private class level constants
+	 * 
+	 * tags are the field number shifted left three bits and combined with the wire type
+	 */
+	private static final String TAG = "DelimitedMessageReader";
+	
+	// larger than any message written by the software, a longer length means the stream is corrupt
+	private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+	
+	// each record in a compact frame is at least one byte for each of its three values
+	private static final int MIN_COMPACT_RECORD_LENGTH = 3;
+	
+	private static final int PHONE_NUMBER_TAG = 10;
+	private static final int SUBSCRIBER_ID_TAG = 18;
+	private static final int LATITUDE_TAG = 25;
+	private static final int LONGITUDE_TAG = 33;
+	private static final int TIMESTAMP_TAG = 40;
+	private static final int TIMEZONE_TAG = 50;
+	private static final int TITLE_TAG = 58;
+	private static final int DESCRIPTION_TAG = 66;
+	private static final int CATEGORY_TAG = 72;
+	private static final int PHOTO_TAG = 82;
+	
+	/*
+	 * private class level variables
+	 */
+	private final CodedInputStream input;
+	private final StringPool strings = new StringPool();
+	private byte[] scratch = new byte[64];
+	private byte[] frame;
+	
+	// the records of the compact frame being decoded
+	private long[] timestamps;
+	private long[] latitudes;
+	private long[] longitudes;
+	
+	// bytes consumed by complete messages
+	private long bytesRead = 0;
+	
+	private LocationMessage.Message.Builder locationBuilder;
+	private PointOfInterestMessage.Message.Builder poiBuilder;
+	
+	/**
+	 * construct a new reader
+	 * 
+	 * @param input the stream to read, positioned at the start of a message
+	 */
+	public DelimitedMessageReader(InputStream input) {
+		
+		if(input == null) {
+			throw new IllegalArgumentException("the input parameter is required");
+		}
+		
+		this.input = CodedInputStream.newInstance(input);
+	}
+	
+	/**
+	 * get the number of bytes used by the complete messages that have been read,
+	 * reading can be resumed at this offset from where the stream started
+	 * 
+	 * @return the number of bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+	
+	/**
+	 * read location messages until the end of the stream,
+	 * an incomplete message at the end of the stream is ignored
+	 * and a complete message that can't be decoded is skipped
+	 * 
+	 * @param handler the handler to receive the records
+	 * @return the number of records read
+	 * @throws IOException if the stream cannot be read
+	 */
+	public int readLocations(LocationHandler handler) throws IOException {
+		
+		if(handler == null) {
+			throw new IllegalArgumentException("the handler parameter is required");
+		}
+		
+		if(locationBuilder == null) {
+			locationBuilder = LocationMessage.Message.newBuilder();
+		}
+		
+		int mCount = 0;
+		
+		try {
+			while(input.isAtEnd() == false) {
+				
+				CodedInputStream mMessageInput = readMessage();
+				
+				// skip a corrupt message and carry on with the next one
+				try {
+					readLocation(mMessageInput, locationBuilder);
+				} catch (InvalidProtocolBufferException e) {
+					Log.w(TAG, "skipped a location message that couldn't be decoded", e);
+					continue;
+				}
+				
+				handler.onLocation(locationBuilder);
+				mCount++;
+			}
+		} catch (InvalidProtocolBufferException e) {
+			// the last message may be incomplete if the file is still being written
+		}
+		
+		return mCount;
+	}
+	
+	/**
+	 * read point of interest messages until the end of the stream,
+	 * an incomplete message at the end of the stream is ignored
+	 * and a complete message that can't be decoded is skipped
+	 * 
+	 * @param handler the handler to receive the records
+	 * @return the number of records read
+	 * @throws IOException if the stream cannot be read
+	 */
+	public int readPointsOfInterest(PointOfInterestHandler handler) throws IOException {
+		
+		if(handler == null) {
+			throw new IllegalArgumentException("the handler parameter is required");
+		}
+		
+		if(poiBuilder == null) {
+			poiBuilder = PointOfInterestMessage.Message.newBuilder();
+		}
+		
+		int mCount = 0;
+		
+		try {
+			while(input.isAtEnd() == false) {
+				
+				CodedInputStream mMessageInput = readMessage();
+				
+				// skip a corrupt message and carry on with the next one
+				try {
+					readPointOfInterest(mMessageInput, poiBuilder);
+				} catch (InvalidProtocolBufferException e) {
+					Log.w(TAG, "skipped a POI message that couldn't be decoded", e);
+					continue;
+				}
+				
+				handler.onPointOfInterest(poiBuilder);
+				mCount++;
+			}
+		} catch (InvalidProtocolBufferException e) {
+			// the last message may be incomplete if the file is still being written
+		}
+		
+		return mCount;
+	}
+	
+	/**
+	 * read the frames of a compact location file until the end of the stream,
+	 * see BinaryFileContract for a description of the format, an incomplete
+	 * frame at the end of the stream is ignored
+	 * 
+	 * @param handler the handler to receive the records
+	 * @return the number of records read
+	 * @throws IOException if the stream cannot be read
+	 */
+	public int readCompactLocations(LocationHandler handler) throws IOException {
+		
+		if(handler == null) {
+			throw new IllegalArgumentException("the handler parameter is required");
+		}
+		
+		if(locationBuilder == null) {
+			locationBuilder = LocationMessage.Message.newBuilder();
+		}
+		
+		int mCount = 0;
+		
+		try {
+			while(input.isAtEnd() == false) {
+				
+				CodedInputStream mFrameInput = readMessage(BinaryFileContract.COMPACT_MAX_FRAME_LENGTH);
+				
+				// skip a corrupt frame and carry on with the next one
+				try {
+					mCount += readFrame(mFrameInput, handler);
+				} catch (InvalidProtocolBufferException e) {
+					Log.w(TAG, "skipped a compact location frame that couldn't be decoded", e);
+				}
+			}
+		} catch (InvalidProtocolBufferException e) {
+			// the last frame may be incomplete if the file is still being written
+		}
+		
+		return mCount;
+	}
+	
+	/*
+	 * decode the records in a complete frame, the whole frame is decoded before any
+	 * records are handed over so that none are passed on from a frame that is corrupt
+	 */
+	private int readFrame(CodedInputStream frameInput, LocationHandler handler) throws IOException {
+		
+		String mPhoneNumber = readPooledString(frameInput);
+		String mSubscriberId = readPooledString(frameInput);
+		String mTimeZone = readPooledString(frameInput);
+		
+		int mCount = frameInput.readRawVarint32();
+		
+		// check the count against the frame so a corrupt count can't allocate large arrays
+		if(mCount < 0 || mCount > frameInput.getBytesUntilLimit() / MIN_COMPACT_RECORD_LENGTH) {
+			throw new InvalidProtocolBufferException("invalid record count: " + mCount);
+		}
+		
+		if(timestamps == null || mCount > timestamps.length) {
+			int mSize = Math.max(mCount, timestamps == null ? 64 : timestamps.length * 2);
+			timestamps = new long[mSize];
+			latitudes = new long[mSize];
+			longitudes = new long[mSize];
+		}
+		
+		long mTimestamp = 0;
+		long mLatitude = 0;
+		long mLongitude = 0;
+		
+		for(int i = 0; i < mCount; i++) {
+			
+			mTimestamp += frameInput.readSInt64();
+			mLatitude += frameInput.readSInt64();
+			mLongitude += frameInput.readSInt64();
+			
+			timestamps[i] = mTimestamp;
+			latitudes[i] = mLatitude;
+			longitudes[i] = mLongitude;
+		}
+		
+		for(int i = 0; i < mCount; i++) {
+			
+			locationBuilder.clear();
+			locationBuilder.setPhoneNumber(mPhoneNumber);
+			locationBuilder.setSubsciberId(mSubscriberId);
+			locationBuilder.setTimeZone(mTimeZone);
+			locationBuilder.setTimestamp(timestamps[i]);
+			locationBuilder.setLatitude(ArchiveFileContract.fromFixedPoint(latitudes[i]));
+			locationBuilder.setLongitude(ArchiveFileContract.fromFixedPoint(longitudes[i]));
+			
+			handler.onLocation(locationBuilder);
+		}
+		
+		return mCount;
+	}
+	
+	/*
+	 * read the next length delimited message of at most MAX_MESSAGE_LENGTH bytes
+	 */
+	private CodedInputStream readMessage() throws IOException {
+		return readMessage(MAX_MESSAGE_LENGTH);
+	}
+	
+	/*
+	 * read all of the bytes of the next length delimited message or frame and return a
+	 * stream over them, an InvalidProtocolBufferException is thrown if the end of the
+	 * stream is reached first, a message that is complete but can't be decoded is corrupt
+	 * rather than still being written, so the offset moves past it and it isn't read again
+	 */
+	private CodedInputStream readMessage(int maxLength) throws IOException {
+		
+		int mLength = input.readRawVarint32();
+		
+		if(mLength < 0 || mLength > maxLength) {
+			throw new InvalidProtocolBufferException("invalid message length: " + mLength);
+		}
+		
+		if(frame == null || mLength > frame.length) {
+			frame = new byte[Math.max(mLength, frame == null ? 1024 : frame.length * 2)];
+		}
+		
+		for(int i = 0; i < mLength; i++) {
+			frame[i] = input.readRawByte();
+		}
+		
+		messageRead();
+		
+		CodedInputStream mMessageInput = CodedInputStream.newInstance(frame, 0, mLength);
+		mMessageInput.pushLimit(mLength);
+		
+		return mMessageInput;
+	}
+	
+	/*
+	 * read the fields of one location message into the builder
+	 */
+	private void readLocation(CodedInputStream source, LocationMessage.Message.Builder builder) throws IOException {
+		
+		builder.clear();
+		
+		while(true) {
+			int mTag = source.readTag();
+			
+			switch(mTag) {
+			case 0:
+				return;
+			case PHONE_NUMBER_TAG:
+				builder.setPhoneNumber(readPooledString(source));
+				break;
+			case SUBSCRIBER_ID_TAG:
+				builder.setSubsciberId(readPooledString(source));
+				break;
+			case LATITUDE_TAG:
+				builder.setLatitude(source.readDouble());
+				break;
+			case LONGITUDE_TAG:
+				builder.setLongitude(source.readDouble());
+				break;
+			case TIMESTAMP_TAG:
+				builder.setTimestamp(source.readInt64());
+				break;
+			case TIMEZONE_TAG:
+				builder.setTimeZone(readPooledString(source));
+				break;
+			default:
+				// fields added by a later version are skipped
+				source.skipField(mTag);
+			}
+		}
+	}
+	
+	/*
+	 * read the fields of one point of interest message into the builder
+	 */
+	private void readPointOfInterest(CodedInputStream source, PointOfInterestMessage.Message.Builder builder) throws IOException {
+		
+		builder.clear();
+		
+		while(true) {
+			int mTag = source.readTag();
+			
+			switch(mTag) {
+			case 0:
+				return;
+			case PHONE_NUMBER_TAG:
+				builder.setPhoneNumber(readPooledString(source));
+				break;
+			case SUBSCRIBER_ID_TAG:
+				builder.setSubsciberId(readPooledString(source));
+				break;
+			case LATITUDE_TAG:
+				builder.setLatitude(source.readDouble());
+				break;
+			case LONGITUDE_TAG:
+				builder.setLongitude(source.readDouble());
+				break;
+			case TIMESTAMP_TAG:
+				builder.setTimestamp(source.readInt64());
+				break;
+			case TIMEZONE_TAG:
+				builder.setTimeZone(readPooledString(source));
+				break;
+			case TITLE_TAG:
+				builder.setTitle(source.readString());
+				break;
+			case DESCRIPTION_TAG:
+				builder.setDescription(source.readString());
+				break;
+			case CATEGORY_TAG:
+				builder.setCategory(source.readInt64());
+				break;
+			case PHOTO_TAG:
+				builder.setPhoto(source.readString());
+				break;
+			default:
+				// fields added by a later version are skipped
+				source.skipField(mTag);
+			}
+		}
+	}
+	
+	/*
+	 * read a string field through the pool without creating a new string
+	 * or byte array when the value has been seen before
+	 */
+	private String readPooledString(CodedInputStream source) throws IOException {
+		
+		int mLength = source.readRawVarint32();
+		
+		// check the length against the message so a corrupt length can't allocate a large buffer
+		if(mLength < 0 || mLength > source.getBytesUntilLimit()) {
+			throw new InvalidProtocolBufferException("invalid string length: " + mLength);
+		}
+		
+		if(mLength > scratch.length) {
+			scratch = new byte[Math.max(mLength, scratch.length * 2)];
+		}
+		
+		for(int i = 0; i < mLength; i++) {
+			scratch[i] = source.readRawByte();
+		}
+		
+		return strings.get(scratch, mLength);
+	}
+	
+	/*
+	 * record the end of a complete message, the size counter of the coded
+	 * stream is reset for each message so that large files can be read
+	 */
+	private void messageRead() {
+		bytesRead += input.getTotalBytesRead();
+		input.resetSizeCounter();
+	}
+}
@@ -19,15 +19,14 @@
  */
 package org.servalproject.maps.protobuf;
 
-import java.io.InputStream;
+import java.io.IOException;
 
 import org.servalproject.maps.provider.LocationsContract;
+import org.servalproject.maps.rhizome.IngestOffsets;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.util.Log;
 
@@ -36,7 +35,7 @@ import android.util.Log;
  * read locations messages 
  * from the binary file and write the messages to the database
  */
-public class LocationReadWorker implements Runnable {
+public class LocationReadWorker implements Runnable, DelimitedMessageReader.LocationHandler {
 	
 	/*
 	 * private class level constants
@@ -44,24 +43,34 @@ public class LocationReadWorker implements Runnable {
 	private final String TAG = "LocationReadWorker";
 	private final boolean V_LOG = true;
 	
-	private final long sleepTime = 300;
-	
 	/*
 	 * private class level variables
 	 */
 	private Context context;
 	private Uri dataFile;
+	private String fileName;
+	private String sender;
+	private long version;
+	private RecordSink sink;
 	
 	/**
 	 * construct a new location read worker
 	 * 
 	 * @param context the context object used to access a content resolver
-	 * @param filePath the path to the binary file
+	 * @param dataFile the uri of the binary file
+	 * @param fileName the name of the binary file
+	 * @param sender the sender of the binary file
+	 * @param version the version of the manifest for the binary file, or IngestOffsets.UNKNOWN
+	 * @param sink the sink that writes the new records and stores the offset once they are written
 	 */
-	public LocationReadWorker(Context context, Uri dataFile) {
+	public LocationReadWorker(Context context, Uri dataFile, String fileName, String sender, long version, RecordSink sink) {
 		
 		this.context = context;
 		this.dataFile = dataFile;
+		this.fileName = fileName;
+		this.sender = sender;
+		this.version = version;
+		this.sink = sink;
 		
 	}
 
@@ -74,101 +83,59 @@ public class LocationReadWorker implements Runnable {
 				Log.v(TAG, "reading location data from: " + dataFile);
 			}
 			
+			// skip files older than the one that has already been read
+			long mPreviousVersion = IngestOffsets.getVersion(context, fileName, sender);
+			
+			if(version != IngestOffsets.UNKNOWN && version < mPreviousVersion) {
+				if(V_LOG) {
+					Log.v(TAG, "skipping older version of file: " + fileName);
+				}
+				return;
+			}
+			
 			ContentResolver mContentResolver = context.getContentResolver();
 			
-			InputStream mInputStream = null;
+			OffsetInputStream mInputStream = null;
 			
+			// resume reading from where the previous read finished, unless the file has been replaced
 			try {
-				mInputStream = mContentResolver.openInputStream(dataFile);
+				mInputStream = OffsetInputStream.open(mContentResolver, dataFile, IngestOffsets.getResumeOffset(context, dataFile, fileName, sender));
 			} catch (java.io.FileNotFoundException e) {
 				Log.e(TAG, "unable to open file for reading: " + dataFile);
 				return;
 			}
 			
 			try{
-				// prepare helper variables
-				ContentValues mNewValues = null;
-				Cursor mCursor = null;
-				LocationMessage.Message mMessage;
+				// the format is given by the header at the start of the file
+				int mFormat = getFormat(mContentResolver, mInputStream);
 				
-				long mLatestTimeStamp = -1;
-			
-				// loop through the data
-				while((mMessage = LocationMessage.Message.parseDelimitedFrom(mInputStream)) != null) {
-					
-					// check to see if we need to get the latest time stamp
-					if(mLatestTimeStamp == -1) {
-						
-						String[] mProjection = {LocationsContract.Table.TIMESTAMP};
-						String mSelection = LocationsContract.Table.PHONE_NUMBER + " = ?";
-						String[] mSelectionArgs = new String[1];
-						mSelectionArgs[0] = mMessage.getPhoneNumber();
-						String mOrderBy = LocationsContract.Table.TIMESTAMP + " DESC";
-						
-						mCursor = mContentResolver.query(
-								LocationsContract.CONTENT_URI,
-								mProjection,
-								mSelection,
-								mSelectionArgs,
-								mOrderBy);
-						
-						if(mCursor.getCount() != 0) {
-							mCursor.moveToFirst();
-							
-							mLatestTimeStamp = mCursor.getLong(mCursor.getColumnIndex(LocationsContract.Table.TIMESTAMP));
-						} else {
-							mLatestTimeStamp = 0;
-						}
-						
-						mCursor.close();
-						mCursor = null;
-					}
-					
-					if(mMessage.getTimestamp() > mLatestTimeStamp) {
-						
-						// add new record
-						mNewValues = new ContentValues();
-						
-						mNewValues.put(LocationsContract.Table.PHONE_NUMBER, mMessage.getPhoneNumber());
-						mNewValues.put(LocationsContract.Table.SUBSCRIBER_ID, mMessage.getSubsciberId());
-						mNewValues.put(LocationsContract.Table.LATITUDE, mMessage.getLatitude());
-						mNewValues.put(LocationsContract.Table.LONGITUDE, mMessage.getLongitude());
-						mNewValues.put(LocationsContract.Table.TIMESTAMP, mMessage.getTimestamp());
-						mNewValues.put(LocationsContract.Table.TIMEZONE, mMessage.getTimeZone());
-						
-						try {
-							mContentResolver.insert(
-									LocationsContract.CONTENT_URI,
-									mNewValues);
-						} catch (SQLiteException e) {
-							Log.e(TAG, "an error occurred while inserting data", e);
-							break;
-						}
-						
-						if(V_LOG) {
-							Log.v(TAG, "added new location record to the database");
-						}
-					} else {
-//						if(V_LOG) {
-//							Log.v(TAG, "skipped an existing location record");
-//						}
-						
-						// don't hit the CPU so hard so sleep for a bit
-						try {
-							Thread.sleep(sleepTime);
-						}catch (InterruptedException e) {
-							Log.w(TAG, "thread was interrupted unexepectantly");
-						}
-					}
-					
-					mNewValues = null;
-					
-					// don't hit the database so hard with writes to sleep for a bit
-					try {
-						Thread.sleep(sleepTime);
-					}catch (InterruptedException e) {
-						Log.w(TAG, "thread was interrupted unexepectantly");
-					}
+				if(V_LOG) {
+					Log.v(TAG, "reading location data starting at offset: " + mInputStream.getOffset());
+				}
+				
+				// the reader buffers ahead of the message being decoded, so the offset is counted from here
+				long mStartOffset = mInputStream.getOffset();
+				
+				// records are decoded into a reused builder and passed to onLocation
+				DelimitedMessageReader mReader = new DelimitedMessageReader(mInputStream);
+				
+				// new records are passed to the sink to be written in batches on the writer thread
+				int mRecordCount;
+				
+				if(mFormat == BinaryFileContract.COMPACT_VERSION) {
+					mRecordCount = mReader.readCompactLocations(this);
+				} else {
+					mRecordCount = mReader.readLocations(this);
+				}
+				
+				// offset of the end of the last complete message
+				long mOffset = mStartOffset + mReader.getBytesRead();
+				
+				// the sink remembers where to start reading next time once the records are written
+				sink.finish(mOffset);
+				
+				if(V_LOG) {
+					Log.v(TAG, "decoded " + mRecordCount + " new location records");
 				}
 			}finally{
 				mInputStream.close();
@@ -177,5 +144,50 @@ public class LocationReadWorker implements Runnable {
 			Log.e(TAG, e.getMessage(), e);
 		}
 	}
-
+	
+	/*
+	 * get the format of the file from the header at the start of the file,
+	 * the header of a compact file is skipped if the stream is positioned at it
+	 */
+	private int getFormat(ContentResolver contentResolver, OffsetInputStream input) throws IOException {
+		
+		int mFormat;
+		
+		// the header is read separately as the stream may not be at the start of the file
+		OffsetInputStream mHeader = OffsetInputStream.open(contentResolver, dataFile, 0);
+		
+		try {
+			mFormat = BinaryFileContract.readLocationFormat(mHeader);
+		} finally {
+			mHeader.close();
+		}
+		
+		if(mFormat == BinaryFileContract.COMPACT_VERSION && input.getOffset() < BinaryFileContract.COMPACT_HEADER_LENGTH) {
+			input.skipFully(BinaryFileContract.COMPACT_HEADER_LENGTH - input.getOffset());
+		}
+		
+		return mFormat;
+	}
+	
+	/*
+	 * add a new record, duplicates are rejected by the provider using the record
+	 * fingerprint so records older than the latest one for the peer are still accepted
+	 * 
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.protobuf.DelimitedMessageReader.LocationHandler#onLocation(org.servalproject.maps.protobuf.LocationMessage.MessageOrBuilder)
+	 */
+	@Override
+	public void onLocation(LocationMessage.MessageOrBuilder record) {
+		
+		ContentValues mNewValues = new ContentValues();
+		
+		mNewValues.put(LocationsContract.Table.PHONE_NUMBER, record.getPhoneNumber());
+		mNewValues.put(LocationsContract.Table.SUBSCRIBER_ID, record.getSubsciberId());
+		mNewValues.put(LocationsContract.Table.LATITUDE, record.getLatitude());
+		mNewValues.put(LocationsContract.Table.LONGITUDE, record.getLongitude());
+		mNewValues.put(LocationsContract.Table.TIMESTAMP, record.getTimestamp());
+		mNewValues.put(LocationsContract.Table.TIMEZONE, record.getTimeZone());
+		
+		sink.add(mNewValues);
+	}
 }
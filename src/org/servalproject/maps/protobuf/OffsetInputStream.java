@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * an input stream that keeps track of the byte offset into the underlying file
+ * so that reading of a binary file can be resumed at a later time
+ */
+public class OffsetInputStream extends FilterInputStream {
+
+	/*
+	 * private class level variables
+	 */
+	private long offset;
+	private long mark = -1;
+
+	/**
+	 * construct a new offset input stream
+	 *
+	 * @param input the underlying input stream
+	 * @param offset the offset into the file that the underlying stream is positioned at
+	 */
+	public OffsetInputStream(InputStream input, long offset) {
+		super(input);
+		this.offset = offset;
+	}
+
+	/**
+	 * open a binary file and position the stream at the specified offset
+	 *
+	 * if the file is now shorter than the offset it has been replaced
+	 * and the stream is positioned at the start of the file
+	 *
+	 * @param contentResolver the content resolver used to open the file
+	 * @param dataFile the uri of the file
+	 * @param offset the offset to start reading from
+	 * @return a new stream positioned at the offset
+	 * @throws FileNotFoundException if the file cannot be opened
+	 * @throws IOException if the file cannot be positioned at the offset
+	 */
+	public static OffsetInputStream open(ContentResolver contentResolver, Uri dataFile, long offset) throws FileNotFoundException, IOException {
+
+		ParcelFileDescriptor mDescriptor = contentResolver.openFileDescriptor(dataFile, "r");
+
+		if(mDescriptor == null) {
+			throw new FileNotFoundException("unable to open file for reading: " + dataFile);
+		}
+
+		// check that the file hasn't shrunk since it was last read
+		long mFileSize = mDescriptor.getStatSize();
+
+		if(offset < 0 || (mFileSize >= 0 && mFileSize < offset)) {
+			offset = 0;
+		}
+
+		OffsetInputStream mInput = new OffsetInputStream(new ParcelFileDescriptor.AutoCloseInputStream(mDescriptor), 0);
+
+		if(offset > 0) {
+			try {
+				mInput.skipFully(offset);
+			} catch (IOException e) {
+				mInput.close();
+				throw e;
+			}
+		}
+
+		return mInput;
+	}
+
+	/**
+	 * get the offset into the file of the next byte that will be read
+	 *
+	 * @return the current offset
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * skip over the specified number of bytes, or until the end of the file
+	 *
+	 * @param count the number of bytes to skip
+	 * @return the number of bytes skipped
+	 * @throws IOException if an error occurs
+	 */
+	public long skipFully(long count) throws IOException {
+
+		long mRemaining = count;
+
+		while(mRemaining > 0) {
+			long mSkipped = skip(mRemaining);
+
+			if(mSkipped <= 0) {
+				// skip may not make progress, so fall back to reading
+				if(read() == -1) {
+					break;
+				}
+				mSkipped = 1;
+			}
+
+			mRemaining -= mSkipped;
+		}
+
+		return count - mRemaining;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.FilterInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		int mByte = super.read();
+		if(mByte != -1) {
+			offset++;
+		}
+		return mByte;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.FilterInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] buffer, int start, int length) throws IOException {
+		int mCount = super.read(buffer, start, length);
+		if(mCount > 0) {
+			offset += mCount;
+		}
+		return mCount;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.FilterInputStream#skip(long)
+	 */
+	@Override
+	public long skip(long count) throws IOException {
+		long mCount = super.skip(count);
+		if(mCount > 0) {
+			offset += mCount;
+		}
+		return mCount;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.FilterInputStream#mark(int)
+	 */
+	@Override
+	public synchronized void mark(int readLimit) {
+		super.mark(readLimit);
+		mark = offset;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.FilterInputStream#reset()
+	 */
+	@Override
+	public synchronized void reset() throws IOException {
+		super.reset();
+		if(mark != -1) {
+			offset = mark;
+		}
+	}
+}
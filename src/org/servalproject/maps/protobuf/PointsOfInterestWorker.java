@@ -19,19 +19,16 @@
  */
 package org.servalproject.maps.protobuf;
 
-import java.io.InputStream;
-
 import org.servalproject.maps.provider.PointsOfInterestContract;
+import org.servalproject.maps.rhizome.IngestOffsets;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.util.Log;
 
-public class PointsOfInterestWorker implements Runnable {
+public class PointsOfInterestWorker implements Runnable, DelimitedMessageReader.PointOfInterestHandler {
 	
 	/*
 	 * private class level constants
@@ -39,23 +36,33 @@ public class PointsOfInterestWorker implements Runnable {
 	private final String TAG = "PointsOfInterestWorker";
 	private final boolean V_LOG = true;
 	
-	private final long sleepTime = 300;
-	
 	/*
 	 * private class level variables
 	 */
 	private Context context;
 	private Uri dataFile;
+	private String fileName;
+	private String sender;
+	private long version;
+	private RecordSink sink;
 	
 	/**
 	 * construct a new location read worker
 	 * 
 	 * @param context the context object used to access a content resolver
-	 * @param uri the path to the binary file
+	 * @param dataFile the uri of the binary file
+	 * @param fileName the name of the binary file
+	 * @param sender the sender of the binary file
+	 * @param version the version of the manifest for the binary file, or IngestOffsets.UNKNOWN
+	 * @param sink the sink that writes the new records and stores the offset once they are written
 	 */
-	public PointsOfInterestWorker(Context context, Uri dataFile) {
+	public PointsOfInterestWorker(Context context, Uri dataFile, String fileName, String sender, long version, RecordSink sink) {
 		this.context = context;
 		this.dataFile = dataFile;
+		this.fileName = fileName;
+		this.sender = sender;
+		this.version = version;
+		this.sink = sink;
 	}
 
 	@Override
@@ -66,110 +73,50 @@ public class PointsOfInterestWorker implements Runnable {
 				Log.v(TAG, "reading POI data from: " + dataFile);
 			}
 			
+			// skip files older than the one that has already been read
+			long mPreviousVersion = IngestOffsets.getVersion(context, fileName, sender);
+			
+			if(version != IngestOffsets.UNKNOWN && version < mPreviousVersion) {
+				if(V_LOG) {
+					Log.v(TAG, "skipping older version of file: " + fileName);
+				}
+				return;
+			}
+			
 			ContentResolver mContentResolver = context.getContentResolver();
 			
-			InputStream mInputStream = null;
+			OffsetInputStream mInputStream = null;
 			
+			// resume reading from where the previous read finished, unless the file has been replaced
 			try {
-				mInputStream = mContentResolver.openInputStream(dataFile);
+				mInputStream = OffsetInputStream.open(mContentResolver, dataFile, IngestOffsets.getResumeOffset(context, dataFile, fileName, sender));
 			} catch (java.io.FileNotFoundException e) {
 				Log.e(TAG, "unable to open file for reading: " + dataFile);
 				return;
 			}
 			
+			if(V_LOG) {
+				Log.v(TAG, "reading POI data starting at offset: " + mInputStream.getOffset());
+			}
+			
+			// the reader buffers ahead of the message being decoded, so the offset is counted from here
+			long mStartOffset = mInputStream.getOffset();
+			
 			try{
-				// prepare helper variables
-				ContentValues mNewValues = null;
-				Cursor mCursor = null;
-				PointOfInterestMessage.Message mMessage;
+				// records are decoded into a reused builder and passed to onPointOfInterest
+				DelimitedMessageReader mReader = new DelimitedMessageReader(mInputStream);
+				
+				// new records are passed to the sink to be written in batches on the writer thread
+				int mRecordCount = mReader.readPointsOfInterest(this);
+				
+				// offset of the end of the last complete message
+				long mOffset = mStartOffset + mReader.getBytesRead();
 				
-				long mLatestTimeStamp = -1;
+				// the sink remembers where to start reading next time once the records are written
+				sink.finish(mOffset);
 				
-				// loop through the data
-				while((mMessage = PointOfInterestMessage.Message.parseDelimitedFrom(mInputStream)) != null) {
-					
-					// check to see if we need to get the latest time stamp
-					if(mLatestTimeStamp == -1) {
-						
-						String[] mProjection = {PointsOfInterestContract.Table.TIMESTAMP};
-						String mSelection = PointsOfInterestContract.Table.PHONE_NUMBER + " = ?";
-						String[] mSelectionArgs = new String[1];
-						mSelectionArgs[0] = mMessage.getPhoneNumber();
-						String mOrderBy = PointsOfInterestContract.Table.TIMESTAMP + " DESC";
-						
-						mCursor = mContentResolver.query(
-								PointsOfInterestContract.CONTENT_URI,
-								mProjection,
-								mSelection,
-								mSelectionArgs,
-								mOrderBy);
-						
-						if(mCursor.getCount() != 0) {
-							mCursor.moveToFirst();
-							
-							mLatestTimeStamp = mCursor.getLong(mCursor.getColumnIndex(PointsOfInterestContract.Table.TIMESTAMP));
-							
-						} else {
-							mLatestTimeStamp = 0;
-						}
-						
-						mCursor.close();
-						mCursor = null;
-					}
-					
-					if(mMessage.getTimestamp() > mLatestTimeStamp) {
-						
-						// add new record
-						mNewValues = new ContentValues();
-						
-						mNewValues.put(PointsOfInterestContract.Table.PHONE_NUMBER, mMessage.getPhoneNumber());
-						mNewValues.put(PointsOfInterestContract.Table.SUBSCRIBER_ID, mMessage.getSubsciberId());
-						mNewValues.put(PointsOfInterestContract.Table.LATITUDE, mMessage.getLatitude());
-						mNewValues.put(PointsOfInterestContract.Table.LONGITUDE, mMessage.getLongitude());
-						mNewValues.put(PointsOfInterestContract.Table.TIMESTAMP, mMessage.getTimestamp());
-						mNewValues.put(PointsOfInterestContract.Table.TIMEZONE, mMessage.getTimeZone());
-						mNewValues.put(PointsOfInterestContract.Table.TITLE, mMessage.getTitle());
-						mNewValues.put(PointsOfInterestContract.Table.DESCRIPTION, mMessage.getDescription());
-						mNewValues.put(PointsOfInterestContract.Table.CATEGORY, mMessage.getCategory());
-						mNewValues.put(PointsOfInterestContract.Table.PHOTO, mMessage.getPhoto());
-						
-						//debug code
-						Log.d(TAG, "description: '" + mMessage.getDescription() + "'");
-						Log.d(TAG, "title: '" + mMessage.getTitle() + "'");
-						
-						try {
-							mContentResolver.insert(
-									PointsOfInterestContract.CONTENT_URI,
-									mNewValues);
-						} catch (SQLiteException e) {
-							Log.e(TAG, "an error occurred while inserting data", e);
-							break;
-						}
-						
-						if(V_LOG) {
-							Log.v(TAG, "added new POI record to the database");
-						}
-					} else {
-//						if(V_LOG) {
-//							Log.v(TAG, "skipped an existing POI record");
-//						}
-						
-						// don't hit the CPU so hard so sleep for a bit
-						try {
-							Thread.sleep(sleepTime);
-						}catch (InterruptedException e) {
-							Log.w(TAG, "thread was interrupted unexepectantly");
-						}
-					}
-						
-					mNewValues = null;
-					
-					// don't hit the database so hard with writes to sleep for a bit
-					try {
-						Thread.sleep(sleepTime);
-					}catch (InterruptedException e) {
-						Log.w(TAG, "thread was interrupted unexepectantly");
-					}
+				if(V_LOG) {
+					Log.v(TAG, "decoded " + mRecordCount + " new POI records");
 				}
 			}finally{
 				mInputStream.close();
@@ -178,4 +125,34 @@ public class PointsOfInterestWorker implements Runnable {
 			Log.e(TAG, e.getMessage(), e);
 		}
 	}
+	
+	/*
+	 * add a new record, duplicates are rejected by the provider using the record
+	 * fingerprint so records older than the latest one for the peer are still accepted
+	 * 
+	 * (non-Javadoc)
+	 * @see org.servalproject.maps.protobuf.DelimitedMessageReader.PointOfInterestHandler#onPointOfInterest(org.servalproject.maps.protobuf.PointOfInterestMessage.MessageOrBuilder)
+	 */
+	@Override
+	public void onPointOfInterest(PointOfInterestMessage.MessageOrBuilder record) {
+		
+		ContentValues mNewValues = new ContentValues();
+		
+		mNewValues.put(PointsOfInterestContract.Table.PHONE_NUMBER, record.getPhoneNumber());
+		mNewValues.put(PointsOfInterestContract.Table.SUBSCRIBER_ID, record.getSubsciberId());
+		mNewValues.put(PointsOfInterestContract.Table.LATITUDE, record.getLatitude());
+		mNewValues.put(PointsOfInterestContract.Table.LONGITUDE, record.getLongitude());
+		mNewValues.put(PointsOfInterestContract.Table.TIMESTAMP, record.getTimestamp());
+		mNewValues.put(PointsOfInterestContract.Table.TIMEZONE, record.getTimeZone());
+		mNewValues.put(PointsOfInterestContract.Table.TITLE, record.getTitle());
+		mNewValues.put(PointsOfInterestContract.Table.DESCRIPTION, record.getDescription());
+		mNewValues.put(PointsOfInterestContract.Table.CATEGORY, record.getCategory());
+		mNewValues.put(PointsOfInterestContract.Table.PHOTO, record.getPhoto());
+		
+		//debug code
+		Log.d(TAG, "description: '" + record.getDescription() + "'");
+		Log.d(TAG, "title: '" + record.getTitle() + "'");
+		
+		sink.add(mNewValues);
+	}
 }
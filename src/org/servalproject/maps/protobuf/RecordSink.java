@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import android.content.ContentValues;
+
+/**
+ * receives the records decoded from a binary file so that they
+ * can be written to the database separately from the decoding
+ */
+public interface RecordSink {
+	
+	/**
+	 * add a new record
+	 * 
+	 * @param values the values of the new record
+	 */
+	public void add(ContentValues values);
+	
+	/**
+	 * called once all of the records have been added
+	 * 
+	 * @param offset the offset of the end of the last complete message read from the file
+	 */
+	public void finish(long offset);
+}
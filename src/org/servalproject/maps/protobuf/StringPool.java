@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.protobuf;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * a small cache of the strings decoded from binary messages, so that
+ * fields that repeat in every record of a file such as the phone number
+ * are only turned into a string the first time they are seen
+ */
+class StringPool {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int CAPACITY = 64;
+	private static final int MASK = CAPACITY - 1;
+	
+	/*
+	 * private class level variables
+	 */
+	private final byte[][] keys = new byte[CAPACITY][];
+	private final String[] values = new String[CAPACITY];
+	private int count = 0;
+	
+	/**
+	 * get the string for some utf-8 encoded bytes
+	 * 
+	 * @param buffer the buffer holding the bytes
+	 * @param length the number of bytes at the start of the buffer
+	 * @return the pooled string
+	 */
+	String get(byte[] buffer, int length) {
+		
+		int mHash = 1;
+		
+		for(int i = 0; i < length; i++) {
+			mHash = 31 * mHash + buffer[i];
+		}
+		
+		// mix the bits so that similar values don't end up in adjacent slots
+		mHash ^= (mHash >>> 16);
+		
+		int mSlot = mHash & MASK;
+		
+		while(values[mSlot] != null) {
+			if(matches(keys[mSlot], buffer, length)) {
+				return values[mSlot];
+			}
+			mSlot = (mSlot + 1) & MASK;
+		}
+		
+		// start again rather than let the table fill up with values that aren't repeated
+		if(count >= CAPACITY / 2) {
+			clear();
+			mSlot = mHash & MASK;
+		}
+		
+		byte[] mKey = new byte[length];
+		System.arraycopy(buffer, 0, mKey, 0, length);
+		
+		String mValue;
+		
+		try {
+			mValue = new String(buffer, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("utf-8 is not supported", e);
+		}
+		
+		keys[mSlot] = mKey;
+		values[mSlot] = mValue;
+		count++;
+		
+		return mValue;
+	}
+	
+	/**
+	 * remove all of the strings from the pool
+	 */
+	void clear() {
+		
+		for(int i = 0; i < CAPACITY; i++) {
+			keys[i] = null;
+			values[i] = null;
+		}
+		
+		count = 0;
+	}
+	
+	/*
+	 * compare the key in a slot to the bytes in the buffer
+	 */
+	private boolean matches(byte[] key, byte[] buffer, int length) {
+		
+		if(key.length != length) {
+			return false;
+		}
+		
+		for(int i = 0; i < length; i++) {
+			if(key[i] != buffer[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.provider;
+
+import android.database.Cursor;
+
+/**
+ * maps the rows of a cursor by looking up the index of each column once per cursor
+ * rather than once per column of every row
+ * 
+ * columns are identified by their position in the list of names supplied to
+ * the constructor, so callers typically declare a constant for each position
+ */
+public class CursorColumns {
+	
+	/*
+	 * private class level variables
+	 */
+	private String[] names;
+	private int[] indexes;
+	private Cursor cursor = null;
+	
+	/**
+	 * construct a new set of columns
+	 * 
+	 * @param names the names of the columns to map
+	 */
+	public CursorColumns(String... names) {
+		
+		if(names == null || names.length == 0) {
+			throw new IllegalArgumentException("at least one column name is required");
+		}
+		
+		this.names = names;
+		indexes = new int[names.length];
+	}
+	
+	/**
+	 * bind the columns to a cursor, the column indexes are only looked up
+	 * if the cursor is not the one that is already bound
+	 * 
+	 * @param cursor the cursor to read rows from
+	 * @return this object so calls can be chained
+	 */
+	public CursorColumns bind(Cursor cursor) {
+		
+		if(cursor == null) {
+			throw new IllegalArgumentException("the cursor parameter is required");
+		}
+		
+		if(cursor != this.cursor) {
+			for(int i = 0; i < names.length; i++) {
+				indexes[i] = cursor.getColumnIndex(names[i]);
+			}
+			
+			this.cursor = cursor;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * get the cursor that the columns are bound to
+	 * 
+	 * @return the cursor or null if the columns are not bound
+	 */
+	public Cursor getCursor() {
+		return cursor;
+	}
+	
+	/**
+	 * get the names of the mapped columns
+	 * 
+	 * @return the names of the columns
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+	
+	/**
+	 * get the number of mapped columns
+	 * 
+	 * @return the number of columns
+	 */
+	public int size() {
+		return names.length;
+	}
+	
+	/**
+	 * get the index of a column in the cursor
+	 * 
+	 * @param column the position of the column in the list of names
+	 * @return the index of the column in the cursor or -1 if the cursor doesn't contain it
+	 */
+	public int getIndex(int column) {
+		return indexes[column];
+	}
+	
+	/**
+	 * get the value of a column in the current row as a string
+	 * 
+	 * @param column the position of the column in the list of names
+	 * @return the value of the column
+	 */
+	public String getString(int column) {
+		return cursor.getString(indexes[column]);
+	}
+	
+	/**
+	 * get the value of a column in the current row as a long
+	 * 
+	 * @param column the position of the column in the list of names
+	 * @return the value of the column
+	 */
+	public long getLong(int column) {
+		return cursor.getLong(indexes[column]);
+	}
+	
+	/**
+	 * get the value of a column in the current row as an int
+	 * 
+	 * @param column the position of the column in the list of names
+	 * @return the value of the column
+	 */
+	public int getInt(int column) {
+		return cursor.getInt(indexes[column]);
+	}
+	
+	/**
+	 * get the value of a column in the current row as a double
+	 * 
+	 * @param column the position of the column in the list of names
+	 * @return the value of the column
+	 */
+	public double getDouble(int column) {
+		return cursor.getDouble(indexes[column]);
+	}
+	
+	/**
+	 * check to see if the value of a column in the current row is null
+	 * 
+	 * @param column the position of the column in the list of names
+	 * @return true if the value is null
+	 */
+	public boolean isNull(int column) {
+		return cursor.isNull(indexes[column]);
+	}
+}
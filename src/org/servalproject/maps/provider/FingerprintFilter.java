@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * an in memory bloom filter of the record fingerprints in a table
+ * 
+ * the filter answers most checks for a new record without touching the database,
+ * only a possible match is confirmed using the index on the fingerprint column
+ * 
+ * the filter is sized from the number of records when it is loaded and is loaded
+ * again at twice the size once the table outgrows it, fingerprints of deleted
+ * records can't be removed from a bloom filter so the provider discards the
+ * filter when records are deleted and it is loaded again when next required
+ */
+class FingerprintFilter {
+	
+	/**
+	 * value returned by find when there isn't a matching record
+	 */
+	static final long NOT_FOUND = -1;
+	
+	/*
+	 * private class level constants
+	 */
+	
+	// ten bits for each record keeps false positives to around 1% with four hashes,
+	// a new filter has room for twice the current number of records
+	private static final int BITS_PER_RECORD = 10;
+	private static final int HASH_COUNT = 4;
+	
+	// 2^16 bits uses 8 KB, 2^25 bits uses 4 MB and has room for over three million records
+	private static final int MIN_BITS = 1 << 16;
+	private static final int MAX_BITS = 1 << 25;
+	
+	/*
+	 * private class level variables
+	 */
+	private final String table;
+	private final String idColumn;
+	private final String column;
+	private long[] bits = null;
+	private int mask;
+	private int capacity;
+	private int count;
+	private boolean loaded = false;
+	
+	/**
+	 * construct a new fingerprint filter
+	 * 
+	 * @param table the name of the table
+	 * @param idColumn the name of the unique id column
+	 * @param column the name of the fingerprint column
+	 */
+	FingerprintFilter(String table, String idColumn, String column) {
+		this.table = table;
+		this.idColumn = idColumn;
+		this.column = column;
+	}
+	
+	/**
+	 * compile the statement used to confirm a possible match,
+	 * the statement is only valid for the database it was compiled against
+	 * 
+	 * @param database the database containing the table
+	 * @return the compiled statement
+	 */
+	SQLiteStatement compileLookup(SQLiteDatabase database) {
+		return database.compileStatement("SELECT IFNULL(MAX(" + idColumn + "), " + NOT_FOUND + ") FROM " + table + " WHERE " + column + " = ?");
+	}
+	
+	/**
+	 * find a record with the fingerprint that is already in the table
+	 * 
+	 * @param database the database containing the table
+	 * @param lookup the statement returned by compileLookup
+	 * @param fingerprint the fingerprint of the new record
+	 * @return the id of the matching record or NOT_FOUND
+	 */
+	synchronized long find(SQLiteDatabase database, SQLiteStatement lookup, long fingerprint) {
+		
+		if(loaded == false) {
+			load(database);
+		}
+		
+		if(mightContain(fingerprint) == false) {
+			return NOT_FOUND;
+		}
+		
+		lookup.bindLong(1, fingerprint);
+		return lookup.simpleQueryForLong();
+	}
+	
+	/**
+	 * add the fingerprint of a record that has been written to the table
+	 * 
+	 * @param fingerprint the fingerprint of the record
+	 */
+	synchronized void add(long fingerprint) {
+		
+		// the record is in the table so it is included when the filter is loaded
+		if(loaded == false) {
+			return;
+		}
+		
+		set(fingerprint);
+		count++;
+		
+		// load a larger filter before false positives become common
+		if(count > capacity) {
+			invalidate();
+		}
+	}
+	
+	/**
+	 * discard the filter so that it is loaded from the table when next required,
+	 * used when records have been deleted or their fingerprints have changed
+	 */
+	synchronized void invalidate() {
+		loaded = false;
+		bits = null;
+	}
+	
+	/*
+	 * set the bits for a fingerprint
+	 */
+	private void set(long fingerprint) {
+		
+		// the two halves of the fingerprint are combined to derive each of the bit positions
+		int mFirst = (int) fingerprint;
+		int mSecond = (int) (fingerprint >>> 32);
+		
+		for(int i = 0; i < HASH_COUNT; i++) {
+			int mBit = (mFirst + i * mSecond) & mask;
+			bits[mBit >>> 6] |= 1L << mBit;
+		}
+	}
+	
+	/*
+	 * check the filter, false means the fingerprint is definitely not in the table
+	 */
+	private boolean mightContain(long fingerprint) {
+		
+		int mFirst = (int) fingerprint;
+		int mSecond = (int) (fingerprint >>> 32);
+		
+		for(int i = 0; i < HASH_COUNT; i++) {
+			int mBit = (mFirst + i * mSecond) & mask;
+			if((bits[mBit >>> 6] & (1L << mBit)) == 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * create a filter with room for twice the records in the table and fill it
+	 * from their fingerprints, a filter at the maximum size is never grown
+	 */
+	private void load(SQLiteDatabase database) {
+		
+		long mRecords = DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " + table + " WHERE " + column + " IS NOT NULL", null);
+		long mWanted = mRecords * 2 * BITS_PER_RECORD;
+		
+		int mBits = MIN_BITS;
+		
+		while(mBits < mWanted && mBits < MAX_BITS) {
+			mBits <<= 1;
+		}
+		
+		bits = new long[mBits >>> 6];
+		mask = mBits - 1;
+		count = 0;
+		
+		if(mBits == MAX_BITS) {
+			capacity = Integer.MAX_VALUE;
+		} else {
+			capacity = mBits / BITS_PER_RECORD;
+		}
+		
+		Cursor mCursor = database.query(table, new String[] {column}, column + " IS NOT NULL", null, null, null, null);
+		
+		try {
+			while(mCursor.moveToNext()) {
+				set(mCursor.getLong(0));
+				count++;
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		loaded = true;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2012, The Serval Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the The Serval Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SERVAL PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.servalproject.maps.provider;
+
+import android.net.Uri;
+
+/**
+ * a fixed grid of cells used to index the location of map items, so that
+ * the items inside a bounding box can be found without scanning the whole table
+ * 
+ * each cell is one hundredth of a degree square and is numbered by row, starting at
+ * the south pole, and then by column, starting at 180 degrees west
+ */
+public class GeoCell {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * query parameter holding the northern edge of a bounding box
+	 */
+	public static final String NORTH = "north";
+	
+	/**
+	 * query parameter holding the eastern edge of a bounding box
+	 */
+	public static final String EAST = "east";
+	
+	/**
+	 * query parameter holding the southern edge of a bounding box
+	 */
+	public static final String SOUTH = "south";
+	
+	/**
+	 * query parameter holding the western edge of a bounding box
+	 */
+	public static final String WEST = "west";
+	
+	/*
+	 * private class level constants
+	 */
+	private static final int CELLS_PER_DEGREE = 100;
+	private static final int ROWS = 180 * CELLS_PER_DEGREE;
+	private static final int COLUMNS = 360 * CELLS_PER_DEGREE;
+	
+	// above this number of rows a single range of cells is used
+	private static final int MAX_RANGES = 32;
+	
+	/**
+	 * get the cell that contains a location
+	 * 
+	 * @param latitude the latitude of the location
+	 * @param longitude the longitude of the location
+	 * @return the number of the cell
+	 */
+	public static int getCell(double latitude, double longitude) {
+		return getRow(latitude) * COLUMNS + getColumn(longitude);
+	}
+	
+	/**
+	 * add a bounding box to a content uri that supports bounding box queries
+	 * 
+	 * if the western edge is east of the eastern edge the box is taken to cross 180 degrees of longitude
+	 * 
+	 * @param uri the bounding box content uri
+	 * @param north the northern edge of the box
+	 * @param east the eastern edge of the box
+	 * @param south the southern edge of the box
+	 * @param west the western edge of the box
+	 * @return the uri including the bounding box
+	 */
+	public static Uri withBoundingBox(Uri uri, double north, double east, double south, double west) {
+		
+		return uri.buildUpon()
+				.appendQueryParameter(NORTH, Double.toString(north))
+				.appendQueryParameter(EAST, Double.toString(east))
+				.appendQueryParameter(SOUTH, Double.toString(south))
+				.appendQueryParameter(WEST, Double.toString(west))
+				.build();
+	}
+	
+	/*
+	 * get a SQL expression that calculates the cell from the latitude and longitude columns,
+	 * the result must match that of the getCell method
+	 */
+	static String getCellExpression(String latitude, String longitude) {
+		return "(MIN(MAX(CAST((" + latitude + " + 90) * " + CELLS_PER_DEGREE + " AS INTEGER), 0), " + (ROWS - 1) + ") * " + COLUMNS
+				+ " + MIN(MAX(CAST((" + longitude + " + 180) * " + CELLS_PER_DEGREE + " AS INTEGER), 0), " + (COLUMNS - 1) + "))";
+	}
+	
+	/*
+	 * build a selection that restricts the rows of a table to those inside the bounding box in a uri
+	 */
+	static String getSelection(Uri uri, String cell, String latitude, String longitude) {
+		
+		double mNorth = getParameter(uri, NORTH);
+		double mEast = getParameter(uri, EAST);
+		double mSouth = getParameter(uri, SOUTH);
+		double mWest = getParameter(uri, WEST);
+		
+		if(mSouth > mNorth) {
+			throw new IllegalArgumentException("the southern edge of the bounding box is north of the northern edge");
+		}
+		
+		int mFirstRow = getRow(mSouth);
+		int mLastRow = getRow(mNorth);
+		int mWestColumn = getColumn(mWest);
+		int mEastColumn = getColumn(mEast);
+		
+		boolean mWraps = mWest > mEast;
+		
+		StringBuilder mSelection = new StringBuilder();
+		mSelection.append('(');
+		
+		// use the index on the cell column to find the candidate rows
+		if(mLastRow - mFirstRow < MAX_RANGES) {
+			
+			String mSeparator = "";
+			
+			for(int mRow = mFirstRow; mRow <= mLastRow; mRow++) {
+				
+				if(mWraps) {
+					appendRange(mSelection.append(mSeparator), cell, mRow * COLUMNS + mWestColumn, mRow * COLUMNS + COLUMNS - 1);
+					appendRange(mSelection.append(" OR "), cell, mRow * COLUMNS, mRow * COLUMNS + mEastColumn);
+				} else {
+					appendRange(mSelection.append(mSeparator), cell, mRow * COLUMNS + mWestColumn, mRow * COLUMNS + mEastColumn);
+				}
+				
+				mSeparator = " OR ";
+			}
+		} else {
+			// too many rows, so use one range that covers them all
+			if(mWraps) {
+				appendRange(mSelection, cell, mFirstRow * COLUMNS, mLastRow * COLUMNS + COLUMNS - 1);
+			} else {
+				appendRange(mSelection, cell, mFirstRow * COLUMNS + mWestColumn, mLastRow * COLUMNS + mEastColumn);
+			}
+		}
+		
+		// then check the exact coordinates
+		mSelection.append(") AND ").append(latitude).append(" BETWEEN ").append(mSouth).append(" AND ").append(mNorth);
+		
+		if(mWraps) {
+			mSelection.append(" AND (").append(longitude).append(" >= ").append(mWest)
+					.append(" OR ").append(longitude).append(" <= ").append(mEast).append(')');
+		} else {
+			mSelection.append(" AND ").append(longitude).append(" BETWEEN ").append(mWest).append(" AND ").append(mEast);
+		}
+		
+		return mSelection.toString();
+	}
+	
+	/*
+	 * get the row of the grid that contains a latitude
+	 */
+	private static int getRow(double latitude) {
+		return Math.min(Math.max((int) ((latitude + 90) * CELLS_PER_DEGREE), 0), ROWS - 1);
+	}
+	
+	/*
+	 * get the column of the grid that contains a longitude
+	 */
+	private static int getColumn(double longitude) {
+		return Math.min(Math.max((int) ((longitude + 180) * CELLS_PER_DEGREE), 0), COLUMNS - 1);
+	}
+	
+	/*
+	 * append a range of cells to a selection
+	 */
+	private static void appendRange(StringBuilder selection, String cell, int first, int last) {
+		selection.append(cell).append(" BETWEEN ").append(first).append(" AND ").append(last);
+	}
+	
+	/*
+	 * get a required bounding box parameter from a uri
+	 */
+	private static double getParameter(Uri uri, String name) {
+		
+		String mValue = uri.getQueryParameter(name);
+		
+		if(mValue == null) {
+			throw new IllegalArgumentException("the '" + name + "' bounding box parameter is required");
+		}
+		
+		double mParameter;
+		
+		try {
+			mParameter = Double.parseDouble(mValue);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("the '" + name + "' bounding box parameter is not a valid number");
+		}
+		
+		if(Double.isNaN(mParameter) || Double.isInfinite(mParameter)) {
+			throw new IllegalArgumentException("the '" + name + "' bounding box parameter is not a valid number");
+		}
+		
+		return mParameter;
+	}
+}
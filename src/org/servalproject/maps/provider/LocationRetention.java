@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.provider;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * keeps the locations table bounded by thinning out old history and
+ * dropping rows that are older than the retention limit
+ * 
+ * locations older than the thinning horizon are reduced to one per peer per
+ * minute, and those older than seven times the horizon to one per peer per ten
+ * minutes, the latest location of each peer is always kept
+ * 
+ * the work is done on a background thread in small transactions, one hour of
+ * one peer's history or a few hundred expired rows at a time, so that the
+ * provider is never locked for long
+ */
+class LocationRetention {
+	
+	/**
+	 * name of the preference holding how long, in seconds, to keep full detail, or -1 to never thin out
+	 */
+	static final String THIN_AFTER_PREFERENCE = "preferences_location_thin_after";
+	
+	/**
+	 * name of the preference holding how long, in seconds, to keep locations, or -1 for no limit
+	 */
+	static final String RETENTION_PREFERENCE = "preferences_location_retention";
+	
+	/*
+	 * private class level constants
+	 */
+	private static final boolean V_LOG = false;
+	private static final String TAG = "LocationRetention";
+	
+	private static final long DEFAULT_THIN_AFTER = 24 * 60 * 60;
+	private static final long DEFAULT_RETENTION = 30 * 24 * 60 * 60;
+	
+	// minimum time between runs, and the delay before the first one so it doesn't slow start up
+	private static final long RUN_INTERVAL = 60 * 60 * 1000;
+	private static final long FIRST_RUN_DELAY = 60 * 1000;
+	
+	// size of the thinning buckets, the second tier starts at this multiple of the horizon
+	private static final long FIRST_TIER_BUCKET = 60 * 1000;
+	private static final long SECOND_TIER_BUCKET = 10 * 60 * 1000;
+	private static final int SECOND_TIER_MULTIPLE = 7;
+	private static final long[] BUCKETS = {FIRST_TIER_BUCKET, SECOND_TIER_BUCKET};
+	
+	// the amount of work done in each transaction
+	private static final long SLICE_LENGTH = 60 * 60 * 1000;
+	private static final int DELETE_CHUNK_SIZE = 500;
+	
+	// where the thinning has got up to for each bucket size
+	private static final String PREFERENCES_NAME = "location-retention";
+	private static final String WATERMARK_PREFIX = "thinned|";
+	
+	// delete all but the newest row in each bucket of one peer's history, keeping the latest location
+	private static final String THIN_DELETE = "DELETE FROM " + LocationsContract.Table.TABLE_NAME + " WHERE "
+			+ LocationsContract.Table.PHONE_NUMBER + " = ? AND "
+			+ LocationsContract.Table.TIMESTAMP + " >= ? AND "
+			+ LocationsContract.Table.TIMESTAMP + " < ? AND "
+			+ LocationsContract.Table._ID + " NOT IN (SELECT MAX(" + LocationsContract.Table._ID + ") FROM "
+			+ LocationsContract.Table.TABLE_NAME + " WHERE "
+			+ LocationsContract.Table.PHONE_NUMBER + " = ? AND "
+			+ LocationsContract.Table.TIMESTAMP + " >= ? AND "
+			+ LocationsContract.Table.TIMESTAMP + " < ? GROUP BY "
+			+ LocationsContract.Table.TIMESTAMP + " / ?) AND "
+			+ LocationsContract.Table._ID + " NOT IN (SELECT " + LocationsContract.Table._ID + " FROM "
+			+ LocationsContract.Table.LATEST_TABLE_NAME + ")";
+	
+	// delete a chunk of rows older than the retention limit
+	private static final String EXPIRED_DELETE = LocationsContract.Table._ID + " IN (SELECT "
+			+ LocationsContract.Table._ID + " FROM " + LocationsContract.Table.TABLE_NAME + " WHERE "
+			+ LocationsContract.Table.TIMESTAMP + " < ? LIMIT " + DELETE_CHUNK_SIZE + ")";
+	
+	/*
+	 * private class level variables
+	 */
+	private final Context context;
+	private final FingerprintFilter fingerprints;
+	private final Handler handler;
+	
+	// only changed while holding the lock on this object
+	private SQLiteDatabase database = null;
+	private long lastRun = 0;
+	private boolean runScheduled = false;
+	
+	/**
+	 * construct a new retention engine and start its thread
+	 * 
+	 * @param context the context used to read the preferences and send change notifications
+	 * @param fingerprints the filter of location fingerprints, discarded when records are removed
+	 */
+	LocationRetention(Context context, FingerprintFilter fingerprints) {
+		
+		if(context == null) {
+			throw new IllegalArgumentException("the context parameter is required");
+		}
+		
+		if(fingerprints == null) {
+			throw new IllegalArgumentException("the fingerprints parameter is required");
+		}
+		
+		this.context = context;
+		this.fingerprints = fingerprints;
+		
+		HandlerThread mThread = new HandlerThread(TAG);
+		mThread.start();
+		handler = new Handler(mThread.getLooper());
+	}
+	
+	/**
+	 * request a run, which happens after a short delay the first time and
+	 * then at most once every run interval
+	 * 
+	 * @param database the database connection held by the provider
+	 */
+	synchronized void schedule(SQLiteDatabase database) {
+		
+		if(database == null) {
+			throw new IllegalArgumentException("the database parameter is required");
+		}
+		
+		this.database = database;
+		
+		if(runScheduled) {
+			return;
+		}
+		
+		long mDelay;
+		
+		if(lastRun == 0) {
+			mDelay = FIRST_RUN_DELAY;
+		} else {
+			mDelay = lastRun + RUN_INTERVAL - System.currentTimeMillis();
+			
+			if(mDelay > 0) {
+				// not due yet, the next record added after the interval will start a run
+				return;
+			}
+			
+			mDelay = 0;
+		}
+		
+		runScheduled = true;
+		handler.postDelayed(runTask, mDelay);
+	}
+	
+	/**
+	 * make sure that locations added with old timestamps are thinned out, by moving
+	 * the point that each bucket size has been thinned up to back before them
+	 * 
+	 * @param timestamp the oldest timestamp of the locations that were added
+	 */
+	synchronized void recordAdded(long timestamp) {
+		
+		SharedPreferences mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		SharedPreferences.Editor mEditor = null;
+		
+		long mSliceStart = timestamp - timestamp % SLICE_LENGTH;
+		
+		for(long mBucket : BUCKETS) {
+			
+			String mKey = WATERMARK_PREFIX + mBucket;
+			
+			if(mSliceStart < mPreferences.getLong(mKey, 0)) {
+				if(mEditor == null) {
+					mEditor = mPreferences.edit();
+				}
+				mEditor.putLong(mKey, mSliceStart);
+			}
+		}
+		
+		// most locations are newer than the watermarks so nothing is written
+		if(mEditor != null) {
+			mEditor.commit();
+			
+			if(V_LOG) {
+				Log.v(TAG, "moved the thinning watermarks back to " + mSliceStart);
+			}
+		}
+	}
+	
+	/*
+	 * task that applies the retention policy on the background thread
+	 */
+	private final Runnable runTask = new Runnable() {
+		public void run() {
+			
+			SQLiteDatabase mDatabase;
+			
+			synchronized(LocationRetention.this) {
+				runScheduled = false;
+				lastRun = System.currentTimeMillis();
+				mDatabase = database;
+			}
+			
+			try {
+				apply(mDatabase);
+			} catch (Exception e) {
+				// try again at the next run
+				Log.e(TAG, "unable to apply the location retention policy", e);
+			}
+		}
+	};
+	
+	/*
+	 * drop the expired rows then thin out the remaining history
+	 */
+	private void apply(SQLiteDatabase database) {
+		
+		SharedPreferences mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+		
+		long mRetention = getSeconds(mPreferences, RETENTION_PREFERENCE, DEFAULT_RETENTION);
+		long mThinAfter = getSeconds(mPreferences, THIN_AFTER_PREFERENCE, DEFAULT_THIN_AFTER);
+		
+		long mNow = System.currentTimeMillis();
+		int mDeleted = 0;
+		
+		if(mRetention >= 0) {
+			mDeleted += dropExpired(database, mNow - mRetention * 1000);
+		}
+		
+		if(mThinAfter >= 0) {
+			mDeleted += thin(database, mNow - mThinAfter * 1000, FIRST_TIER_BUCKET);
+			mDeleted += thin(database, mNow - mThinAfter * 1000 * SECOND_TIER_MULTIPLE, SECOND_TIER_BUCKET);
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "removed " + mDeleted + " location records");
+		}
+		
+		if(mDeleted > 0) {
+			// the filter is loaded again without the removed records
+			fingerprints.invalidate();
+			
+			context.getContentResolver().notifyChange(LocationsContract.CONTENT_URI, null);
+		}
+	}
+	
+	/*
+	 * delete the rows older than the cutoff a chunk at a time
+	 */
+	private int dropExpired(SQLiteDatabase database, long cutoff) {
+		
+		String[] mArgs = new String[1];
+		mArgs[0] = Long.toString(cutoff);
+		
+		int mTotal = 0;
+		int mCount;
+		
+		do {
+			database.beginTransaction();
+			try {
+				// a peer whose latest location has expired has no locations left
+				if(database.delete(LocationsContract.Table.LATEST_TABLE_NAME, LocationsContract.Table.TIMESTAMP + " < ?", mArgs) > 0) {
+					MapItemsCache.invalidate();
+				}
+				
+				mCount = database.delete(LocationsContract.Table.TABLE_NAME, EXPIRED_DELETE, mArgs);
+				database.setTransactionSuccessful();
+			} finally {
+				database.endTransaction();
+			}
+			
+			mTotal += mCount;
+		} while(mCount == DELETE_CHUNK_SIZE);
+		
+		return mTotal;
+	}
+	
+	/*
+	 * reduce each peer's history before the end time to one row per bucket,
+	 * starting from where the previous run for this bucket size finished
+	 */
+	private int thin(SQLiteDatabase database, long end, long bucket) {
+		
+		// work in whole slices so that a bucket is never split across transactions
+		end -= end % SLICE_LENGTH;
+		
+		SharedPreferences mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		String mKey = WATERMARK_PREFIX + bucket;
+		long mStart;
+		
+		synchronized(this) {
+			mStart = mPreferences.getLong(mKey, 0);
+		}
+		
+		if(mStart >= end) {
+			return 0;
+		}
+		
+		int mTotal = 0;
+		
+		for(String mPhoneNumber : getPhoneNumbers(database)) {
+			
+			long mSliceStart = findFirst(database, mPhoneNumber, mStart, end);
+			
+			while(mSliceStart < end) {
+				
+				mSliceStart -= mSliceStart % SLICE_LENGTH;
+				long mSliceEnd = Math.min(mSliceStart + SLICE_LENGTH, end);
+				
+				Object[] mArgs = new Object[7];
+				mArgs[0] = mPhoneNumber;
+				mArgs[1] = mSliceStart;
+				mArgs[2] = mSliceEnd;
+				mArgs[3] = mPhoneNumber;
+				mArgs[4] = mSliceStart;
+				mArgs[5] = mSliceEnd;
+				mArgs[6] = bucket;
+				
+				database.beginTransaction();
+				try {
+					database.execSQL(THIN_DELETE, mArgs);
+					mTotal += getChanges(database);
+					database.setTransactionSuccessful();
+				} finally {
+					database.endTransaction();
+				}
+				
+				// skip over any hours without locations
+				mSliceStart = findFirst(database, mPhoneNumber, mSliceEnd, end);
+			}
+		}
+		
+		// the history before the end has been thinned for all of the peers,
+		// unless an older location was added during the run and moved the watermark back
+		synchronized(this) {
+			if(mPreferences.getLong(mKey, 0) == mStart) {
+				mPreferences.edit().putLong(mKey, end).commit();
+			}
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "thinned locations before " + end + " to one per " + bucket + "ms, removing " + mTotal);
+		}
+		
+		return mTotal;
+	}
+	
+	/*
+	 * get the phone number of each peer that has locations
+	 */
+	private ArrayList<String> getPhoneNumbers(SQLiteDatabase database) {
+		
+		ArrayList<String> mPhoneNumbers = new ArrayList<String>();
+		
+		String[] mProjection = new String[1];
+		mProjection[0] = LocationsContract.Table.PHONE_NUMBER;
+		
+		Cursor mCursor = database.query(LocationsContract.Table.LATEST_TABLE_NAME, mProjection, null, null, null, null, null);
+		
+		try {
+			while(mCursor.moveToNext()) {
+				if(mCursor.isNull(0) == false) {
+					mPhoneNumbers.add(mCursor.getString(0));
+				}
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		return mPhoneNumbers;
+	}
+	
+	/*
+	 * find the timestamp of a peer's first location in a time range, or the end of the range if there isn't one,
+	 * this uses the index on phone number and timestamp
+	 */
+	private long findFirst(SQLiteDatabase database, String phoneNumber, long start, long end) {
+		
+		String[] mArgs = new String[3];
+		mArgs[0] = phoneNumber;
+		mArgs[1] = Long.toString(start);
+		mArgs[2] = Long.toString(end);
+		
+		Cursor mCursor = database.rawQuery("SELECT MIN(" + LocationsContract.Table.TIMESTAMP + ") FROM "
+				+ LocationsContract.Table.TABLE_NAME + " WHERE "
+				+ LocationsContract.Table.PHONE_NUMBER + " = ? AND "
+				+ LocationsContract.Table.TIMESTAMP + " >= ? AND "
+				+ LocationsContract.Table.TIMESTAMP + " < ?", mArgs);
+		
+		try {
+			if(mCursor.moveToFirst() && mCursor.isNull(0) == false) {
+				return mCursor.getLong(0);
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		return end;
+	}
+	
+	/*
+	 * get the number of rows changed by the last statement
+	 */
+	private int getChanges(SQLiteDatabase database) {
+		
+		Cursor mCursor = database.rawQuery("SELECT changes()", null);
+		
+		try {
+			if(mCursor.moveToFirst()) {
+				return mCursor.getInt(0);
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		return 0;
+	}
+	
+	/*
+	 * read a time in seconds from a list preference, which stores its values as strings
+	 */
+	private long getSeconds(SharedPreferences preferences, String key, long defaultValue) {
+		
+		try {
+			return Long.parseLong(preferences.getString(key, Long.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "invalid value for preference: " + key);
+			return defaultValue;
+		}
+	}
+}
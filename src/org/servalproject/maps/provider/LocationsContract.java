@@ -49,6 +49,16 @@ public class LocationsContract {
 	 */
 	public static final Uri LATEST_CONTENT_URI = Uri.parse("content://" + MapItems.AUTHORITY + "/" + CONTENT_URI_PATH + "/latest");
 	
+	/**
+	 * content URI for the locations data inside a bounding box, see GeoCell.withBoundingBox
+	 */
+	public static final Uri BBOX_CONTENT_URI = Uri.parse("content://" + MapItems.AUTHORITY + "/" + CONTENT_URI_PATH + "/bbox");
+	
+	/**
+	 * content URI for the most recent locations data inside a bounding box, see GeoCell.withBoundingBox
+	 */
+	public static final Uri LATEST_BBOX_CONTENT_URI = Uri.parse("content://" + MapItems.AUTHORITY + "/" + CONTENT_URI_PATH + "/latest/bbox");
+	
 	
 	/**
 	 * content type for a list of items
@@ -70,6 +80,11 @@ public class LocationsContract {
 		 */
 		public static final String TABLE_NAME = LocationsContract.CONTENT_URI_PATH;
 		
+		/**
+		 * name of the table holding the most recent location of each phone number
+		 */
+		public static final String LATEST_TABLE_NAME = "peer_latest";
+		
 		/**
 		 * unique id column
 		 */
@@ -105,6 +120,16 @@ public class LocationsContract {
 		 */
 		public static final String TIMEZONE = "timezone";
 		
+		/**
+		 * grid cell containing the location, maintained by the provider
+		 */
+		public static final String GEOCELL = "geocell";
+		
+		/**
+		 * fingerprint of the record used to detect duplicates, maintained by the provider
+		 */
+		public static final String FINGERPRINT = "fingerprint";
+		
 		/**
 		 * a list of all of the columns
 		 */
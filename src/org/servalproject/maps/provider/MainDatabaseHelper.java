@@ -19,9 +19,15 @@
  */
 package org.servalproject.maps.provider;
 
+import java.util.List;
+
+import org.servalproject.maps.utils.HashUtils;
+
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 public class MainDatabaseHelper extends SQLiteOpenHelper {
 	
@@ -34,7 +40,9 @@ public class MainDatabaseHelper extends SQLiteOpenHelper {
 			+ LocationsContract.Table.LATITUDE + " REAL, "
 			+ LocationsContract.Table.LONGITUDE + " REAL, "
 			+ LocationsContract.Table.TIMESTAMP + " INTEGER, "
-			+ LocationsContract.Table.TIMEZONE + " TEXT)";
+			+ LocationsContract.Table.TIMEZONE + " TEXT, "
+			+ LocationsContract.Table.GEOCELL + " INTEGER, "
+			+ LocationsContract.Table.FINGERPRINT + " INTEGER)";
 	
 	private final String POI_CREATE = "CREATE TABLE " +
 			PointsOfInterestContract.CONTENT_URI_PATH + " ("
@@ -48,21 +56,99 @@ public class MainDatabaseHelper extends SQLiteOpenHelper {
 			+ PointsOfInterestContract.Table.TITLE + " TEXT, "
 			+ PointsOfInterestContract.Table.DESCRIPTION + " TEXT, "
 			+ PointsOfInterestContract.Table.CATEGORY + " INTEGER DEFAULT " + PointsOfInterestContract.DEFAULT_CATEGORY + ", "
-			+ PointsOfInterestContract.Table.PHOTO + " TEXT)";
+			+ PointsOfInterestContract.Table.PHOTO + " TEXT, "
+			+ PointsOfInterestContract.Table.GEOCELL + " INTEGER, "
+			+ PointsOfInterestContract.Table.FINGERPRINT + " INTEGER)";
 	
 	private final String LOCATIONS_INDEX = "CREATE INDEX locations_timestamp_desc ON "
 			+ LocationsContract.CONTENT_URI_PATH + " ("
 			+ LocationsContract.Table.PHONE_NUMBER + " ASC, "
 			+ LocationsContract.Table.TIMESTAMP + " DESC)";
 	
+	// the latest location of each peer, kept up to date as locations are added
+	private final String PEER_LATEST_CREATE = "CREATE TABLE " +
+			LocationsContract.Table.LATEST_TABLE_NAME + " ("
+			+ LocationsContract.Table._ID + " INTEGER, "
+			+ LocationsContract.Table.PHONE_NUMBER + " TEXT PRIMARY KEY, "
+			+ LocationsContract.Table.SUBSCRIBER_ID + " TEXT, "
+			+ LocationsContract.Table.LATITUDE + " REAL, "
+			+ LocationsContract.Table.LONGITUDE + " REAL, "
+			+ LocationsContract.Table.TIMESTAMP + " INTEGER, "
+			+ LocationsContract.Table.TIMEZONE + " TEXT, "
+			+ LocationsContract.Table.GEOCELL + " INTEGER)";
+	
+	private static final String PEER_LATEST_COLUMNS = 
+			LocationsContract.Table._ID + ", "
+			+ LocationsContract.Table.PHONE_NUMBER + ", "
+			+ LocationsContract.Table.SUBSCRIBER_ID + ", "
+			+ LocationsContract.Table.LATITUDE + ", "
+			+ LocationsContract.Table.LONGITUDE + ", "
+			+ LocationsContract.Table.TIMESTAMP + ", "
+			+ LocationsContract.Table.TIMEZONE + ", "
+			+ LocationsContract.Table.GEOCELL;
+	
+	// copy a location record into the latest table unless a newer one is already there
+	static final String PEER_LATEST_UPDATE = "INSERT OR REPLACE INTO "
+			+ LocationsContract.Table.LATEST_TABLE_NAME + " (" + PEER_LATEST_COLUMNS + ") "
+			+ "SELECT " + PEER_LATEST_COLUMNS + " FROM " + LocationsContract.Table.TABLE_NAME + " l "
+			+ "WHERE l." + LocationsContract.Table._ID + " = ? AND NOT EXISTS (SELECT 1 FROM "
+			+ LocationsContract.Table.LATEST_TABLE_NAME + " p WHERE p."
+			+ LocationsContract.Table.PHONE_NUMBER + " = l." + LocationsContract.Table.PHONE_NUMBER + " AND p."
+			+ LocationsContract.Table.TIMESTAMP + " > l." + LocationsContract.Table.TIMESTAMP + ")";
+	
+	// repopulate the latest table from the locations table
+	private static final String PEER_LATEST_REBUILD = "INSERT OR REPLACE INTO "
+			+ LocationsContract.Table.LATEST_TABLE_NAME + " (" + PEER_LATEST_COLUMNS + ") "
+			+ "SELECT " + PEER_LATEST_COLUMNS + " FROM " + LocationsContract.Table.TABLE_NAME + " l "
+			+ "WHERE l." + LocationsContract.Table.TIMESTAMP + " = (SELECT MAX("
+			+ LocationsContract.Table.TIMESTAMP + ") FROM " + LocationsContract.Table.TABLE_NAME + " m WHERE m."
+			+ LocationsContract.Table.PHONE_NUMBER + " = l." + LocationsContract.Table.PHONE_NUMBER + ")";
+	
 	private final String POI_INDEX = "CREATE INDEX poi_timestamp_desc ON "
 			+ PointsOfInterestContract.CONTENT_URI_PATH + " ("
 			+ PointsOfInterestContract.Table.PHONE_NUMBER + " ASC, "
 			+ PointsOfInterestContract.Table.TIMESTAMP + " DESC)";
 	
+	// indexes on the grid cell of each item, used for bounding box queries
+	private final String LOCATIONS_GEOCELL_INDEX = "CREATE INDEX locations_geocell ON "
+			+ LocationsContract.Table.TABLE_NAME + " ("
+			+ LocationsContract.Table.GEOCELL + ")";
+	
+	private final String PEER_LATEST_GEOCELL_INDEX = "CREATE INDEX peer_latest_geocell ON "
+			+ LocationsContract.Table.LATEST_TABLE_NAME + " ("
+			+ LocationsContract.Table.GEOCELL + ")";
+	
+	private final String POI_GEOCELL_INDEX = "CREATE INDEX poi_geocell ON "
+			+ PointsOfInterestContract.Table.TABLE_NAME + " ("
+			+ PointsOfInterestContract.Table.GEOCELL + ")";
+	
+	// indexes on the fingerprint of each item, used to reject duplicate records
+	private final String LOCATIONS_FINGERPRINT_INDEX = "CREATE INDEX locations_fingerprint ON "
+			+ LocationsContract.Table.TABLE_NAME + " ("
+			+ LocationsContract.Table.FINGERPRINT + ")";
+	
+	private final String POI_FINGERPRINT_INDEX = "CREATE INDEX poi_fingerprint ON "
+			+ PointsOfInterestContract.Table.TABLE_NAME + " ("
+			+ PointsOfInterestContract.Table.FINGERPRINT + ")";
+	
+	// the provider sets the grid cell on insert, these keep it up to date when an item is moved
+	private final String LOCATIONS_GEOCELL_TRIGGER = "CREATE TRIGGER locations_geocell_update AFTER UPDATE OF "
+			+ LocationsContract.Table.LATITUDE + ", " + LocationsContract.Table.LONGITUDE + " ON "
+			+ LocationsContract.Table.TABLE_NAME + " BEGIN UPDATE " + LocationsContract.Table.TABLE_NAME
+			+ " SET " + LocationsContract.Table.GEOCELL + " = "
+			+ GeoCell.getCellExpression("NEW." + LocationsContract.Table.LATITUDE, "NEW." + LocationsContract.Table.LONGITUDE)
+			+ " WHERE " + LocationsContract.Table._ID + " = NEW." + LocationsContract.Table._ID + "; END";
+	
+	private final String POI_GEOCELL_TRIGGER = "CREATE TRIGGER poi_geocell_update AFTER UPDATE OF "
+			+ PointsOfInterestContract.Table.LATITUDE + ", " + PointsOfInterestContract.Table.LONGITUDE + " ON "
+			+ PointsOfInterestContract.Table.TABLE_NAME + " BEGIN UPDATE " + PointsOfInterestContract.Table.TABLE_NAME
+			+ " SET " + PointsOfInterestContract.Table.GEOCELL + " = "
+			+ GeoCell.getCellExpression("NEW." + PointsOfInterestContract.Table.LATITUDE, "NEW." + PointsOfInterestContract.Table.LONGITUDE)
+			+ " WHERE " + PointsOfInterestContract.Table._ID + " = NEW." + PointsOfInterestContract.Table._ID + "; END";
+	
 	// declare public class constants
 	public static final String DB_NAME = "serval-maps.db";
-	public static final int DB_VERSION = 1;
+	public static final int DB_VERSION = 4;
 	
 	/**
 	 * Constructs a new MainDatabaseHelper object
@@ -82,11 +168,146 @@ public class MainDatabaseHelper extends SQLiteOpenHelper {
 		
 		db.execSQL(LOCATIONS_INDEX);
 		db.execSQL(POI_INDEX);
+		
+		db.execSQL(PEER_LATEST_CREATE);
+		
+		db.execSQL(LOCATIONS_GEOCELL_INDEX);
+		db.execSQL(POI_GEOCELL_INDEX);
+		db.execSQL(PEER_LATEST_GEOCELL_INDEX);
+		
+		db.execSQL(LOCATIONS_GEOCELL_TRIGGER);
+		db.execSQL(POI_GEOCELL_TRIGGER);
+		
+		db.execSQL(LOCATIONS_FINGERPRINT_INDEX);
+		db.execSQL(POI_FINGERPRINT_INDEX);
 	}
 
 	@Override
-	public void onUpgrade(SQLiteDatabase arg0, int arg1, int arg2) {
-		// TODO Auto-generated method stub
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		
+		// version 3 adds the grid cell of each item used for bounding box queries
+		if(oldVersion < 3) {
+			db.execSQL("ALTER TABLE " + LocationsContract.Table.TABLE_NAME + " ADD COLUMN " + LocationsContract.Table.GEOCELL + " INTEGER");
+			db.execSQL("ALTER TABLE " + PointsOfInterestContract.Table.TABLE_NAME + " ADD COLUMN " + PointsOfInterestContract.Table.GEOCELL + " INTEGER");
+			
+			db.execSQL("UPDATE " + LocationsContract.Table.TABLE_NAME + " SET " + LocationsContract.Table.GEOCELL + " = "
+					+ GeoCell.getCellExpression(LocationsContract.Table.LATITUDE, LocationsContract.Table.LONGITUDE));
+			db.execSQL("UPDATE " + PointsOfInterestContract.Table.TABLE_NAME + " SET " + PointsOfInterestContract.Table.GEOCELL + " = "
+					+ GeoCell.getCellExpression(PointsOfInterestContract.Table.LATITUDE, PointsOfInterestContract.Table.LONGITUDE));
+			
+			db.execSQL(LOCATIONS_GEOCELL_INDEX);
+			db.execSQL(POI_GEOCELL_INDEX);
+			
+			db.execSQL(LOCATIONS_GEOCELL_TRIGGER);
+			db.execSQL(POI_GEOCELL_TRIGGER);
+			
+			// the table of latest peer locations from version 2, if there is one, is created again with the grid cell
+			db.execSQL("DROP TABLE IF EXISTS " + LocationsContract.Table.LATEST_TABLE_NAME);
+			db.execSQL(PEER_LATEST_CREATE);
+			db.execSQL(PEER_LATEST_GEOCELL_INDEX);
+			rebuildPeerLatest(db);
+		}
+		
+		// version 4 adds the fingerprint of each item used to reject duplicate records
+		if(oldVersion < 4) {
+			db.execSQL("ALTER TABLE " + LocationsContract.Table.TABLE_NAME + " ADD COLUMN " + LocationsContract.Table.FINGERPRINT + " INTEGER");
+			db.execSQL("ALTER TABLE " + PointsOfInterestContract.Table.TABLE_NAME + " ADD COLUMN " + PointsOfInterestContract.Table.FINGERPRINT + " INTEGER");
+			
+			// the fingerprint is a hash so it has to be calculated here rather than in sql
+			updateFingerprints(db, LocationsContract.Table.TABLE_NAME, null);
+			updateFingerprints(db, PointsOfInterestContract.Table.TABLE_NAME, null);
+			
+			db.execSQL(LOCATIONS_FINGERPRINT_INDEX);
+			db.execSQL(POI_FINGERPRINT_INDEX);
+		}
+	}
+	
+	/*
+	 * calculate the fingerprint of the records in a table that match a selection,
+	 * the column names are the same in both tables
+	 */
+	static void updateFingerprints(SQLiteDatabase db, String table, String selection) {
+		
+		String[] mProjection;
+		boolean mWithTitle = table.equals(PointsOfInterestContract.Table.TABLE_NAME);
+		
+		if(mWithTitle) {
+			mProjection = new String[] {
+					LocationsContract.Table._ID,
+					LocationsContract.Table.PHONE_NUMBER,
+					LocationsContract.Table.LATITUDE,
+					LocationsContract.Table.LONGITUDE,
+					LocationsContract.Table.TIMESTAMP,
+					PointsOfInterestContract.Table.TITLE};
+		} else {
+			mProjection = new String[] {
+					LocationsContract.Table._ID,
+					LocationsContract.Table.PHONE_NUMBER,
+					LocationsContract.Table.LATITUDE,
+					LocationsContract.Table.LONGITUDE,
+					LocationsContract.Table.TIMESTAMP};
+		}
+		
+		Cursor mCursor = db.query(table, mProjection, selection, null, null, null, null);
+		SQLiteStatement mStatement = db.compileStatement("UPDATE " + table + " SET "
+				+ LocationsContract.Table.FINGERPRINT + " = ? WHERE " + LocationsContract.Table._ID + " = ?");
+		
+		try {
+			while(mCursor.moveToNext()) {
+				
+				long mFingerprint;
+				
+				if(mWithTitle) {
+					mFingerprint = HashUtils.fingerprintPointOfInterest(mCursor.getString(1), mCursor.getDouble(2), mCursor.getDouble(3), mCursor.getLong(4), mCursor.getString(5));
+				} else {
+					mFingerprint = HashUtils.fingerprintLocation(mCursor.getString(1), mCursor.getDouble(2), mCursor.getDouble(3), mCursor.getLong(4));
+				}
+				
+				mStatement.bindLong(1, mFingerprint);
+				mStatement.bindLong(2, mCursor.getLong(0));
+				mStatement.execute();
+			}
+		} finally {
+			mStatement.close();
+			mCursor.close();
+		}
+	}
+	
+	/**
+	 * rebuild the table of latest peer locations from the locations table
+	 * 
+	 * @param db the database to update
+	 */
+	static void rebuildPeerLatest(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM " + LocationsContract.Table.LATEST_TABLE_NAME);
+		db.execSQL(PEER_LATEST_REBUILD);
+	}
+	
+	/**
+	 * find the latest location of some of the peers again from the locations table
+	 * 
+	 * @param db the database to update
+	 * @param phoneNumbers the phone numbers of the peers
+	 */
+	static void rebuildPeerLatest(SQLiteDatabase db, List<String> phoneNumbers) {
+		
+		SQLiteStatement mDelete = db.compileStatement("DELETE FROM " + LocationsContract.Table.LATEST_TABLE_NAME
+				+ " WHERE " + LocationsContract.Table.PHONE_NUMBER + " = ?");
+		SQLiteStatement mRebuild = db.compileStatement(PEER_LATEST_REBUILD
+				+ " AND l." + LocationsContract.Table.PHONE_NUMBER + " = ?");
+		
+		try {
+			for(String mPhoneNumber : phoneNumbers) {
+				mDelete.bindString(1, mPhoneNumber);
+				mDelete.execute();
+				
+				mRebuild.bindString(1, mPhoneNumber);
+				mRebuild.execute();
+			}
+		} finally {
+			mDelete.close();
+			mRebuild.close();
+		}
 	}
 
 }
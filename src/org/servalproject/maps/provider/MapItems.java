@@ -19,12 +19,24 @@
  */
 package org.servalproject.maps.provider;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.servalproject.maps.utils.HashUtils;
+
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -39,22 +51,43 @@ public class MapItems extends ContentProvider {
 	 */
 	public static final String AUTHORITY = "org.servalproject.maps.provider.items";
 	
+	/**
+	 * name of the query parameter used to limit the number of rows returned by a query
+	 */
+	public static final String LIMIT = "limit";
+	
 	// private class level constants
 	private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 	
 	private final int LOCATION_LIST_URI = 0;
 	private final int LOCATION_ITEM_URI = 1;
 	private final int LOCATION_LATEST_LIST_URI = 3;
+	private final int LOCATION_BBOX_URI = 6;
+	private final int LOCATION_LATEST_BBOX_URI = 7;
 	
 	private final int POI_LIST_URI = 4;
 	private final int POI_ITEM_URI = 5;
+	private final int POI_BBOX_URI = 8;
+	
+	// the number of records given new fingerprints in each statement after an update
+	private static final int FINGERPRINT_BATCH_SIZE = 500;
 	
 	private final String TAG = "MapItems";
-	//private final boolean V_LOG = true;
+	private final boolean V_LOG = false;
 	
 	// private class level variables
 	private MainDatabaseHelper databaseHelper;
-	private SQLiteDatabase database;
+	private volatile SQLiteDatabase database;
+	
+	// filters used to reject duplicate records without a database lookup for each one
+	private FingerprintFilter locationFingerprints;
+	private FingerprintFilter poiFingerprints;
+	
+	// thins out and drops old locations in the background
+	private LocationRetention retention;
+	
+	// notifications held back while a batch is applied on the current thread
+	private final ThreadLocal<HashSet<Uri>> pendingNotifications = new ThreadLocal<HashSet<Uri>>();
 	
 	/*
 	 * undertake initialisation tasks
@@ -70,13 +103,22 @@ public class MapItems extends ContentProvider {
 		uriMatcher.addURI(MapItems.AUTHORITY, LocationsContract.CONTENT_URI_PATH, LOCATION_LIST_URI);
 		uriMatcher.addURI(MapItems.AUTHORITY, LocationsContract.CONTENT_URI_PATH + "/#", LOCATION_ITEM_URI);
 		uriMatcher.addURI(MapItems.AUTHORITY, LocationsContract.CONTENT_URI_PATH + "/latest", LOCATION_LATEST_LIST_URI);
+		uriMatcher.addURI(MapItems.AUTHORITY, LocationsContract.CONTENT_URI_PATH + "/bbox", LOCATION_BBOX_URI);
+		uriMatcher.addURI(MapItems.AUTHORITY, LocationsContract.CONTENT_URI_PATH + "/latest/bbox", LOCATION_LATEST_BBOX_URI);
 		
 		uriMatcher.addURI(MapItems.AUTHORITY, PointsOfInterestContract.CONTENT_URI_PATH, POI_LIST_URI);
 		uriMatcher.addURI(MapItems.AUTHORITY, PointsOfInterestContract.CONTENT_URI_PATH + "/#", POI_ITEM_URI);
+		uriMatcher.addURI(MapItems.AUTHORITY, PointsOfInterestContract.CONTENT_URI_PATH + "/bbox", POI_BBOX_URI);
 		
 		// create the database connection
 		databaseHelper = new MainDatabaseHelper(getContext());
 		
+		// the filters are filled from the database the first time they are used
+		locationFingerprints = new FingerprintFilter(LocationsContract.Table.TABLE_NAME, LocationsContract.Table._ID, LocationsContract.Table.FINGERPRINT);
+		poiFingerprints = new FingerprintFilter(PointsOfInterestContract.Table.TABLE_NAME, PointsOfInterestContract.Table._ID, PointsOfInterestContract.Table.FINGERPRINT);
+		
+		retention = new LocationRetention(getContext(), locationFingerprints);
+		
 		return true;
 	}
 	
@@ -86,7 +128,7 @@ public class MapItems extends ContentProvider {
 	 * @see android.content.ContentProvider#query(android.net.Uri, java.lang.String[], java.lang.String, java.lang.String[], java.lang.String)
 	 */
 	@Override
-	public synchronized Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
 		
 		int mMatchedUri = -1;
 		Cursor mResults = null;
@@ -110,7 +152,17 @@ public class MapItems extends ContentProvider {
 			mMatchedUri = LOCATION_ITEM_URI;
 			break;
 		case LOCATION_LATEST_LIST_URI:
-			// uri matches the group by for latest records
+			// uri matches the latest record for each phone number
+			mMatchedUri = LOCATION_LATEST_LIST_URI;
+			break;
+		case LOCATION_BBOX_URI:
+			// uri matches the records inside a bounding box
+			selection = getBoundingBoxSelection(uri, selection, LocationsContract.Table.GEOCELL, LocationsContract.Table.LATITUDE, LocationsContract.Table.LONGITUDE);
+			mMatchedUri = LOCATION_LIST_URI;
+			break;
+		case LOCATION_LATEST_BBOX_URI:
+			// uri matches the latest record for each phone number inside a bounding box
+			selection = getBoundingBoxSelection(uri, selection, LocationsContract.Table.GEOCELL, LocationsContract.Table.LATITUDE, LocationsContract.Table.LONGITUDE);
 			mMatchedUri = LOCATION_LATEST_LIST_URI;
 			break;
 		case POI_LIST_URI:
@@ -129,39 +181,35 @@ public class MapItems extends ContentProvider {
 			}
 			mMatchedUri = POI_ITEM_URI;
 			break;
+		case POI_BBOX_URI:
+			// uri matches the records inside a bounding box
+			selection = getBoundingBoxSelection(uri, selection, PointsOfInterestContract.Table.GEOCELL, PointsOfInterestContract.Table.LATITUDE, PointsOfInterestContract.Table.LONGITUDE);
+			mMatchedUri = POI_LIST_URI;
+			break;
 		default:
 			// unknown uri found
 			Log.e(TAG, "unknown URI detected on query: " + uri.toString());
 			throw new IllegalArgumentException("unknwon URI detected");
 		}
 		
+		// get the optional limit on the number of rows
+		String mLimit = getLimit(uri);
+		
 		// get a connection to the database
-		database = databaseHelper.getReadableDatabase();
+		SQLiteDatabase mDatabase = getDatabase();
 		
 		if(mMatchedUri == LOCATION_LATEST_LIST_URI) {
-			// get the latest location records
-			
-			String[] mColumns = new String[6];
-			mColumns[0] = LocationsContract.Table._ID;
-			mColumns[1] = LocationsContract.Table.PHONE_NUMBER;
-			mColumns[2] = LocationsContract.Table.LATITUDE;
-			mColumns[3] = LocationsContract.Table.LONGITUDE;
-			mColumns[4] = LocationsContract.Table.TIMESTAMP;
-			mColumns[5] = "MAX(" + LocationsContract.Table.TIMESTAMP + ")";
-			
-			mResults = database.query(LocationsContract.Table.TABLE_NAME, mColumns, null, null, LocationsContract.Table.PHONE_NUMBER, null, null);
+			// get the latest location records, one per phone number
+			mResults = mDatabase.query(LocationsContract.Table.LATEST_TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder, mLimit);
 			
 		} else if (mMatchedUri == LOCATION_LIST_URI || mMatchedUri == LOCATION_ITEM_URI){
 			// execute the query as provided
-			mResults = database.query(LocationsContract.CONTENT_URI_PATH, projection, selection, selectionArgs, null, null, sortOrder);
+			mResults = mDatabase.query(LocationsContract.CONTENT_URI_PATH, projection, selection, selectionArgs, null, null, sortOrder, mLimit);
 		} else if(mMatchedUri == POI_LIST_URI || mMatchedUri == POI_ITEM_URI) {
 			// execute the query as provided
-			mResults = database.query(PointsOfInterestContract.CONTENT_URI_PATH, projection, selection, selectionArgs, null, null, sortOrder);
+			mResults = mDatabase.query(PointsOfInterestContract.CONTENT_URI_PATH, projection, selection, selectionArgs, null, null, sortOrder, mLimit);
 		}
 		
-		// play nice and tidy up
-		//database.close();
-				
 		// return the results
 		return mResults;
 	}
@@ -173,7 +221,7 @@ public class MapItems extends ContentProvider {
 	 * @see android.content.ContentProvider#insert(android.net.Uri, android.content.ContentValues)
 	 */
 	@Override
-	public synchronized Uri insert(Uri uri, ContentValues values) {
+	public Uri insert(Uri uri, ContentValues values) {
 		
 		Uri mResults = null;
 		String mTable = null;
@@ -196,25 +244,205 @@ public class MapItems extends ContentProvider {
 		}
 		
 		// get a connection to the database
-		database = databaseHelper.getWritableDatabase();
+		SQLiteDatabase mDatabase = getDatabase();
+		FingerprintFilter mFilter = getFingerprintFilter(mTable);
+		long mId;
+		
+		setGeoCell(values);
+		long mFingerprint = setFingerprint(mTable, values);
 		
-		long mId = database.insertOrThrow(mTable, null, values);
+		// look for a duplicate and add the record in the same transaction
+		mDatabase.beginTransaction();
+		try {
+			SQLiteStatement mLookup = mFilter.compileLookup(mDatabase);
+			try {
+				mId = mFilter.find(mDatabase, mLookup, mFingerprint);
+			} finally {
+				mLookup.close();
+			}
+			
+			if(mId != FingerprintFilter.NOT_FOUND) {
+				// the record is already in the database so return the existing one
+				mDatabase.setTransactionSuccessful();
+				
+				if(V_LOG) {
+					Log.v(TAG, "duplicate record found for insert: " + mId);
+				}
+				
+				return ContentUris.withAppendedId(mContentUri, mId);
+			}
+			
+			mId = mDatabase.insertOrThrow(mTable, null, values);
+			mFilter.add(mFingerprint);
+			
+			if(mTable.equals(LocationsContract.Table.TABLE_NAME)) {
+				// keep the latest location for the peer up to date in the same transaction
+				SQLiteStatement mStatement = mDatabase.compileStatement(MainDatabaseHelper.PEER_LATEST_UPDATE);
+				try {
+					mStatement.bindLong(1, mId);
+					mStatement.execute();
+				} finally {
+					mStatement.close();
+				}
+			}
+			
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			mDatabase.endTransaction();
+		}
 		
-		// play nice and tidy up
-		database.close();
+		// keep the cache of the current state up to date now the record is committed
+		addToCache(mTable, Collections.singletonList(mId), Collections.singletonList(values));
 		
 		mResults = ContentUris.withAppendedId(mContentUri, mId);
-		getContext().getContentResolver().notifyChange(mResults, null);
+		notifyChange(mResults);
 		
 		return mResults;
 	}
-	
+
+	/*
+	 * insert a batch of records into the database using a single transaction
+	 *
+	 * (non-Javadoc)
+	 * @see android.content.ContentProvider#bulkInsert(android.net.Uri, android.content.ContentValues[])
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+
+		String mTable = null;
+		Uri mContentUri = null;
+		int mCount = 0;
+
+		// chose the table name
+		switch(uriMatcher.match(uri)) {
+		case LOCATION_LIST_URI:
+			mTable = LocationsContract.CONTENT_URI_PATH;
+			mContentUri = LocationsContract.CONTENT_URI;
+			break;
+		case POI_LIST_URI:
+			mTable = PointsOfInterestContract.CONTENT_URI_PATH;
+			mContentUri = PointsOfInterestContract.CONTENT_URI;
+			break;
+		default:
+			// unknown uri found
+			Log.e(TAG, "invalid URI detected for bulk insert: " + uri.toString());
+			throw new IllegalArgumentException("unknwon URI detected");
+		}
+
+		// get a connection to the database
+		SQLiteDatabase mDatabase = getDatabase();
+		FingerprintFilter mFilter = getFingerprintFilter(mTable);
+
+		// keep the latest location for each peer up to date as the records are added
+		SQLiteStatement mLatestStatement = null;
+		SQLiteStatement mLookup = null;
+		long mId;
+		long mFingerprint;
+		
+		// the records that were added, for the cache of the current state
+		ArrayList<Long> mAddedIds = new ArrayList<Long>(values.length);
+		ArrayList<ContentValues> mAddedValues = new ArrayList<ContentValues>(values.length);
+
+		// add all of the records in one transaction
+		mDatabase.beginTransaction();
+		try {
+			if(mTable.equals(LocationsContract.Table.TABLE_NAME)) {
+				mLatestStatement = mDatabase.compileStatement(MainDatabaseHelper.PEER_LATEST_UPDATE);
+			}
+			mLookup = mFilter.compileLookup(mDatabase);
+			
+			for(ContentValues mValues : values) {
+				setGeoCell(mValues);
+				mFingerprint = setFingerprint(mTable, mValues);
+				
+				// skip records that are already in the database, including earlier ones in this batch
+				if(mFilter.find(mDatabase, mLookup, mFingerprint) != FingerprintFilter.NOT_FOUND) {
+					continue;
+				}
+				
+				mId = mDatabase.insertOrThrow(mTable, null, mValues);
+				mFilter.add(mFingerprint);
+				
+				if(mLatestStatement != null) {
+					mLatestStatement.bindLong(1, mId);
+					mLatestStatement.execute();
+				}
+				mAddedIds.add(mId);
+				mAddedValues.add(mValues);
+				mCount++;
+			}
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			if(mLatestStatement != null) {
+				mLatestStatement.close();
+			}
+			if(mLookup != null) {
+				mLookup.close();
+			}
+			mDatabase.endTransaction();
+		}
+
+		// one notification for the whole batch
+		if(mCount > 0) {
+			addToCache(mTable, mAddedIds, mAddedValues);
+			notifyChange(mContentUri);
+		}
+
+		return mCount;
+	}
+
+	/*
+	 * apply a batch of operations using a single transaction
+	 * 
+	 * observers are sent one notification for each table changed by the batch
+	 * once the transaction has been committed, rather than one per operation
+	 *
+	 * (non-Javadoc)
+	 * @see android.content.ContentProvider#applyBatch(java.util.ArrayList)
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+
+		ContentProviderResult[] mResults;
+		HashSet<Uri> mChangedUris = new HashSet<Uri>();
+
+		// get a connection to the database
+		SQLiteDatabase mDatabase = getDatabase();
+
+		// collect the notifications raised by the individual operations
+		pendingNotifications.set(mChangedUris);
+
+		boolean mCommitted = false;
+		
+		mDatabase.beginTransaction();
+		try {
+			mResults = super.applyBatch(operations);
+			mDatabase.setTransactionSuccessful();
+			mCommitted = true;
+		} finally {
+			mDatabase.endTransaction();
+			pendingNotifications.set(null);
+			
+			// the operations updated the cache as they went, so it is wrong if the batch was rolled back
+			if(mCommitted == false) {
+				MapItemsCache.invalidate();
+			}
+		}
+
+		// send the coalesced notifications
+		for(Uri mUri : mChangedUris) {
+			getContext().getContentResolver().notifyChange(mUri, null);
+		}
+
+		return mResults;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see android.content.ContentProvider#getType(android.net.Uri)
 	 */
 	@Override
-	public synchronized String getType(Uri uri) {
+	public String getType(Uri uri) {
 		
 		// choose the mime type
 		switch(uriMatcher.match(uri)) {
@@ -223,8 +451,11 @@ public class MapItems extends ContentProvider {
 		case LOCATION_ITEM_URI:
 			return LocationsContract.CONTENT_TYPE_ITEM;
 		case LOCATION_LATEST_LIST_URI:
+		case LOCATION_BBOX_URI:
+		case LOCATION_LATEST_BBOX_URI:
 			return LocationsContract.CONTENT_TYPE_LIST;
 		case POI_LIST_URI:
+		case POI_BBOX_URI:
 			return PointsOfInterestContract.CONTENT_TYPE_LIST;
 		case POI_ITEM_URI:
 			return PointsOfInterestContract.CONTENT_TYPE_ITEM;
@@ -241,54 +472,463 @@ public class MapItems extends ContentProvider {
 	 * @see android.content.ContentProvider#delete(android.net.Uri, java.lang.String, java.lang.String[])
 	 */
 	@Override
-	public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
 		
 		// get a connection to the database
-		database = databaseHelper.getWritableDatabase();
+		SQLiteDatabase mDatabase = getDatabase();
 		int count;
 		
+		// a where clause of "1" is required to get a count when deleting all rows
+		if(TextUtils.isEmpty(selection) == true) {
+			selection = "1";
+		}
+		
 		// determine what type of delete is required
 		switch(uriMatcher.match(uri)) {
 		case LOCATION_LIST_URI:
-			count = database.delete(LocationsContract.Table.TABLE_NAME, selection, selectionArgs);
+			count = deleteLocations(mDatabase, selection, selectionArgs);
 			break;
 		case LOCATION_ITEM_URI:
-			if(TextUtils.isEmpty(selection) == true) {
-				selection = LocationsContract.Table._ID + " = ?";
-				selectionArgs = new String[0];
-				selectionArgs[0] = uri.getLastPathSegment();
-			}
-			count = database.delete(LocationsContract.Table.TABLE_NAME, selection, selectionArgs);
+			count = deleteLocations(mDatabase, getItemSelection(LocationsContract.Table._ID, uri, selection), selectionArgs);
 			break;
 		case POI_LIST_URI:
-			count = database.delete(PointsOfInterestContract.Table.TABLE_NAME, selection, selectionArgs);
+			count = mDatabase.delete(PointsOfInterestContract.Table.TABLE_NAME, selection, selectionArgs);
+			if(count > 0) {
+				poiFingerprints.invalidate();
+			}
 			break;
 		case POI_ITEM_URI:
-			if(TextUtils.isEmpty(selection) == true) {
-				selection = PointsOfInterestContract.Table._ID + " = ?";
-				selectionArgs = new String[0];
-				selectionArgs[0] = uri.getLastPathSegment();
+			count = mDatabase.delete(PointsOfInterestContract.Table.TABLE_NAME, getItemSelection(PointsOfInterestContract.Table._ID, uri, selection), selectionArgs);
+			if(count > 0) {
+				poiFingerprints.invalidate();
 			}
-			count = database.delete(PointsOfInterestContract.Table.TABLE_NAME, selection, selectionArgs);
 			break;
 		default:
 			// unknown uri found
-			Log.e(TAG, "unknown URI detected on query: " + uri.toString());
+			Log.e(TAG, "unknown URI detected on delete: " + uri.toString());
 			throw new IllegalArgumentException("unknwon URI detected");
 		}
 		
-		getContext().getContentResolver().notifyChange(uri, null);
+		if(count > 0) {
+			// the cache can't tell which records were changed so it is loaded again
+			MapItemsCache.invalidate();
+			notifyChange(uri);
+		}
 		return count;
 	}
 
+	/*
+	 * delete location records in one transaction, the latest location is only
+	 * found again for the peers whose latest location is one of the deleted records
+	 */
+	private int deleteLocations(SQLiteDatabase database, String selection, String[] selectionArgs) {
+		
+		int mCount;
+		
+		database.beginTransaction();
+		try {
+			List<String> mPhoneNumbers = getLatestPhoneNumbers(database, selection, selectionArgs);
+			
+			mCount = database.delete(LocationsContract.Table.TABLE_NAME, selection, selectionArgs);
+			
+			if(mCount > 0) {
+				if(mPhoneNumbers.contains(null)) {
+					// a missing phone number can't be matched so everything is found again
+					MainDatabaseHelper.rebuildPeerLatest(database);
+				} else if(mPhoneNumbers.isEmpty() == false) {
+					MainDatabaseHelper.rebuildPeerLatest(database, mPhoneNumbers);
+				}
+				locationFingerprints.invalidate();
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+		
+		return mCount;
+	}
+	
+	/*
+	 * get the phone numbers of the peers whose latest location is one of the records that match a selection
+	 */
+	private List<String> getLatestPhoneNumbers(SQLiteDatabase database, String selection, String[] selectionArgs) {
+		
+		ArrayList<String> mPhoneNumbers = new ArrayList<String>();
+		
+		String mSelection = "(" + selection + ") AND " + LocationsContract.Table._ID + " IN (SELECT "
+				+ LocationsContract.Table._ID + " FROM " + LocationsContract.Table.LATEST_TABLE_NAME + ")";
+		
+		Cursor mCursor = database.query(LocationsContract.Table.TABLE_NAME, new String[] {LocationsContract.Table.PHONE_NUMBER}, mSelection, selectionArgs, null, null, null);
+		try {
+			while(mCursor.moveToNext()) {
+				mPhoneNumbers.add(mCursor.getString(0));
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		return mPhoneNumbers;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see android.content.ContentProvider#update(android.net.Uri, android.content.ContentValues, java.lang.String, java.lang.String[])
 	 */
 	@Override
-	public synchronized int update(Uri arg0, ContentValues arg1, String arg2, String[] arg3) {
-		//TODO implement code when required
-		throw new UnsupportedOperationException("Not implemented yet");
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		
+		// get a connection to the database
+		SQLiteDatabase mDatabase = getDatabase();
+		int count;
+		
+		// determine what type of update is required
+		switch(uriMatcher.match(uri)) {
+		case LOCATION_LIST_URI:
+			count = updateRecords(mDatabase, LocationsContract.Table.TABLE_NAME, values, selection, selectionArgs);
+			break;
+		case LOCATION_ITEM_URI:
+			count = updateRecords(mDatabase, LocationsContract.Table.TABLE_NAME, values, getItemSelection(LocationsContract.Table._ID, uri, selection), selectionArgs);
+			break;
+		case POI_LIST_URI:
+			count = updateRecords(mDatabase, PointsOfInterestContract.Table.TABLE_NAME, values, selection, selectionArgs);
+			break;
+		case POI_ITEM_URI:
+			count = updateRecords(mDatabase, PointsOfInterestContract.Table.TABLE_NAME, values, getItemSelection(PointsOfInterestContract.Table._ID, uri, selection), selectionArgs);
+			break;
+		default:
+			// unknown uri found
+			Log.e(TAG, "unknown URI detected on update: " + uri.toString());
+			throw new IllegalArgumentException("unknwon URI detected");
+		}
+		
+		if(count > 0) {
+			// the cache can't tell which records were changed so it is loaded again
+			MapItemsCache.invalidate();
+			notifyChange(uri);
+		}
+		return count;
+	}
+	
+	/*
+	 * update the records in a table in one transaction, keeping the fingerprints
+	 * and the latest location of each peer in step with the changed values
+	 */
+	private int updateRecords(SQLiteDatabase database, String table, ContentValues values, String selection, String[] selectionArgs) {
+		
+		int mCount;
+		List<Long> mRecordIds = null;
+		
+		database.beginTransaction();
+		try {
+			// find the records first as the update can change the columns used by the selection
+			if(changesFingerprint(table, values)) {
+				mRecordIds = getRecordIds(database, table, selection, selectionArgs);
+			}
+			
+			mCount = database.update(table, values, selection, selectionArgs);
+			
+			if(mCount > 0) {
+				if(mRecordIds != null) {
+					// calculate the fingerprints again, a batch of records at a time
+					for(int i = 0; i < mRecordIds.size(); i += FINGERPRINT_BATCH_SIZE) {
+						MainDatabaseHelper.updateFingerprints(database, table, getRecordIdSelection(mRecordIds.subList(i, Math.min(i + FINGERPRINT_BATCH_SIZE, mRecordIds.size()))));
+					}
+					
+					// the old fingerprints can't be taken out of the filter so it is loaded again
+					getFingerprintFilter(table).invalidate();
+				}
+				
+				if(table.equals(LocationsContract.Table.TABLE_NAME)) {
+					MainDatabaseHelper.rebuildPeerLatest(database);
+				}
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+		
+		return mCount;
+	}
+	
+	/*
+	 * check if the values change any of the columns used to calculate the fingerprint,
+	 * the column names are the same in both tables
+	 */
+	private boolean changesFingerprint(String table, ContentValues values) {
+		
+		if(values.containsKey(LocationsContract.Table.PHONE_NUMBER)
+				|| values.containsKey(LocationsContract.Table.LATITUDE)
+				|| values.containsKey(LocationsContract.Table.LONGITUDE)
+				|| values.containsKey(LocationsContract.Table.TIMESTAMP)) {
+			return true;
+		}
+		
+		return table.equals(PointsOfInterestContract.Table.TABLE_NAME) && values.containsKey(PointsOfInterestContract.Table.TITLE);
+	}
+	
+	/*
+	 * get the ids of the records in a table that match a selection
+	 */
+	private List<Long> getRecordIds(SQLiteDatabase database, String table, String selection, String[] selectionArgs) {
+		
+		ArrayList<Long> mRecordIds = new ArrayList<Long>();
+		
+		Cursor mCursor = database.query(table, new String[] {LocationsContract.Table._ID}, selection, selectionArgs, null, null, null);
+		try {
+			while(mCursor.moveToNext()) {
+				mRecordIds.add(mCursor.getLong(0));
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		return mRecordIds;
+	}
+	
+	/*
+	 * build a selection that matches a list of record ids
+	 */
+	private String getRecordIdSelection(List<Long> recordIds) {
+		
+		StringBuilder mSelection = new StringBuilder(LocationsContract.Table._ID);
+		mSelection.append(" IN (");
+		
+		for(int i = 0; i < recordIds.size(); i++) {
+			if(i > 0) {
+				mSelection.append(',');
+			}
+			mSelection.append(recordIds.get(i));
+		}
+		
+		return mSelection.append(')').toString();
+	}
+	
+	/*
+	 * get the filter of fingerprints for a table
+	 */
+	private FingerprintFilter getFingerprintFilter(String table) {
+		
+		if(table.equals(LocationsContract.Table.TABLE_NAME)) {
+			return locationFingerprints;
+		} else {
+			return poiFingerprints;
+		}
+	}
+	
+	/*
+	 * calculate the fingerprint of a new record and add it to the values,
+	 * the column names are the same in both tables
+	 */
+	private long setFingerprint(String table, ContentValues values) {
+		
+		String mPhoneNumber = values.getAsString(LocationsContract.Table.PHONE_NUMBER);
+		Double mLatitude = values.getAsDouble(LocationsContract.Table.LATITUDE);
+		Double mLongitude = values.getAsDouble(LocationsContract.Table.LONGITUDE);
+		Long mTimestamp = values.getAsLong(LocationsContract.Table.TIMESTAMP);
+		
+		// the columns are checked by the database so missing values only need to be hashed consistently
+		double mLat = mLatitude != null ? mLatitude : 0;
+		double mLon = mLongitude != null ? mLongitude : 0;
+		long mTime = mTimestamp != null ? mTimestamp : 0;
+		
+		long mFingerprint;
+		
+		if(table.equals(PointsOfInterestContract.Table.TABLE_NAME)) {
+			mFingerprint = HashUtils.fingerprintPointOfInterest(mPhoneNumber, mLat, mLon, mTime, values.getAsString(PointsOfInterestContract.Table.TITLE));
+		} else {
+			mFingerprint = HashUtils.fingerprintLocation(mPhoneNumber, mLat, mLon, mTime);
+		}
+		
+		values.put(LocationsContract.Table.FINGERPRINT, mFingerprint);
+		
+		return mFingerprint;
+	}
+	
+	/*
+	 * add committed records to the cache of the current state
+	 */
+	private void addToCache(String table, List<Long> recordIds, List<ContentValues> values) {
+		
+		if(table.equals(LocationsContract.Table.TABLE_NAME)) {
+			MapItemsCache.addLocations(recordIds, values);
+			
+			// locations that arrive late are added to history that may already have been thinned
+			long mOldest = Long.MAX_VALUE;
+			
+			for(ContentValues mValues : values) {
+				Long mTimestamp = mValues.getAsLong(LocationsContract.Table.TIMESTAMP);
+				
+				if(mTimestamp != null && mTimestamp < mOldest) {
+					mOldest = mTimestamp;
+				}
+			}
+			
+			if(mOldest != Long.MAX_VALUE) {
+				retention.recordAdded(mOldest);
+			}
+			
+			// the history is checked regularly while locations are being added
+			retention.schedule(getDatabase());
+		} else {
+			MapItemsCache.addPointsOfInterest(recordIds, values);
+		}
+	}
+	
+	/*
+	 * set the grid cell of a new item from its location,
+	 * the column names are the same in both tables
+	 */
+	private void setGeoCell(ContentValues values) {
+		
+		Double mLatitude = values.getAsDouble(LocationsContract.Table.LATITUDE);
+		Double mLongitude = values.getAsDouble(LocationsContract.Table.LONGITUDE);
+		
+		if(mLatitude != null && mLongitude != null) {
+			values.put(LocationsContract.Table.GEOCELL, GeoCell.getCell(mLatitude, mLongitude));
+		}
+	}
+	
+	/**
+	 * add a limit on the number of rows returned to a query uri
+	 * 
+	 * @param uri the uri to query
+	 * @param limit the maximum number of rows to return
+	 * @return the uri with the limit added
+	 */
+	public static Uri withLimit(Uri uri, int limit) {
+		
+		if(limit <= 0) {
+			throw new IllegalArgumentException("the limit must be greater than zero");
+		}
+		
+		return uri.buildUpon().appendQueryParameter(LIMIT, Integer.toString(limit)).build();
+	}
+	
+	/*
+	 * get the limit on the number of rows from a uri, or null if there isn't one
+	 */
+	private String getLimit(Uri uri) {
+		
+		String mLimit = uri.getQueryParameter(LIMIT);
+		
+		if(mLimit == null) {
+			return null;
+		}
+		
+		try {
+			if(Integer.parseInt(mLimit) <= 0) {
+				throw new IllegalArgumentException("the limit must be greater than zero");
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("the limit must be a number");
+		}
+		
+		return mLimit;
+	}
+	
+	/*
+	 * add the bounding box from a uri to a selection
+	 */
+	private String getBoundingBoxSelection(Uri uri, String selection, String cell, String latitude, String longitude) {
+		
+		String mBoxSelection = GeoCell.getSelection(uri, cell, latitude, longitude);
+		
+		if(TextUtils.isEmpty(selection) == true) {
+			return mBoxSelection;
+		} else {
+			return "(" + selection + ") AND " + mBoxSelection;
+		}
+	}
+	
+	/*
+	 * add the record id from an item uri to a selection
+	 */
+	private String getItemSelection(String idColumn, Uri uri, String selection) {
+		
+		String mItemSelection = idColumn + " = " + ContentUris.parseId(uri);
+		
+		if(TextUtils.isEmpty(selection) == true) {
+			return mItemSelection;
+		} else {
+			return "(" + selection + ") AND " + mItemSelection;
+		}
+	}
+	
+	/*
+	 * notify observers of a change, or hold the notification
+	 * until the end of the batch if one is being applied
+	 */
+	private void notifyChange(Uri uri) {
+		
+		HashSet<Uri> mChangedUris = pendingNotifications.get();
+		
+		if(mChangedUris == null) {
+			getContext().getContentResolver().notifyChange(uri, null);
+			return;
+		}
+		
+		// coalesce notifications about individual items into one for the table
+		switch(uriMatcher.match(uri)) {
+		case LOCATION_LIST_URI:
+		case LOCATION_ITEM_URI:
+			mChangedUris.add(LocationsContract.CONTENT_URI);
+			break;
+		case POI_LIST_URI:
+		case POI_ITEM_URI:
+			mChangedUris.add(PointsOfInterestContract.CONTENT_URI);
+			break;
+		default:
+			mChangedUris.add(uri);
+		}
+	}
+
+	/*
+	 * get the connection to the database, opening it the first time it is required
+	 * 
+	 * the connection stays open for the life of the provider as reopening it
+	 * for each operation is expensive
+	 */
+	private SQLiteDatabase getDatabase() {
+		
+		SQLiteDatabase mDatabase = database;
+		
+		if(mDatabase == null) {
+			synchronized(this) {
+				mDatabase = database;
+				
+				if(mDatabase == null) {
+					mDatabase = databaseHelper.getWritableDatabase();
+					enableWriteAheadLogging(mDatabase);
+					database = mDatabase;
+					
+					// apply the retention policy soon after start up
+					retention.schedule(mDatabase);
+				}
+			}
+		}
+		
+		return mDatabase;
+	}
+	
+	/*
+	 * use write ahead logging so that queries can run while records are being written
+	 * 
+	 * this is only available from API level 11 so the method is looked up at runtime
+	 */
+	private void enableWriteAheadLogging(SQLiteDatabase database) {
+		
+		try {
+			Method mMethod = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+			Boolean mEnabled = (Boolean) mMethod.invoke(database);
+			
+			if(V_LOG) {
+				Log.v(TAG, "write ahead logging enabled: " + mEnabled);
+			}
+		} catch (NoSuchMethodException e) {
+			Log.i(TAG, "write ahead logging is not available on this version of android");
+		} catch (Exception e) {
+			Log.w(TAG, "unable to enable write ahead logging", e);
+		}
 	}
 
 }
@@ -0,0 +1,641 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.provider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * a process wide cache of the latest location of each peer, the active points
+ * of interest and the location of the device, so that screens can be refreshed
+ * without querying the database
+ * 
+ * the active points of interest are those newer than a cutoff, which follows
+ * the maximum age asked for by the map, so the cache doesn't hold every point
+ * of interest ever received, older ones are read from the database as needed
+ * 
+ * the cache is an immutable snapshot that is replaced as a whole each time it
+ * changes, readers take the current snapshot without locking and writers build
+ * a new one from it and publish it with compare and set, retrying if another
+ * writer got there first
+ * 
+ * the provider adds records to the cache once they are committed, changes it
+ * can't apply incrementally, such as deletes, cause the cache to be loaded
+ * again from the database the next time it is read
+ */
+public class MapItemsCache {
+	
+	/*
+	 * private class level constants
+	 */
+	private static final boolean V_LOG = false;
+	private static final String TAG = "MapItemsCache";
+	
+	// the cutoff used until a reader asks for points of interest
+	private static final long NO_POINTS_OF_INTEREST = Long.MAX_VALUE;
+	
+	/**
+	 * the latest location of a peer
+	 */
+	public static final class Peer {
+		
+		/**
+		 * the id of the location record
+		 */
+		public final long recordId;
+		
+		/*
+		 * the values of the record, as described by LocationsContract
+		 */
+		public final String phoneNumber;
+		public final String subscriberId;
+		public final double latitude;
+		public final double longitude;
+		public final long timestamp;
+		public final String timeZone;
+		
+		private Peer(long recordId, String phoneNumber, String subscriberId, double latitude, double longitude, long timestamp, String timeZone) {
+			this.recordId = recordId;
+			this.phoneNumber = phoneNumber;
+			this.subscriberId = subscriberId;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.timestamp = timestamp;
+			this.timeZone = timeZone;
+		}
+	}
+	
+	/**
+	 * a point of interest
+	 */
+	public static final class PointOfInterest {
+		
+		/**
+		 * the id of the point of interest record
+		 */
+		public final long recordId;
+		
+		/*
+		 * the values of the record, as described by PointsOfInterestContract
+		 */
+		public final String phoneNumber;
+		public final String subscriberId;
+		public final double latitude;
+		public final double longitude;
+		public final long timestamp;
+		public final String timeZone;
+		public final String title;
+		public final String description;
+		public final long category;
+		public final String photo;
+		
+		private PointOfInterest(long recordId, String phoneNumber, String subscriberId, double latitude, double longitude, long timestamp, String timeZone, String title, String description, long category, String photo) {
+			this.recordId = recordId;
+			this.phoneNumber = phoneNumber;
+			this.subscriberId = subscriberId;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.timestamp = timestamp;
+			this.timeZone = timeZone;
+			this.title = title;
+			this.description = description;
+			this.category = category;
+			this.photo = photo;
+		}
+	}
+	
+	/**
+	 * an immutable view of the cache at one point in time
+	 */
+	public static final class Snapshot {
+		
+		private final Map<String, Peer> peers;
+		private final Map<Long, PointOfInterest> pointsOfInterest;
+		private final long pointsOfInterestSince;
+		private final Location location;
+		private final boolean loaded;
+		
+		private Snapshot(Map<String, Peer> peers, Map<Long, PointOfInterest> pointsOfInterest, long pointsOfInterestSince, Location location, boolean loaded) {
+			this.peers = peers;
+			this.pointsOfInterest = pointsOfInterest;
+			this.pointsOfInterestSince = pointsOfInterestSince;
+			this.location = location;
+			this.loaded = loaded;
+		}
+		
+		/**
+		 * @return the latest location of each peer keyed by phone number, the map can't be modified
+		 */
+		public Map<String, Peer> getPeers() {
+			return peers;
+		}
+		
+		/**
+		 * @return the active points of interest keyed by record id, the map can't be modified
+		 */
+		public Map<Long, PointOfInterest> getPointsOfInterest() {
+			return pointsOfInterest;
+		}
+		
+		/**
+		 * @return the time after which all of the points of interest are in the snapshot
+		 */
+		public long getPointsOfInterestSince() {
+			return pointsOfInterestSince;
+		}
+		
+		/**
+		 * @return the most recent and most accurate location of the device, or null if there isn't one
+		 */
+		public Location getLocation() {
+			return location;
+		}
+		
+		/**
+		 * @return true if the peers and points of interest have been loaded from the database
+		 */
+		public boolean isLoaded() {
+			return loaded;
+		}
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private static final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(
+			new Snapshot(Collections.<String, Peer>emptyMap(), Collections.<Long, PointOfInterest>emptyMap(), NO_POINTS_OF_INTEREST, null, false));
+	
+	/**
+	 * get the current snapshot, which may not have been loaded from the database yet,
+	 * use this when only the location of the device is required
+	 * 
+	 * @return the current snapshot
+	 */
+	public static Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * get the current snapshot, loading the peers and active points of interest
+	 * from the database first if required
+	 * 
+	 * @param contentResolver the content resolver used to load the cache
+	 * @return the current snapshot
+	 */
+	public static Snapshot getSnapshot(ContentResolver contentResolver) {
+		
+		if(contentResolver == null) {
+			throw new IllegalArgumentException("the contentResolver parameter is required");
+		}
+		
+		Snapshot mCurrent = snapshot.get();
+		
+		while(mCurrent.loaded == false) {
+			
+			HashMap<String, Peer> mPeers = new HashMap<String, Peer>();
+			HashMap<Long, PointOfInterest> mPointsOfInterest = new HashMap<Long, PointOfInterest>();
+			
+			loadPeers(contentResolver, mPeers);
+			loadPointsOfInterest(contentResolver, mPointsOfInterest, mCurrent.pointsOfInterestSince);
+			
+			Snapshot mNext = new Snapshot(Collections.unmodifiableMap(mPeers), Collections.unmodifiableMap(mPointsOfInterest), mCurrent.pointsOfInterestSince, mCurrent.location, true);
+			
+			// if the cache changed while loading the changes may be missing, so load again
+			if(snapshot.compareAndSet(mCurrent, mNext)) {
+				
+				if(V_LOG) {
+					Log.v(TAG, "loaded " + mPeers.size() + " peers and " + mPointsOfInterest.size() + " points of interest");
+				}
+				
+				return mNext;
+			}
+			
+			mCurrent = snapshot.get();
+		}
+		
+		return mCurrent;
+	}
+	
+	/**
+	 * get the current snapshot with all of the points of interest newer than a maximum age,
+	 * loading them from the database first if required
+	 * 
+	 * @param contentResolver the content resolver used to load the cache
+	 * @param poiMaxAge the maximum age of the points of interest in milliseconds, or a negative value for no limit
+	 * @return the current snapshot
+	 */
+	public static Snapshot getSnapshot(ContentResolver contentResolver, long poiMaxAge) {
+		
+		Snapshot mCurrent = getSnapshot(contentResolver);
+		
+		while(true) {
+			
+			long mCutoff = poiMaxAge < 0 ? Long.MIN_VALUE : System.currentTimeMillis() - poiMaxAge;
+			Snapshot mNext;
+			
+			if(mCurrent.loaded == false) {
+				// invalidated since it was loaded
+				mCurrent = getSnapshot(contentResolver);
+				continue;
+			} else if(mCurrent.pointsOfInterestSince > mCutoff) {
+				// older points of interest are needed than the cache holds
+				HashMap<Long, PointOfInterest> mPointsOfInterest = new HashMap<Long, PointOfInterest>();
+				
+				loadPointsOfInterest(contentResolver, mPointsOfInterest, mCutoff);
+				
+				mNext = new Snapshot(mCurrent.peers, Collections.unmodifiableMap(mPointsOfInterest), mCutoff, mCurrent.location, true);
+			} else if(poiMaxAge >= 0 && mCurrent.pointsOfInterestSince < mCutoff - poiMaxAge) {
+				// the cache holds more than a whole age of expired points of interest, so drop them
+				HashMap<Long, PointOfInterest> mPointsOfInterest = new HashMap<Long, PointOfInterest>();
+				
+				for(PointOfInterest mPointOfInterest : mCurrent.pointsOfInterest.values()) {
+					if(mPointOfInterest.timestamp > mCutoff) {
+						mPointsOfInterest.put(mPointOfInterest.recordId, mPointOfInterest);
+					}
+				}
+				
+				mNext = new Snapshot(mCurrent.peers, Collections.unmodifiableMap(mPointsOfInterest), mCutoff, mCurrent.location, true);
+			} else {
+				return mCurrent;
+			}
+			
+			// if the cache changed while loading the changes may be missing, so start again
+			if(snapshot.compareAndSet(mCurrent, mNext)) {
+				
+				if(V_LOG) {
+					Log.v(TAG, "holding " + mNext.pointsOfInterest.size() + " points of interest newer than " + mCutoff);
+				}
+				
+				return mNext;
+			}
+			
+			mCurrent = snapshot.get();
+		}
+	}
+	
+	/**
+	 * get the latest location of a peer from the cache, or from the
+	 * database if the record is no longer the latest one for the peer
+	 * 
+	 * @param contentResolver the content resolver used to load the cache
+	 * @param recordId the id of the location record
+	 * @return the location of the peer, or null if the record can't be found
+	 */
+	public static Peer getPeer(ContentResolver contentResolver, long recordId) {
+		
+		for(Peer mPeer : getSnapshot(contentResolver).peers.values()) {
+			if(mPeer.recordId == recordId) {
+				return mPeer;
+			}
+		}
+		
+		Cursor mCursor = contentResolver.query(ContentUris.withAppendedId(LocationsContract.CONTENT_URI, recordId), null, null, null, null);
+		
+		if(mCursor == null) {
+			return null;
+		}
+		
+		try {
+			if(mCursor.moveToFirst()) {
+				return readPeer(mCursor);
+			}
+		} finally {
+			mCursor.close();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * get a point of interest from the cache, or from the
+	 * database if it is older than the active points of interest
+	 * 
+	 * @param contentResolver the content resolver used to load the cache
+	 * @param recordId the id of the point of interest record
+	 * @return the point of interest, or null if the record can't be found
+	 */
+	public static PointOfInterest getPointOfInterest(ContentResolver contentResolver, long recordId) {
+		
+		PointOfInterest mPointOfInterest = getSnapshot(contentResolver).pointsOfInterest.get(recordId);
+		
+		if(mPointOfInterest != null) {
+			return mPointOfInterest;
+		}
+		
+		Cursor mCursor = contentResolver.query(ContentUris.withAppendedId(PointsOfInterestContract.CONTENT_URI, recordId), PointsOfInterestContract.Table.COLUMNS, null, null, null);
+		
+		if(mCursor == null) {
+			return null;
+		}
+		
+		HashMap<Long, PointOfInterest> mPointsOfInterest = new HashMap<Long, PointOfInterest>(2);
+		
+		try {
+			readPointsOfInterest(mCursor, mPointsOfInterest);
+		} finally {
+			mCursor.close();
+		}
+		
+		return mPointsOfInterest.get(recordId);
+	}
+	
+	/**
+	 * set the most recent and most accurate location of the device
+	 * 
+	 * @param location the new location
+	 */
+	public static void setLocation(Location location) {
+		
+		Snapshot mCurrent;
+		Snapshot mNext;
+		
+		do {
+			mCurrent = snapshot.get();
+			mNext = new Snapshot(mCurrent.peers, mCurrent.pointsOfInterest, mCurrent.pointsOfInterestSince, location, mCurrent.loaded);
+		} while(snapshot.compareAndSet(mCurrent, mNext) == false);
+	}
+	
+	/*
+	 * add newly committed location records, keeping the latest one for each peer
+	 */
+	static void addLocations(List<Long> recordIds, List<ContentValues> values) {
+		
+		Snapshot mCurrent;
+		Snapshot mNext;
+		
+		do {
+			mCurrent = snapshot.get();
+			
+			if(mCurrent.loaded == false) {
+				// replace the snapshot so that a load in progress is repeated
+				mNext = new Snapshot(mCurrent.peers, mCurrent.pointsOfInterest, mCurrent.pointsOfInterestSince, mCurrent.location, false);
+			} else {
+				// the map is only copied if one of the records is the latest for its peer
+				HashMap<String, Peer> mPeers = null;
+				
+				for(int i = 0; i < recordIds.size(); i++) {
+					Peer mPeer = newPeer(recordIds.get(i), values.get(i));
+					
+					if(mPeer == null) {
+						continue;
+					}
+					
+					// the same rule as the latest table, a newer record is never replaced by an older one
+					Peer mExisting = mPeers == null ? mCurrent.peers.get(mPeer.phoneNumber) : mPeers.get(mPeer.phoneNumber);
+					
+					if(mExisting == null || mExisting.timestamp <= mPeer.timestamp) {
+						if(mPeers == null) {
+							mPeers = new HashMap<String, Peer>(mCurrent.peers);
+						}
+						mPeers.put(mPeer.phoneNumber, mPeer);
+					}
+				}
+				
+				if(mPeers == null) {
+					// older history was added, none of the peers have moved
+					return;
+				}
+				
+				mNext = new Snapshot(Collections.unmodifiableMap(mPeers), mCurrent.pointsOfInterest, mCurrent.pointsOfInterestSince, mCurrent.location, true);
+			}
+		} while(snapshot.compareAndSet(mCurrent, mNext) == false);
+	}
+	
+	/*
+	 * add newly committed point of interest records
+	 */
+	static void addPointsOfInterest(List<Long> recordIds, List<ContentValues> values) {
+		
+		Snapshot mCurrent;
+		Snapshot mNext;
+		
+		do {
+			mCurrent = snapshot.get();
+			
+			if(mCurrent.loaded == false) {
+				// replace the snapshot so that a load in progress is repeated
+				mNext = new Snapshot(mCurrent.peers, mCurrent.pointsOfInterest, mCurrent.pointsOfInterestSince, mCurrent.location, false);
+			} else {
+				// the map is only copied if one of the records is active
+				HashMap<Long, PointOfInterest> mPointsOfInterest = null;
+				
+				for(int i = 0; i < recordIds.size(); i++) {
+					PointOfInterest mPointOfInterest = newPointOfInterest(recordIds.get(i), values.get(i));
+					
+					if(mPointOfInterest == null || mPointOfInterest.timestamp <= mCurrent.pointsOfInterestSince) {
+						continue;
+					}
+					
+					if(mPointsOfInterest == null) {
+						mPointsOfInterest = new HashMap<Long, PointOfInterest>(mCurrent.pointsOfInterest);
+					}
+					mPointsOfInterest.put(mPointOfInterest.recordId, mPointOfInterest);
+				}
+				
+				if(mPointsOfInterest == null) {
+					return;
+				}
+				
+				mNext = new Snapshot(mCurrent.peers, Collections.unmodifiableMap(mPointsOfInterest), mCurrent.pointsOfInterestSince, mCurrent.location, true);
+			}
+		} while(snapshot.compareAndSet(mCurrent, mNext) == false);
+	}
+	
+	/*
+	 * discard the peers and points of interest so they are loaded from the
+	 * database the next time they are read, keeping the same cutoff
+	 */
+	static void invalidate() {
+		
+		Snapshot mCurrent;
+		Snapshot mNext;
+		
+		do {
+			mCurrent = snapshot.get();
+			mNext = new Snapshot(Collections.<String, Peer>emptyMap(), Collections.<Long, PointOfInterest>emptyMap(), mCurrent.pointsOfInterestSince, mCurrent.location, false);
+		} while(snapshot.compareAndSet(mCurrent, mNext) == false);
+	}
+	
+	/*
+	 * build a peer from the values of a new record, or return null if the values are incomplete
+	 */
+	private static Peer newPeer(long recordId, ContentValues values) {
+		
+		String mPhoneNumber = values.getAsString(LocationsContract.Table.PHONE_NUMBER);
+		Double mLatitude = values.getAsDouble(LocationsContract.Table.LATITUDE);
+		Double mLongitude = values.getAsDouble(LocationsContract.Table.LONGITUDE);
+		Long mTimestamp = values.getAsLong(LocationsContract.Table.TIMESTAMP);
+		
+		if(mPhoneNumber == null || mLatitude == null || mLongitude == null || mTimestamp == null) {
+			return null;
+		}
+		
+		return new Peer(
+				recordId,
+				mPhoneNumber,
+				values.getAsString(LocationsContract.Table.SUBSCRIBER_ID),
+				mLatitude,
+				mLongitude,
+				mTimestamp,
+				values.getAsString(LocationsContract.Table.TIMEZONE));
+	}
+	
+	/*
+	 * build a point of interest from the values of a new record, or return null if the values are incomplete
+	 */
+	private static PointOfInterest newPointOfInterest(long recordId, ContentValues values) {
+		
+		Double mLatitude = values.getAsDouble(PointsOfInterestContract.Table.LATITUDE);
+		Double mLongitude = values.getAsDouble(PointsOfInterestContract.Table.LONGITUDE);
+		Long mTimestamp = values.getAsLong(PointsOfInterestContract.Table.TIMESTAMP);
+		Long mCategory = values.getAsLong(PointsOfInterestContract.Table.CATEGORY);
+		
+		if(mLatitude == null || mLongitude == null || mTimestamp == null) {
+			return null;
+		}
+		
+		return new PointOfInterest(
+				recordId,
+				values.getAsString(PointsOfInterestContract.Table.PHONE_NUMBER),
+				values.getAsString(PointsOfInterestContract.Table.SUBSCRIBER_ID),
+				mLatitude,
+				mLongitude,
+				mTimestamp,
+				values.getAsString(PointsOfInterestContract.Table.TIMEZONE),
+				values.getAsString(PointsOfInterestContract.Table.TITLE),
+				values.getAsString(PointsOfInterestContract.Table.DESCRIPTION),
+				mCategory == null ? PointsOfInterestContract.DEFAULT_CATEGORY : mCategory,
+				values.getAsString(PointsOfInterestContract.Table.PHOTO));
+	}
+	
+	/*
+	 * read the latest location of each peer from the database
+	 */
+	private static void loadPeers(ContentResolver contentResolver, Map<String, Peer> peers) {
+		
+		Cursor mCursor = contentResolver.query(LocationsContract.LATEST_CONTENT_URI, LocationsContract.Table.COLUMNS, null, null, null);
+		
+		if(mCursor == null) {
+			Log.i(TAG, "a null cursor was returned when loading location info");
+			return;
+		}
+		
+		try {
+			while(mCursor.moveToNext()) {
+				Peer mPeer = readPeer(mCursor);
+				peers.put(mPeer.phoneNumber, mPeer);
+			}
+		} finally {
+			mCursor.close();
+		}
+	}
+	
+	/*
+	 * read the points of interest newer than a time from the database
+	 */
+	private static void loadPointsOfInterest(ContentResolver contentResolver, Map<Long, PointOfInterest> pointsOfInterest, long since) {
+		
+		if(since == NO_POINTS_OF_INTEREST) {
+			// no reader has asked for them yet
+			return;
+		}
+		
+		String mSelection = null;
+		String[] mSelectionArgs = null;
+		
+		if(since != Long.MIN_VALUE) {
+			mSelection = PointsOfInterestContract.Table.TIMESTAMP + " > ?";
+			mSelectionArgs = new String[1];
+			mSelectionArgs[0] = Long.toString(since);
+		}
+		
+		Cursor mCursor = contentResolver.query(PointsOfInterestContract.CONTENT_URI, PointsOfInterestContract.Table.COLUMNS, mSelection, mSelectionArgs, null);
+		
+		if(mCursor == null) {
+			Log.i(TAG, "a null cursor was returned when loading POI info");
+			return;
+		}
+		
+		try {
+			readPointsOfInterest(mCursor, pointsOfInterest);
+		} finally {
+			mCursor.close();
+		}
+	}
+	
+	/*
+	 * read the points of interest from a cursor over the point of interest columns
+	 */
+	private static void readPointsOfInterest(Cursor cursor, Map<Long, PointOfInterest> pointsOfInterest) {
+		
+		int mIdColumn = cursor.getColumnIndex(PointsOfInterestContract.Table._ID);
+		int mPhoneColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.PHONE_NUMBER);
+		int mSubscriberColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.SUBSCRIBER_ID);
+		int mLatitudeColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.LATITUDE);
+		int mLongitudeColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.LONGITUDE);
+		int mTimestampColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.TIMESTAMP);
+		int mTimeZoneColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.TIMEZONE);
+		int mTitleColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.TITLE);
+		int mDescriptionColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.DESCRIPTION);
+		int mCategoryColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.CATEGORY);
+		int mPhotoColumn = cursor.getColumnIndex(PointsOfInterestContract.Table.PHOTO);
+		
+		while(cursor.moveToNext()) {
+			PointOfInterest mPointOfInterest = new PointOfInterest(
+					cursor.getLong(mIdColumn),
+					cursor.getString(mPhoneColumn),
+					cursor.getString(mSubscriberColumn),
+					cursor.getDouble(mLatitudeColumn),
+					cursor.getDouble(mLongitudeColumn),
+					cursor.getLong(mTimestampColumn),
+					cursor.getString(mTimeZoneColumn),
+					cursor.getString(mTitleColumn),
+					cursor.getString(mDescriptionColumn),
+					cursor.getLong(mCategoryColumn),
+					cursor.getString(mPhotoColumn));
+			
+			pointsOfInterest.put(mPointOfInterest.recordId, mPointOfInterest);
+		}
+	}
+	
+	/*
+	 * read a peer from the current row of a cursor over the location columns
+	 */
+	private static Peer readPeer(Cursor cursor) {
+		return new Peer(
+				cursor.getLong(cursor.getColumnIndex(LocationsContract.Table._ID)),
+				cursor.getString(cursor.getColumnIndex(LocationsContract.Table.PHONE_NUMBER)),
+				cursor.getString(cursor.getColumnIndex(LocationsContract.Table.SUBSCRIBER_ID)),
+				cursor.getDouble(cursor.getColumnIndex(LocationsContract.Table.LATITUDE)),
+				cursor.getDouble(cursor.getColumnIndex(LocationsContract.Table.LONGITUDE)),
+				cursor.getLong(cursor.getColumnIndex(LocationsContract.Table.TIMESTAMP)),
+				cursor.getString(cursor.getColumnIndex(LocationsContract.Table.TIMEZONE)));
+	}
+}
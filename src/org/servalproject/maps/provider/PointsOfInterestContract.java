@@ -44,6 +44,11 @@ public class PointsOfInterestContract {
 	 */
 	public static final Uri CONTENT_URI = Uri.parse("content://" + MapItems.AUTHORITY + "/" + CONTENT_URI_PATH);
 	
+	/**
+	 * content URI for the POI data inside a bounding box, see GeoCell.withBoundingBox
+	 */
+	public static final Uri BBOX_CONTENT_URI = Uri.parse("content://" + MapItems.AUTHORITY + "/" + CONTENT_URI_PATH + "/bbox");
+	
 	/**
 	 * content type for a list of items
 	 */
@@ -104,6 +109,16 @@ public class PointsOfInterestContract {
 		 */
 		public static final String TIMEZONE = "timezone";
 		
+		/**
+		 * grid cell containing the location, maintained by the provider
+		 */
+		public static final String GEOCELL = "geocell";
+		
+		/**
+		 * fingerprint of the record used to detect duplicates, maintained by the provider
+		 */
+		public static final String FINGERPRINT = "fingerprint";
+		
 		/**
 		 * title of the POI
 		 */
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.rhizome;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.servalproject.maps.protobuf.OffsetInputStream;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * keeps track of how much of each binary file received via Rhizome
+ * has already been read, so that a redelivered file can be read
+ * from where the last read finished
+ *
+ * a file is recognised by a checksum of the bytes at its start, so that a
+ * file deleted by its sender and started again under the same name is read
+ * from the beginning once it grows past the stored offset
+ */
+public class IngestOffsets {
+
+	/*
+	 * public class level constants
+	 */
+
+	/**
+	 * name of the shared preferences file used to store the offsets
+	 */
+	public static final String PREFERENCES_NAME = "rhizome-offsets";
+
+	/**
+	 * value returned when no information is available
+	 */
+	public static final long UNKNOWN = -1;
+
+	/*
+	 * private class level constants
+	 */
+	private static final String TAG = "IngestOffsets";
+	private static final boolean V_LOG = false;
+
+	private static final String OFFSET_SUFFIX = "|offset";
+	private static final String VERSION_SUFFIX = "|version";
+	private static final String MARKER_SUFFIX = "|marker";
+
+	// the number of bytes at the start of a file used to recognise it
+	private static final int MARKER_LENGTH = 64;
+
+	/**
+	 * get the offset of the first byte that hasn't been read
+	 *
+	 * @param context a context used to access the shared preferences
+	 * @param fileName the name of the file
+	 * @param sender the sender of the file
+	 * @return the offset into the file, or zero if the file hasn't been read before
+	 */
+	public static long getOffset(Context context, String fileName, String sender) {
+		return getPreferences(context).getLong(getKey(fileName, sender) + OFFSET_SUFFIX, 0);
+	}
+
+	/**
+	 * get the offset to resume reading a file from, the stored offset is
+	 * forgotten if the file has been replaced since it was last read
+	 *
+	 * @param context a context used to access the shared preferences and the file
+	 * @param dataFile the uri of the file
+	 * @param fileName the name of the file
+	 * @param sender the sender of the file
+	 * @return the offset into the file, or zero if the file hasn't been read before or has been replaced
+	 * @throws IOException if the start of the file can't be read
+	 */
+	public static long getResumeOffset(Context context, Uri dataFile, String fileName, String sender) throws IOException {
+
+		String mKey = getKey(fileName, sender);
+		SharedPreferences mPreferences = getPreferences(context);
+
+		long mOffset = mPreferences.getLong(mKey + OFFSET_SUFFIX, 0);
+		long mMarker = mPreferences.getLong(mKey + MARKER_SUFFIX, UNKNOWN);
+
+		if(mMarker != UNKNOWN) {
+
+			// the length of the marker is kept in the top half
+			int mLength = (int) (mMarker >>> 32);
+
+			if(getMarker(context, dataFile, mLength) != mMarker) {
+				if(V_LOG) {
+					Log.v(TAG, "file has been replaced, reading from the start: " + fileName);
+				}
+				mOffset = 0;
+			} else if(mLength == MARKER_LENGTH) {
+				return mOffset;
+			}
+		}
+
+		// remember the start of the file, a marker taken while the file was short is lengthened
+		Editor mEditor = mPreferences.edit();
+		mEditor.putLong(mKey + MARKER_SUFFIX, getMarker(context, dataFile, MARKER_LENGTH));
+		mEditor.putLong(mKey + OFFSET_SUFFIX, mOffset);
+		mEditor.commit();
+
+		return mOffset;
+	}
+
+	/**
+	 * get the version of the manifest when the file was last read
+	 *
+	 * @param context a context used to access the shared preferences
+	 * @param fileName the name of the file
+	 * @param sender the sender of the file
+	 * @return the manifest version or UNKNOWN if not available
+	 */
+	public static long getVersion(Context context, String fileName, String sender) {
+		return getPreferences(context).getLong(getKey(fileName, sender) + VERSION_SUFFIX, UNKNOWN);
+	}
+
+	/**
+	 * store how much of a file has been read
+	 *
+	 * @param context a context used to access the shared preferences
+	 * @param fileName the name of the file
+	 * @param sender the sender of the file
+	 * @param version the manifest version of the file that was read
+	 * @param offset the offset of the first byte that hasn't been read
+	 */
+	public static void setOffset(Context context, String fileName, String sender, long version, long offset) {
+
+		String mKey = getKey(fileName, sender);
+
+		Editor mEditor = getPreferences(context).edit();
+		mEditor.putLong(mKey + OFFSET_SUFFIX, offset);
+		mEditor.putLong(mKey + VERSION_SUFFIX, version);
+		mEditor.commit();
+	}
+
+	/**
+	 * forget about all of the files that have been read
+	 *
+	 * @param context a context used to access the shared preferences
+	 */
+	public static void clear(Context context) {
+		getPreferences(context).edit().clear().commit();
+	}
+
+	/*
+	 * get the shared preferences used to store the offsets
+	 */
+	private static SharedPreferences getPreferences(Context context) {
+
+		if(context == null) {
+			throw new IllegalArgumentException("the context parameter is required");
+		}
+
+		return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/*
+	 * get the checksum of the first bytes of a file, with the number of bytes read in the top half
+	 */
+	private static long getMarker(Context context, Uri dataFile, int length) throws IOException {
+
+		OffsetInputStream mInput = OffsetInputStream.open(context.getContentResolver(), dataFile, 0);
+
+		byte[] mBytes = new byte[length];
+		int mCount = 0;
+
+		try {
+			while(mCount < length) {
+				int mRead = mInput.read(mBytes, mCount, length - mCount);
+
+				if(mRead == -1) {
+					break;
+				}
+				mCount += mRead;
+			}
+		} finally {
+			mInput.close();
+		}
+
+		CRC32 mChecksum = new CRC32();
+		mChecksum.update(mBytes, 0, mCount);
+
+		return ((long) mCount << 32) | mChecksum.getValue();
+	}
+
+	/*
+	 * build the key for a file
+	 */
+	private static String getKey(String fileName, String sender) {
+
+		if(fileName == null) {
+			throw new IllegalArgumentException("the fileName parameter is required");
+		}
+
+		return sender + "/" + fileName;
+	}
+}
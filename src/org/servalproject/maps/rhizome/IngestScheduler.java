@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.rhizome;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.servalproject.maps.protobuf.BulkInsertHelper;
+import org.servalproject.maps.protobuf.LocationReadWorker;
+import org.servalproject.maps.protobuf.PointsOfInterestWorker;
+import org.servalproject.maps.protobuf.RecordSink;
+import org.servalproject.maps.provider.LocationsContract;
+import org.servalproject.maps.provider.PointsOfInterestContract;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * schedules the reading of binary files received via Rhizome
+ * 
+ * files are decoded in parallel on a small pool of threads and the new records are
+ * passed in batches to a single writer thread, so protobuf parsing isn't held up by
+ * the database and only one thread writes to it, the offset into a file is only stored
+ * once all of the records read from it have been written
+ * 
+ * at most one job per file is queued or running, a file delivered again while it is
+ * waiting is merged into the waiting job and a file delivered again while it is being
+ * read is read again from the new offset once the current read finishes, the queue is
+ * bounded and files that don't fit are dropped, they are read from the stored offset
+ * the next time Rhizome delivers them
+ */
+public class IngestScheduler {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the maximum number of files waiting to be read
+	 */
+	public static final int MAX_QUEUED_FILES = 64;
+	
+	/**
+	 * the maximum number of batches waiting to be written
+	 */
+	public static final int MAX_QUEUED_BATCHES = 8;
+	
+	/**
+	 * the type of job that reads a location file
+	 */
+	public static final int LOCATION_FILE = 0;
+	
+	/**
+	 * the type of job that reads a POI file
+	 */
+	public static final int POI_FILE = 1;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String TAG = "IngestScheduler";
+	
+	// larger than a batch so the inserters only write when flushed
+	private static final int MAX_BATCH_SIZE = BulkInsertHelper.DEFAULT_BATCH_SIZE + 1;
+	private static final boolean V_LOG = false;
+	
+	/**
+	 * called when there is no more work to do
+	 */
+	public interface IdleListener {
+		
+		/**
+		 * called on the writer thread once all of the queued files have been read and written
+		 */
+		public void onIdle();
+	}
+	
+	/*
+	 * a request to read a file
+	 */
+	private class Job {
+		int type;
+		Uri dataFile;
+		String fileName;
+		String sender;
+		long version;
+		String key;
+		
+		// set if a write fails so the offset isn't stored
+		volatile boolean failed = false;
+		
+		// a newer request for the same file received while this one was running
+		Job rerun = null;
+	}
+	
+	/*
+	 * a batch of records to write, the last batch for a job carries the offset to store
+	 */
+	private class Batch {
+		Job job;
+		Uri contentUri;
+		ContentValues[] values;
+		boolean last = false;
+		long offset = IngestOffsets.UNKNOWN;
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private Context context;
+	private IdleListener idleListener;
+	
+	private ThreadPoolExecutor decoders;
+	private int decoderThreads;
+	private Thread writer;
+	private BlockingQueue<Batch> batches = new ArrayBlockingQueue<Batch>(MAX_QUEUED_BATCHES);
+	
+	// only used on the writer thread, one per table so the back off from slow commits is kept
+	private HashMap<Uri, BulkInsertHelper> inserters = new HashMap<Uri, BulkInsertHelper>();
+	
+	// guarded by this
+	private LinkedHashMap<String, Job> waiting = new LinkedHashMap<String, Job>();
+	private HashMap<String, Job> running = new HashMap<String, Job>();
+	
+	// statistics
+	private volatile long recordsWritten = 0;
+	private volatile long writeTime = 0;
+	private volatile int filesRead = 0;
+	private volatile int filesMerged = 0;
+	private volatile int filesDropped = 0;
+	
+	/**
+	 * construct a new scheduler and start its threads
+	 * 
+	 * @param context a context used to access the content resolver
+	 * @param idleListener called when there is no more work to do, may be null
+	 */
+	public IngestScheduler(Context context, IdleListener idleListener) {
+		
+		if(context == null) {
+			throw new IllegalArgumentException("the context parameter is required");
+		}
+		
+		this.context = context.getApplicationContext();
+		this.idleListener = idleListener;
+		
+		// parsing is cpu bound so use a thread per core, leaving one for the writer and the UI
+		decoderThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+		
+		// the threads stop when the scheduler is shut down once the owning service is idle,
+		// jobs are only started when there is a free thread so the queue never holds more than one per thread
+		decoders = new ThreadPoolExecutor(decoderThreads, decoderThreads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		
+		writer = new Thread(writerTask, TAG + "Writer");
+		writer.start();
+	}
+	
+	/**
+	 * queue a file to be read
+	 * 
+	 * @param type the type of file, LOCATION_FILE or POI_FILE
+	 * @param dataFile the uri of the binary file
+	 * @param fileName the name of the binary file
+	 * @param sender the sender of the binary file
+	 * @param version the version of the manifest for the binary file, or IngestOffsets.UNKNOWN
+	 * @return true if the file was queued or merged with a queued file, false if the queue is full
+	 */
+	public boolean queue(int type, Uri dataFile, String fileName, String sender, long version) {
+		
+		if(type != LOCATION_FILE && type != POI_FILE) {
+			throw new IllegalArgumentException("unknown file type");
+		}
+		
+		Job mJob = new Job();
+		mJob.type = type;
+		mJob.dataFile = dataFile;
+		mJob.fileName = fileName;
+		mJob.sender = sender;
+		mJob.version = version;
+		mJob.key = sender + "/" + fileName;
+		
+		synchronized(this) {
+			
+			Job mRunning = running.get(mJob.key);
+			
+			if(mRunning != null) {
+				// read the file again once the current read has finished
+				if(mRunning.rerun != null) {
+					filesMerged++;
+				}
+				mRunning.rerun = newest(mRunning.rerun, mJob);
+				return true;
+			}
+			
+			Job mWaiting = waiting.get(mJob.key);
+			
+			if(mWaiting != null) {
+				// only the newest version of the file needs to be read
+				filesMerged++;
+				waiting.put(mJob.key, newest(mWaiting, mJob));
+				return true;
+			}
+			
+			if(waiting.size() >= MAX_QUEUED_FILES) {
+				filesDropped++;
+				Log.w(TAG, "ingest queue is full, dropping file: " + fileName);
+				return false;
+			}
+			
+			waiting.put(mJob.key, mJob);
+			start();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * get the number of files waiting to be read or being read
+	 * 
+	 * @return the number of files
+	 */
+	public synchronized int getQueueDepth() {
+		return waiting.size() + running.size();
+	}
+	
+	/**
+	 * get the number of batches of records waiting to be written
+	 * 
+	 * @return the number of batches
+	 */
+	public int getPendingBatches() {
+		return batches.size();
+	}
+	
+	/**
+	 * get the number of records written to the database
+	 * 
+	 * @return the number of records
+	 */
+	public long getRecordsWritten() {
+		return recordsWritten;
+	}
+	
+	/**
+	 * get the rate at which records are written while the writer is busy
+	 * 
+	 * @return the number of records written per second
+	 */
+	public long getRecordsPerSecond() {
+		
+		long mWriteTime = writeTime;
+		
+		if(mWriteTime == 0) {
+			return 0;
+		}
+		
+		return recordsWritten * 1000 / mWriteTime;
+	}
+	
+	/**
+	 * get the number of files that have been read
+	 * 
+	 * @return the number of files
+	 */
+	public int getFilesRead() {
+		return filesRead;
+	}
+	
+	/**
+	 * get the number of deliveries merged with a file already waiting to be read
+	 * 
+	 * @return the number of deliveries
+	 */
+	public int getFilesMerged() {
+		return filesMerged;
+	}
+	
+	/**
+	 * get the number of files dropped because the queue was full
+	 * 
+	 * @return the number of files
+	 */
+	public int getFilesDropped() {
+		return filesDropped;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "queue depth: " + getQueueDepth()
+				+ ", pending batches: " + getPendingBatches()
+				+ ", files read: " + filesRead
+				+ ", merged: " + filesMerged
+				+ ", dropped: " + filesDropped
+				+ ", records written: " + recordsWritten
+				+ " at " + getRecordsPerSecond() + " per second";
+	}
+	
+	/**
+	 * stop reading files, the offsets of files that haven't been finished aren't stored
+	 * so they are read again the next time they are delivered
+	 */
+	public void shutdown() {
+		
+		synchronized(this) {
+			waiting.clear();
+		}
+		
+		decoders.shutdownNow();
+		writer.interrupt();
+	}
+	
+	/*
+	 * pick the newer of two requests for the same file
+	 */
+	private Job newest(Job current, Job update) {
+		
+		if(current == null || current.version == IngestOffsets.UNKNOWN || update.version >= current.version) {
+			return update;
+		}
+		
+		return current;
+	}
+	
+	/*
+	 * start waiting jobs, oldest first, until every decoder thread has a job,
+	 * must be called while holding the lock
+	 */
+	private void start() {
+		
+		Iterator<Job> mJobs = waiting.values().iterator();
+		
+		while(running.size() < decoderThreads && mJobs.hasNext()) {
+			Job mJob = mJobs.next();
+			mJobs.remove();
+			
+			running.put(mJob.key, mJob);
+			decoders.execute(new Decoder(mJob));
+		}
+	}
+	
+	/*
+	 * called on the writer thread once the last batch of a job has been written
+	 */
+	private void finished(Job job) {
+		
+		boolean mIdle;
+		
+		synchronized(this) {
+			running.remove(job.key);
+			filesRead++;
+			
+			if(job.rerun != null) {
+				waiting.put(job.key, job.rerun);
+			}
+			
+			// a decoder thread is free for the next job
+			start();
+			
+			mIdle = waiting.isEmpty() && running.isEmpty();
+		}
+		
+		if(mIdle) {
+			if(V_LOG) {
+				Log.v(TAG, "idle, " + toString());
+			}
+			
+			if(idleListener != null) {
+				idleListener.onIdle();
+			}
+		}
+	}
+	
+	/*
+	 * reads a file on a decoder thread and passes the records to the writer
+	 */
+	private class Decoder implements Runnable, RecordSink {
+		
+		private Job job;
+		private Uri contentUri;
+		private ArrayList<ContentValues> pending = new ArrayList<ContentValues>(BulkInsertHelper.DEFAULT_BATCH_SIZE);
+		private boolean finished = false;
+		
+		Decoder(Job job) {
+			this.job = job;
+			
+			if(job.type == LOCATION_FILE) {
+				contentUri = LocationsContract.CONTENT_URI;
+			} else {
+				contentUri = PointsOfInterestContract.CONTENT_URI;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			
+			try {
+				if(job.type == LOCATION_FILE) {
+					new LocationReadWorker(context, job.dataFile, job.fileName, job.sender, job.version, this).run();
+				} else {
+					new PointsOfInterestWorker(context, job.dataFile, job.fileName, job.sender, job.version, this).run();
+				}
+			} finally {
+				// the job must always reach the writer so that it is finished
+				if(finished == false) {
+					job.failed = true;
+					send(true, IngestOffsets.UNKNOWN);
+				}
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see org.servalproject.maps.protobuf.RecordSink#add(android.content.ContentValues)
+		 */
+		@Override
+		public void add(ContentValues values) {
+			
+			pending.add(values);
+			
+			if(pending.size() >= BulkInsertHelper.DEFAULT_BATCH_SIZE) {
+				send(false, IngestOffsets.UNKNOWN);
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see org.servalproject.maps.protobuf.RecordSink#finish(long)
+		 */
+		@Override
+		public void finish(long offset) {
+			
+			if(finished == false) {
+				finished = true;
+				send(true, offset);
+			}
+		}
+		
+		/*
+		 * pass the pending records to the writer, waiting if the writer is behind
+		 */
+		private void send(boolean last, long offset) {
+			
+			Batch mBatch = new Batch();
+			mBatch.job = job;
+			mBatch.contentUri = contentUri;
+			mBatch.values = pending.toArray(new ContentValues[pending.size()]);
+			mBatch.last = last;
+			mBatch.offset = offset;
+			
+			pending.clear();
+			
+			try {
+				batches.put(mBatch);
+			} catch (InterruptedException e) {
+				job.failed = true;
+				finished = true;
+				throw new IllegalStateException("ingest was stopped");
+			}
+		}
+	}
+	
+	/*
+	 * writes the batches of records to the database on a single thread
+	 */
+	private Runnable writerTask = new Runnable() {
+		public void run() {
+			
+			while(true) {
+				
+				Batch mBatch;
+				
+				try {
+					mBatch = batches.take();
+				} catch (InterruptedException e) {
+					if(V_LOG) {
+						Log.v(TAG, "writer was interrupted and is stopping");
+					}
+					return;
+				}
+				
+				if(mBatch.values.length > 0 && mBatch.job.failed == false) {
+					
+					BulkInsertHelper mInserter = inserters.get(mBatch.contentUri);
+					
+					if(mInserter == null) {
+						mInserter = new BulkInsertHelper(context.getContentResolver(), mBatch.contentUri, MAX_BATCH_SIZE);
+						inserters.put(mBatch.contentUri, mInserter);
+					}
+					
+					long mStart = SystemClock.uptimeMillis();
+					long mRowCount = mInserter.getRowCount();
+					
+					try {
+						// each batch is committed in one transaction
+						for(ContentValues mValues : mBatch.values) {
+							mInserter.add(mValues);
+						}
+						mInserter.flush();
+					} catch (SQLException e) {
+						Log.e(TAG, "an error occurred while inserting data", e);
+						mBatch.job.failed = true;
+					}
+					
+					// only count the rows the provider actually inserted
+					recordsWritten += mInserter.getRowCount() - mRowCount;
+					
+					writeTime += SystemClock.uptimeMillis() - mStart;
+				}
+				
+				if(mBatch.last) {
+					
+					// remember where to start reading next time
+					if(mBatch.job.failed == false) {
+						IngestOffsets.setOffset(context, mBatch.job.fileName, mBatch.job.sender, mBatch.job.version, mBatch.offset);
+					}
+					
+					finished(mBatch.job);
+				}
+			}
+		}
+	};
+}
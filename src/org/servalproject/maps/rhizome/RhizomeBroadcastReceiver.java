@@ -23,14 +23,10 @@ package org.servalproject.maps.rhizome;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.servalproject.maps.ServalMaps;
 import org.servalproject.maps.protobuf.BinaryFileContract;
-import org.servalproject.maps.protobuf.LocationReadWorker;
-import org.servalproject.maps.protobuf.PointsOfInterestWorker;
+import org.servalproject.maps.services.IngestService;
 import org.servalproject.maps.utils.FileUtils;
 import org.servalproject.maps.utils.MediaUtils;
 
@@ -51,15 +47,6 @@ public class RhizomeBroadcastReceiver extends BroadcastReceiver {
 	private final boolean V_LOG = true;
 	private final String TAG = "RhizomeBroadcastReceiver";
 	
-	/*
-	 * private class level variables
-	 */
-	private static final int THREAD_POOL_SIZE = 2;
-	
-	// keep a static weak reference to a thread pool
-	// this should allow it to shutdown when there are no files being processed
-	private static WeakReference<ExecutorService> executorRef;
-	
 	/*
 	 * (non-Javadoc)
 	 * @see android.content.BroadcastReceiver#onReceive(android.content.Context, android.content.Intent)
@@ -93,6 +80,14 @@ public class RhizomeBroadcastReceiver extends BroadcastReceiver {
 			// this doesn't look like one of our own binary files
 			return;
 		}
+		
+		// identify the sender and version of the file so reading can resume where it stopped
+		String mSender = intent.getStringExtra("sender");
+		if(mSender == null) {
+			mSender = mFileParts[0];
+		}
+		
+		long mVersion = intent.getLongExtra("version", IngestOffsets.UNKNOWN);
 	
 		// is it one of our images?
 		if(mFileName.startsWith(MediaUtils.PHOTO_FILE_PREFIX) && mFileName.endsWith(".jpg")) {
@@ -122,7 +117,7 @@ public class RhizomeBroadcastReceiver extends BroadcastReceiver {
 			}
 			
 			// queue the reading of the file
-			queue(new LocationReadWorker(context, uri));
+			IngestService.queue(context, IngestScheduler.LOCATION_FILE, uri, mFileName, mSender, mVersion);
 			return;
 		}
 		
@@ -133,27 +128,8 @@ public class RhizomeBroadcastReceiver extends BroadcastReceiver {
 			}
 			
 			// queue the reading of the file
-			queue(new PointsOfInterestWorker(context, uri));
+			IngestService.queue(context, IngestScheduler.POI_FILE, uri, mFileName, mSender, mVersion);
 			return;
 		}
 	}
-	
-	/*
-	 * queue the runnable that will process the file
-	 */
-	private void queue(Runnable r){
-		ExecutorService mExecutorService = null;
-		
-		// use existing service if 
-		if (executorRef != null){
-			mExecutorService = executorRef.get();
-		}
-		
-		if (mExecutorService == null){
-			mExecutorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-			executorRef = new WeakReference<ExecutorService>(mExecutorService);
-		}
-		
-		mExecutorService.submit(r);
-	}
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.rhizome;
+
+import java.io.File;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * coalesces requests to add growing files to the Rhizome repository
+ * 
+ * each time a file is added Rhizome hashes the whole file and creates a new version
+ * of its bundle, so a file that is appended to often is only published at most once
+ * per publish interval, or sooner once it has grown by the publish size since it was
+ * last published, the last request for a file is never lost and can be forced out
+ * when the file is finished with or the app is stopping, a file is forgotten once it
+ * has been finished with or its publish interval has passed without another request
+ */
+public class RhizomePublisher {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * default minimum time in milliseconds between publications of the same file
+	 */
+	public static final long DEFAULT_PUBLISH_INTERVAL = 5 * 60 * 1000;
+	
+	/**
+	 * default growth in bytes that causes a file to be published before the interval has passed
+	 */
+	public static final long DEFAULT_PUBLISH_SIZE = 64 * 1024;
+	
+	/*
+	 * private class level constants
+	 */
+	private static final String TAG = "RhizomePublisher";
+	private static final boolean V_LOG = false;
+	
+	/*
+	 * the publication state of a file
+	 */
+	private class PublishedFile {
+		long publishedTime = 0;
+		long publishedSize = 0;
+		boolean pending = false;
+	}
+	
+	/*
+	 * private class level variables
+	 */
+	private static RhizomePublisher instance = null;
+	
+	private Context context;
+	private Handler handler;
+	
+	private volatile long publishInterval = DEFAULT_PUBLISH_INTERVAL;
+	private volatile long publishSize = DEFAULT_PUBLISH_SIZE;
+	
+	// only used on the publisher thread
+	private HashMap<String, PublishedFile> files = new HashMap<String, PublishedFile>();
+	
+	/**
+	 * get the publisher, starting it if required
+	 * 
+	 * @param context a context object used to get access to system resources
+	 * @return the publisher
+	 */
+	public static synchronized RhizomePublisher getInstance(Context context) {
+		
+		if(context == null) {
+			throw new IllegalArgumentException("the context parameter is required");
+		}
+		
+		if(instance == null) {
+			instance = new RhizomePublisher(context.getApplicationContext());
+		}
+		
+		return instance;
+	}
+	
+	/*
+	 * construct a new publisher and start its thread
+	 */
+	private RhizomePublisher(Context context) {
+		
+		this.context = context;
+		
+		HandlerThread mThread = new HandlerThread(TAG);
+		mThread.start();
+		handler = new Handler(mThread.getLooper());
+	}
+	
+	/**
+	 * set the policy used to decide when a file is published
+	 * 
+	 * @param interval the minimum time in milliseconds between publications of the same file
+	 * @param size the growth in bytes that causes a file to be published before the interval has passed
+	 */
+	public void setPublishPolicy(long interval, long size) {
+		
+		if(interval < 0 || size < 0) {
+			throw new IllegalArgumentException("the interval and size must not be negative");
+		}
+		
+		publishInterval = interval;
+		publishSize = size;
+	}
+	
+	/**
+	 * request that a file is published, the file is published
+	 * straight away or once the publish interval has passed
+	 * 
+	 * @param filePath the full path to the file
+	 */
+	public void requestPublish(final String filePath) {
+		
+		handler.post(new Runnable() {
+			public void run() {
+				schedule(filePath);
+			}
+		});
+	}
+	
+	/**
+	 * publish a file straight away, for example when it will not be written to again
+	 * 
+	 * @param filePath the full path to the file
+	 */
+	public void publishNow(final String filePath) {
+		
+		handler.post(new Runnable() {
+			public void run() {
+				publish(filePath, getFile(filePath));
+				
+				// the file won't be written to again so there is nothing left to coalesce
+				files.remove(filePath);
+			}
+		});
+	}
+	
+	/**
+	 * publish all of the files with requests that are waiting for the publish interval to pass
+	 */
+	public void flush() {
+		
+		handler.post(new Runnable() {
+			public void run() {
+				for(String mPath : files.keySet()) {
+					PublishedFile mFile = files.get(mPath);
+					
+					if(mFile.pending) {
+						publish(mPath, mFile);
+					}
+				}
+			}
+		});
+	}
+	
+	/*
+	 * get the state of a file, creating it if required
+	 */
+	private PublishedFile getFile(String filePath) {
+		
+		PublishedFile mFile = files.get(filePath);
+		
+		if(mFile == null) {
+			mFile = new PublishedFile();
+			files.put(filePath, mFile);
+		}
+		
+		return mFile;
+	}
+	
+	/*
+	 * publish a file now if it is due, otherwise schedule it for when it is due
+	 */
+	private void schedule(final String filePath) {
+		
+		PublishedFile mFile = getFile(filePath);
+		
+		if(mFile.pending) {
+			// already waiting to be published
+			if(new File(filePath).length() - mFile.publishedSize >= publishSize) {
+				publish(filePath, mFile);
+			}
+			return;
+		}
+		
+		long mDue = mFile.publishedTime + publishInterval;
+		long mNow = SystemClock.elapsedRealtime();
+		
+		if(mFile.publishedTime == 0 || mDue <= mNow || new File(filePath).length() - mFile.publishedSize >= publishSize) {
+			publish(filePath, mFile);
+		} else {
+			mFile.pending = true;
+			
+			handler.postDelayed(new Runnable() {
+				public void run() {
+					PublishedFile mPendingFile = files.get(filePath);
+					
+					if(mPendingFile != null && mPendingFile.pending) {
+						publish(filePath, mPendingFile);
+					}
+				}
+			}, mDue - mNow);
+		}
+	}
+	
+	/*
+	 * add the file to Rhizome
+	 */
+	private void publish(String filePath, PublishedFile file) {
+		
+		file.pending = false;
+		file.publishedTime = SystemClock.elapsedRealtime();
+		file.publishedSize = new File(filePath).length();
+		
+		try {
+			Rhizome.addFile(context, filePath);
+			
+			if(V_LOG) {
+				Log.v(TAG, "published '" + filePath + "' at " + file.publishedSize + " bytes");
+			}
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "unable to publish file", e);
+		}
+		
+		expire(filePath);
+	}
+	
+	/*
+	 * forget a file once its publish interval has passed without another request,
+	 * a new request for it is then published straight away just as it would have been
+	 */
+	private void expire(final String filePath) {
+		
+		handler.postDelayed(new Runnable() {
+			public void run() {
+				PublishedFile mFile = files.get(filePath);
+				
+				if(mFile != null && mFile.pending == false && SystemClock.elapsedRealtime() - mFile.publishedTime >= publishInterval) {
+					files.remove(filePath);
+				}
+			}
+		}, publishInterval);
+	}
+}
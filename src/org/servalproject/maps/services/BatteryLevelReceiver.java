@@ -21,15 +21,16 @@ package org.servalproject.maps.services;
 
 import org.servalproject.maps.R;
 
-import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.DialogInterface;
 import android.content.Intent;
 import android.util.Log;
+import android.widget.Toast;
 
 /**
- * receives broadcasts about the battery level
+ * receives broadcasts about the battery level while the core service is running,
+ * and asks the service to switch to the low power location profile when the battery
+ * is low rather than stopping the collection of locations
  */
 public class BatteryLevelReceiver extends BroadcastReceiver {
 	
@@ -39,6 +40,25 @@ public class BatteryLevelReceiver extends BroadcastReceiver {
 	private final boolean V_LOG = false;
 	private final String TAG = "BatteryLevelReceiver";
 	
+	/*
+	 * private class level variables
+	 */
+	private CoreService service;
+	
+	/**
+	 * construct a new receiver
+	 * 
+	 * @param service the service to inform about changes in the battery level
+	 */
+	public BatteryLevelReceiver(CoreService service) {
+		
+		if(service == null) {
+			throw new IllegalArgumentException("the service parameter is required");
+		}
+		
+		this.service = service;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see android.content.BroadcastReceiver#onReceive(android.content.Context, android.content.Intent)
@@ -58,42 +78,23 @@ public class BatteryLevelReceiver extends BroadcastReceiver {
 				Log.v(TAG, "received notification that battery is low");
 			}
 			
-			// shutdown the service
-			context.stopService(new Intent(context, org.servalproject.maps.services.CoreService.class));
+			// use the low power profile
+			service.setBatteryLow(true);
 			
 			// inform the user
-			AlertDialog.Builder mBuilder = new AlertDialog.Builder(context);
-	        mBuilder.setMessage(R.string.system_battery_status_low)
-	               .setCancelable(false)
-	               .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-	                   public void onClick(DialogInterface dialog, int id) {
-	                	   dialog.cancel();
-	                   }
-	               });
-	        AlertDialog mAlert = mBuilder.create();
-	        mAlert.show();
+			Toast.makeText(context, R.string.system_battery_status_low, Toast.LENGTH_LONG).show();
 			
 		} else if(intent.getAction().equals(Intent.ACTION_BATTERY_OKAY) == true) {
 			// notification that the battery is ok after being low
-			// restart the GPS
 			if(V_LOG) {
 				Log.v(TAG, "received notification that battery is ok");
 			}
 			
-			// start the service
-			context.startService(new Intent(context, org.servalproject.maps.services.CoreService.class));
+			// return to the selected profile
+			service.setBatteryLow(false);
 			
 			// inform the user
-			AlertDialog.Builder mBuilder = new AlertDialog.Builder(context);
-	        mBuilder.setMessage(R.string.system_battery_status_ok)
-	               .setCancelable(false)
-	               .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
-	                   public void onClick(DialogInterface dialog, int id) {
-	                	   dialog.cancel();
-	                   }
-	               });
-	        AlertDialog mAlert = mBuilder.create();
-	        mAlert.show();
+			Toast.makeText(context, R.string.system_battery_status_ok, Toast.LENGTH_LONG).show();
 		}
 	}
 }
@@ -22,9 +22,12 @@ package org.servalproject.maps.services;
 import java.io.IOException;
 
 import org.servalproject.maps.R;
+import org.servalproject.maps.location.CollectionProfile;
 import org.servalproject.maps.location.JsonLocationWriter;
 import org.servalproject.maps.location.LocationCollector;
 import org.servalproject.maps.location.MockLocations;
+import org.servalproject.maps.protobuf.BinaryFileWriter;
+import org.servalproject.maps.rhizome.RhizomePublisher;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -32,9 +35,11 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.location.LocationManager;
+import android.os.BatteryManager;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -56,6 +61,11 @@ public class CoreService extends Service {
 	private final int STATUS_NOTIFICATION = 0;
 
 	private final String JSON_UPDATE_DELAY_DEFAULT = "60000";
+	
+	private final String BINARY_SYNC_INTERVAL_DEFAULT = "30000";
+	
+	// the battery is treated as low below this percentage when the service starts
+	private final int BATTERY_LOW_PERCENT = 15;
 
 	private final boolean V_LOG = false;
 	private final String  TAG = "CoreService";
@@ -69,6 +79,12 @@ public class CoreService extends Service {
 	private Thread jsonLocationWriterThread = null;
 
 	private SharedPreferences preferences = null;
+	
+	// the profile chosen in the preferences, the low power profile is used instead while the battery is low
+	private CollectionProfile selectedProfile = CollectionProfile.DEFAULT_PROFILE;
+	private boolean batteryLow = false;
+	private boolean collecting = false;
+	private BatteryLevelReceiver batteryLevelReceiver;
 
 	private Long uptimeStart;
 
@@ -121,6 +137,22 @@ public class CoreService extends Service {
 			}
 		}
 
+		// set how often the binary files are committed
+		setBinarySyncPolicy();
+		
+		// choose how locations are collected
+		selectedProfile = CollectionProfile.fromName(preferences.getString("preferences_location_profile", null));
+		batteryLow = isBatteryLow();
+		locationCollector.setProfile(getProfile());
+		
+		// listen for changes in the battery level while the service is running
+		IntentFilter mBatteryFilter = new IntentFilter();
+		mBatteryFilter.addAction(Intent.ACTION_BATTERY_LOW);
+		mBatteryFilter.addAction(Intent.ACTION_BATTERY_OKAY);
+		
+		batteryLevelReceiver = new BatteryLevelReceiver(this);
+		registerReceiver(batteryLevelReceiver, mBatteryFilter);
+
 		// listen for changes in the preferences
 		preferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
 
@@ -214,6 +246,11 @@ public class CoreService extends Service {
 				if(jsonLocationWriter != null) {
 					jsonLocationWriter.setUpdateDelay(Long.parseLong(updateDelay));
 				}
+			} else if(key.equals("preferences_output_binary_sync_interval") == true) {
+				setBinarySyncPolicy();
+			} else if(key.equals("preferences_location_profile") == true) {
+				selectedProfile = CollectionProfile.fromName(preferences.getString("preferences_location_profile", null));
+				applyProfile();
 			}
 
 		}
@@ -248,12 +285,89 @@ public class CoreService extends Service {
 		}
 
 		// Register the listener with the Location Manager to receive location updates
-		locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationCollector);
+		collecting = true;
+		applyProfile();
 
 		// If service gets killed, after returning from here, restart
 		return START_STICKY;
 	}
 
+	/**
+	 * switch to the low power location profile while the battery is low,
+	 * and back to the selected profile once it has recovered
+	 * 
+	 * @param low true if the battery is low
+	 */
+	public void setBatteryLow(boolean low) {
+		
+		if(batteryLow == low) {
+			return;
+		}
+		
+		batteryLow = low;
+		applyProfile();
+	}
+	
+	// private method used to get the profile that should be in use
+	private CollectionProfile getProfile() {
+		
+		if(batteryLow) {
+			return CollectionProfile.LOW_POWER;
+		}
+		
+		return selectedProfile;
+	}
+	
+	// private method used to request location updates using the current profile
+	private void applyProfile() {
+		
+		CollectionProfile mProfile = getProfile();
+		
+		locationCollector.setProfile(mProfile);
+		
+		if(collecting) {
+			// the gps only reports fixes as often as the profile needs them
+			locationManager.removeUpdates(locationCollector);
+			locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, mProfile.getMinTime(), mProfile.getMinDistance(), locationCollector);
+		}
+		
+		if(V_LOG) {
+			Log.v(TAG, "location collection profile is '" + mProfile + "'");
+		}
+	}
+	
+	// private method used to check the battery level when the service starts,
+	// the low and okay broadcasts are only sent when the level changes
+	private boolean isBatteryLow() {
+		
+		Intent mStatus = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		
+		if(mStatus == null) {
+			return false;
+		}
+		
+		int mLevel = mStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int mScale = mStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		
+		if(mLevel < 0 || mScale <= 0) {
+			return false;
+		}
+		
+		return (mLevel * 100 / mScale) <= BATTERY_LOW_PERCENT;
+	}
+
+	// private method used to apply the binary file sync preference
+	private void setBinarySyncPolicy() {
+		
+		String mSyncInterval = preferences.getString("preferences_output_binary_sync_interval", BINARY_SYNC_INTERVAL_DEFAULT);
+		
+		BinaryFileWriter.getInstance(this).setSyncPolicy(Long.parseLong(mSyncInterval), BinaryFileWriter.DEFAULT_SYNC_SIZE);
+		
+		if(V_LOG) {
+			Log.v(TAG, "binary file sync interval is '" + mSyncInterval + "'");
+		}
+	}
+
 	// private method used to add the notification icon
 	private void addNotification() {
 		// add a notification icon
@@ -303,8 +417,15 @@ public class CoreService extends Service {
 		NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 		mNotificationManager.cancel(STATUS_NOTIFICATION);
 
-		// stop listening for location updates
+		// stop listening for location updates and the battery level
 		locationManager.removeUpdates(locationCollector);
+		collecting = false;
+		
+		unregisterReceiver(batteryLevelReceiver);
+		preferences.unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
+		
+		// write any locations still waiting for their batch to fill
+		locationCollector.flush();
 
 		if(mockLocations != null) {
 			mockLocations.requestStop();
@@ -320,6 +441,12 @@ public class CoreService extends Service {
 				jsonLocationWriterThread.interrupt();
 			}
 		}
+		
+		// commit and close the binary files
+		BinaryFileWriter.shutdown();
+		
+		// publish any files still waiting for their publish interval to pass
+		RhizomePublisher.getInstance(this).flush();
 
 		// update the uptime count
 		long mUptime = System.currentTimeMillis() - uptimeStart;
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 The Serval Project
+ *
+ * This file is part of the Serval Maps Software
+ *
+ * Serval Maps Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.servalproject.maps.services;
+
+import org.servalproject.maps.rhizome.IngestOffsets;
+import org.servalproject.maps.rhizome.IngestScheduler;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * a service that owns the scheduler used to read the binary files received via Rhizome,
+ * the service runs while there are files to read and stops itself once they are all written
+ */
+public class IngestService extends Service {
+	
+	/*
+	 * public class level constants
+	 */
+	
+	/**
+	 * the extra containing the type of file, IngestScheduler.LOCATION_FILE or IngestScheduler.POI_FILE
+	 */
+	public static final String EXTRA_TYPE = "type";
+	
+	/**
+	 * the extra containing the name of the file
+	 */
+	public static final String EXTRA_NAME = "name";
+	
+	/**
+	 * the extra containing the sender of the file
+	 */
+	public static final String EXTRA_SENDER = "sender";
+	
+	/**
+	 * the extra containing the version of the manifest for the file
+	 */
+	public static final String EXTRA_VERSION = "version";
+	
+	/*
+	 * private class level constants
+	 */
+	private final boolean V_LOG = false;
+	private final String TAG = "IngestService";
+	
+	/*
+	 * private class level variables
+	 */
+	private static volatile IngestScheduler scheduler = null;
+	
+	private Handler handler;
+	private int lastStartId;
+	
+	/**
+	 * queue a file to be read by the service
+	 * 
+	 * @param context a context used to start the service
+	 * @param type the type of file, IngestScheduler.LOCATION_FILE or IngestScheduler.POI_FILE
+	 * @param dataFile the uri of the binary file
+	 * @param fileName the name of the binary file
+	 * @param sender the sender of the binary file
+	 * @param version the version of the manifest for the binary file, or IngestOffsets.UNKNOWN
+	 */
+	public static void queue(Context context, int type, Uri dataFile, String fileName, String sender, long version) {
+		
+		Intent mIntent = new Intent(context, IngestService.class);
+		mIntent.setData(dataFile);
+		mIntent.putExtra(EXTRA_TYPE, type);
+		mIntent.putExtra(EXTRA_NAME, fileName);
+		mIntent.putExtra(EXTRA_SENDER, sender);
+		mIntent.putExtra(EXTRA_VERSION, version);
+		
+		context.startService(mIntent);
+	}
+	
+	/**
+	 * get the scheduler, for example to check the queue depth and throughput
+	 * 
+	 * @return the scheduler or null if the service isn't running
+	 */
+	public static IngestScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see android.app.Service#onCreate()
+	 */
+	@Override
+	public void onCreate() {
+		
+		super.onCreate();
+		
+		handler = new Handler();
+		scheduler = new IngestScheduler(this, idleListener);
+		
+		if(V_LOG) {
+			Log.v(TAG, "Service Created");
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see android.app.Service#onStartCommand(android.content.Intent, int, int)
+	 */
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		
+		lastStartId = startId;
+		
+		if(intent != null && intent.getData() != null && intent.getStringExtra(EXTRA_NAME) != null) {
+			scheduler.queue(
+					intent.getIntExtra(EXTRA_TYPE, IngestScheduler.LOCATION_FILE),
+					intent.getData(),
+					intent.getStringExtra(EXTRA_NAME),
+					intent.getStringExtra(EXTRA_SENDER),
+					intent.getLongExtra(EXTRA_VERSION, IngestOffsets.UNKNOWN));
+		} else {
+			Log.w(TAG, "called with an intent missing the file details");
+			stopIfIdle.run();
+		}
+		
+		// Rhizome delivers the files again so there is no need to restart
+		return START_NOT_STICKY;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see android.app.Service#onDestroy()
+	 */
+	@Override
+	public void onDestroy() {
+		
+		scheduler.shutdown();
+		
+		Log.i(TAG, "ingest finished, " + scheduler.toString());
+		
+		scheduler = null;
+		
+		super.onDestroy();
+	}
+	
+	/*
+	 * called on the writer thread when all of the files have been read
+	 */
+	private IngestScheduler.IdleListener idleListener = new IngestScheduler.IdleListener() {
+		public void onIdle() {
+			handler.post(stopIfIdle);
+		}
+	};
+	
+	/*
+	 * stop the service if no files have been queued since the scheduler became idle,
+	 * files are only queued on the main thread so checking here can't miss one
+	 */
+	private Runnable stopIfIdle = new Runnable() {
+		public void run() {
+			IngestScheduler mScheduler = scheduler;
+			
+			if(mScheduler != null && mScheduler.getQueueDepth() == 0) {
+				stopSelf(lastStartId);
+			}
+		}
+	};
+	
+	/*
+	 * this isn't a bound service so we can safely return null here
+	 * 
+	 * (non-Javadoc)
+	 * @see android.app.Service#onBind(android.content.Intent)
+	 */
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+}
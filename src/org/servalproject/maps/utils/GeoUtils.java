@@ -62,6 +62,11 @@ public class GeoUtils {
 	 */
 	public static final int NAUTICAL_MILE_UNITS = 12;
 	
+	/**
+	 * the number of fixed point units per degree used to store coordinates as integers, about one centimetre
+	 */
+	public static final double FIXED_POINT_SCALE = 1e7;
+	
 	/*
 	 * declare private class level constants
 	 */
@@ -265,5 +270,25 @@ public class GeoUtils {
 
 		return dist;
 	}
+	
+	/**
+	 * convert a coordinate in degrees to fixed point
+	 * 
+	 * @param degrees the coordinate in degrees
+	 * @return the coordinate in fixed point units
+	 */
+	public static long toFixedPoint(double degrees) {
+		return Math.round(degrees * FIXED_POINT_SCALE);
+	}
+	
+	/**
+	 * convert a fixed point coordinate to degrees
+	 * 
+	 * @param fixedPoint the coordinate in fixed point units
+	 * @return the coordinate in degrees
+	 */
+	public static double fromFixedPoint(long fixedPoint) {
+		return fixedPoint / FIXED_POINT_SCALE;
+	}
 
 }
@@ -19,6 +19,7 @@
  */
 package org.servalproject.maps.utils;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -68,6 +69,160 @@ public class HashUtils {
 		return createHash(mToHash);
 	}
 	
+	/**
+	 * generate a compact fingerprint of a location record, used to detect duplicate records
+	 * 
+	 * @param phone the phone number
+	 * @param latitude the latitude coordinate
+	 * @param longitude the longitude coordinate
+	 * @param time the timestamp
+	 * @return the first 64 bits of the hash of the record
+	 */
+	public static long fingerprintLocation(String phone, double latitude, double longitude, long time) {
+		return createFingerprint(phone, latitude, longitude, time, null);
+	}
+	
+	/**
+	 * generate a compact fingerprint of a point of interest record, used to detect duplicate records
+	 * 
+	 * @param phone the phone number
+	 * @param latitude the latitude coordinate
+	 * @param longitude the longitude coordinate
+	 * @param time the timestamp
+	 * @param title the title of the POI
+	 * @return the first 64 bits of the hash of the record
+	 */
+	public static long fingerprintPointOfInterest(String phone, double latitude, double longitude, long time, String title) {
+		return createFingerprint(phone, latitude, longitude, time, title);
+	}
+	
+	/*
+	 * hash the fields of a record, the coordinates are rounded to fixed point so that
+	 * a record read back from any file format has the same fingerprint as the original
+	 */
+	private static long createFingerprint(String phone, double latitude, double longitude, long time, String title) {
+		return fingerprinters.get().fingerprint(phone, latitude, longitude, time, title);
+	}
+	
+	/*
+	 * each thread reuses its own digest and buffers so that
+	 * creating a fingerprint doesn't allocate any objects
+	 */
+	private static final ThreadLocal<Fingerprinter> fingerprinters = new ThreadLocal<Fingerprinter>() {
+		@Override
+		protected Fingerprinter initialValue() {
+			return new Fingerprinter();
+		}
+	};
+	
+	/*
+	 * builds the bytes of a record in a reusable buffer and digests them,
+	 * the layout is the utf-8 phone number and a zero byte, the big endian
+	 * fixed point latitude and longitude and the time, and the utf-8 title
+	 * and a zero byte if there is one
+	 */
+	private static class Fingerprinter {
+		
+		private final MessageDigest digest;
+		private final byte[] hash;
+		private byte[] buffer = new byte[128];
+		private int length;
+		
+		Fingerprinter() {
+			try {
+				digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("unable to use md5 for hashing", e);
+			}
+			
+			hash = new byte[digest.getDigestLength()];
+		}
+		
+		long fingerprint(String phone, double latitude, double longitude, long time, String title) {
+			
+			length = 0;
+			
+			// strings are followed by a zero byte so adjacent fields can't run together
+			if(phone != null) {
+				putString(phone);
+			}
+			putByte(0);
+			
+			putLong(GeoUtils.toFixedPoint(latitude));
+			putLong(GeoUtils.toFixedPoint(longitude));
+			putLong(time);
+			
+			if(title != null) {
+				putString(title);
+				putByte(0);
+			}
+			
+			try {
+				digest.update(buffer, 0, length);
+				digest.digest(hash, 0, hash.length);
+			} catch (DigestException e) {
+				throw new IllegalStateException("unable to build the fingerprint", e);
+			}
+			
+			long mFingerprint = 0;
+			
+			for(int i = 0; i < 8; i++) {
+				mFingerprint = (mFingerprint << 8) | (hash[i] & 0xff);
+			}
+			
+			return mFingerprint;
+		}
+		
+		private void putByte(int value) {
+			
+			if(length == buffer.length) {
+				byte[] mBuffer = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, mBuffer, 0, length);
+				buffer = mBuffer;
+			}
+			
+			buffer[length++] = (byte) value;
+		}
+		
+		private void putLong(long value) {
+			for(int i = 56; i >= 0; i -= 8) {
+				putByte((int) (value >>> i));
+			}
+		}
+		
+		/*
+		 * encode a string as utf-8 without creating a byte array,
+		 * unpaired surrogates are replaced with '?' as String.getBytes does
+		 */
+		private void putString(String value) {
+			
+			int mLength = value.length();
+			
+			for(int i = 0; i < mLength; i++) {
+				char mChar = value.charAt(i);
+				
+				if(mChar < 0x80) {
+					putByte(mChar);
+				} else if(mChar < 0x800) {
+					putByte(0xc0 | (mChar >> 6));
+					putByte(0x80 | (mChar & 0x3f));
+				} else if(Character.isHighSurrogate(mChar) && i + 1 < mLength && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int mCodePoint = Character.toCodePoint(mChar, value.charAt(++i));
+					putByte(0xf0 | (mCodePoint >> 18));
+					putByte(0x80 | ((mCodePoint >> 12) & 0x3f));
+					putByte(0x80 | ((mCodePoint >> 6) & 0x3f));
+					putByte(0x80 | (mCodePoint & 0x3f));
+				} else if(Character.isHighSurrogate(mChar) || Character.isLowSurrogate(mChar)) {
+					putByte('?');
+				} else {
+					putByte(0xe0 | (mChar >> 12));
+					putByte(0x80 | ((mChar >> 6) & 0x3f));
+					putByte(0x80 | (mChar & 0x3f));
+				}
+			}
+		}
+	}
+	
 	/*
 	 * the following method is based on code found here:
 	 * http://p-xr.com/android-snippet-making-a-md5-hash-from-a-string-in-java/